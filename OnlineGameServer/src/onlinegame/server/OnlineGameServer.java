@@ -1,11 +1,14 @@
 package onlinegame.server;
 
+import java.io.File;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import onlinegame.server.io.IO;
 import onlinegame.server.rooms.ChatRoom;
 import onlinegame.server.rooms.LobbyManager;
 import onlinegame.shared.Logger;
+import onlinegame.shared.game.pathfinder.GraphCache;
 import onlinegame.shared.net.Protocol;
 import onlinegame.shared.net.ConnectionListener;
 import onlinegame.shared.net.OutputMessage;
@@ -52,6 +55,8 @@ public final class OnlineGameServer implements Runnable, ConnectionListener
         
         ServerEncryption.touch();
         
+        GraphCache.setCacheDirectory(new File(IO.basePath, "cache"));
+        
         listener = new Listener(Protocol.DEFAULT_PORT);
         
         long time = System.nanoTime();
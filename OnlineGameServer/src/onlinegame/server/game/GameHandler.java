@@ -17,6 +17,9 @@ public final class GameHandler
     
     private static final List<GameMain> gameList = new ArrayList<>();
     
+    //runs the ticks of all games, on a thread per core
+    private static final GameScheduler scheduler = new GameScheduler(Runtime.getRuntime().availableProcessors());
+    
     public static GameMain startGame(PlayerInfo[][] players, GameMap map)
     {
         Logger.log("Creating game...");
@@ -49,7 +52,7 @@ public final class GameHandler
             }
         }
         
-        game.start();
+        game.start(scheduler);
         
         return game;
     }
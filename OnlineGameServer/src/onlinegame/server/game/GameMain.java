@@ -1,23 +1,33 @@
 package onlinegame.server.game;
 
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import onlinegame.server.account.Session;
 import onlinegame.server.game.engine.SActor;
 import onlinegame.server.game.engine.SEntity;
 import onlinegame.server.game.engine.SGameState;
 import onlinegame.shared.ArrayDequeList;
-import onlinegame.shared.FrameTimer;
 import onlinegame.shared.GameUtil;
 import onlinegame.shared.Logger;
 import onlinegame.shared.SharedUtil;
 import onlinegame.shared.bitstream.BitInput;
-import onlinegame.shared.bitstream.BitOutput;
+import onlinegame.shared.bitstream.BitOutputStream;
 import onlinegame.shared.bitstream.IntFormat;
 import onlinegame.shared.game.GameMap;
 import onlinegame.shared.game.GameProtocol;
@@ -33,7 +43,7 @@ import onlinegame.shared.net.udp.UDPServer;
  *
  * @author Alfred
  */
-public final class GameMain implements Runnable
+public final class GameMain
 {
     private static final UDPServer server;
     static
@@ -49,13 +59,26 @@ public final class GameMain implements Runnable
         }
     }
     
+    //encodes and sends the updates of all games, so that the game threads don't have to
+    private static final ExecutorService encoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+    {
+        private final AtomicInteger counter = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "Update encoder " + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
     private static final AtomicInteger idCounter = new AtomicInteger();
     
     public final int id;
     private final PlayerInfo[][] players;
     private final GameMap map;
     
-    private final Thread thread;
     private volatile boolean shouldStop = false;
     
     GameMain(PlayerInfo[][] players, GameMap map)
@@ -77,19 +100,12 @@ public final class GameMain implements Runnable
         
         this.map = map;
         gameState = new SGameState(map, players);
-        
-        thread = new Thread(this, "Game " + id);
-        thread.setPriority(5);
-        thread.setDaemon(true);
     }
     
     private final PlayerConnection[][] conns = new PlayerConnection[2][];
     
-    @Override
-    public void run()
+    private void setupConnections()
     {
-        Logger.log("game run()");
-        
         for (int t = 0; t < 2; t++)
         {
             conns[t] = new PlayerConnection[players[t].length];
@@ -99,8 +115,6 @@ public final class GameMain implements Runnable
                 setupConnection(t, p);
             }
         }
-        
-        gameLoop();
     }
     
     private void setupConnection(int t, int p)
@@ -124,65 +138,74 @@ public final class GameMain implements Runnable
     
     private final SGameState gameState;
     
-    private void gameLoop()
+    /**
+     * Runs one tick of the game, called by the {@link GameScheduler} at the tick rate.
+     * @param pathBudget The longest time to wait for path queries, in seconds, see {@link SGameState#update(double)}.
+     */
+    void tick(double pathBudget)
     {
-        FrameTimer timer = new FrameTimer(GameUtil.SERVER_TICKRATE, FrameTimer.MEDIUM);
-        
-        while (!shouldStop)
+        for (int t = 0; t < 2; t++)
         {
-            for (int t = 0; t < 2; t++)
+            for (int p = 0; p < players[t].length; p++)
             {
-                for (int p = 0; p < players[t].length; p++)
+                PlayerInfo player = players[t][p];
+                Session s = player.account.getSession();
+                PlayerConnection pCon = conns[t][p];
+                UDPConnection udpCon = pCon.con;
+                
+                if (udpCon == null || udpCon.isClosed())
                 {
-                    PlayerInfo player = players[t][p];
-                    Session s = player.account.getSession();
-                    PlayerConnection pCon = conns[t][p];
-                    UDPConnection udpCon = pCon.con;
-                    
-                    if (udpCon == null || udpCon.isClosed())
+                    if (s != null && s.getClient().isLoggedIn())
                     {
-                        if (s != null && s.getClient().isLoggedIn())
-                        {
-                            //client has reconnected
-                            setupConnection(t, p);
-                            Logger.log("Reconnected!");
-                        }
+                        //client has reconnected
+                        setupConnection(t, p);
+                        Logger.log("Reconnected!");
+                    }
+                }
+                else
+                {
+                    if (s == null || !s.getClient().isLoggedIn())
+                    {
+                        //client has disconnected
+                        udpCon.close();
+                        pCon.con = null;
+                        Logger.log("Disconnected!");
                     }
                     else
                     {
-                        if (s == null || !s.getClient().isLoggedIn())
-                        {
-                            //client has disconnected
-                            udpCon.close();
-                            pCon.con = null;
-                            Logger.log("Disconnected!");
-                        }
-                        else
-                        {
-                            //client is ready, recieve messages and process it
-                            processClient(pCon);
-                        }
+                        //client is ready, recieve messages and process it
+                        processClient(pCon);
                     }
                 }
             }
-            
-            if (isEveryoneDisconnected())
-            {
-                GameHandler.stopGame(this);
-            }
-            
-            gameState.update();
-            if (gameState.getCurrentTick() % GameUtil.SERVER_SEND_INTERVAL == 0) sendUpdates();
-            
-            timer.update();
         }
+        
+        if (isEveryoneDisconnected())
+        {
+            GameHandler.stopGame(this);
+        }
+        
+        gameState.update(pathBudget);
+        if (gameState.getCurrentTick() % GameUtil.SERVER_SEND_INTERVAL == 0) sendUpdates();
     }
     
     private final ArrayDequeList<GameState> gameStates = new ArrayDequeList<>();
     private final TIntObjectMap<GameState> gameStateIdMap = new TIntObjectHashMap<>();
     
+    //the updates of the current send round by the tick of their delta, -1 for none, each encoded once for all players with that delta
+    private final TIntObjectMap<UpdateEncoding> encodings = new TIntObjectHashMap<>();
+    private final List<Future<?>> pendingUpdates = new ArrayList<>(); //the encodings of the last send round
+    
+    //since the last report, the counts are updated by the encoders
+    private final AtomicInteger updatesSent = new AtomicInteger(), updatesEncoded = new AtomicInteger();
+    private final AtomicLong bytesEncoded = new AtomicLong();
+    private long blockedNanos = 0; //that the game thread has waited for the encoders
+    
     private void sendUpdates()
     {
+        //the messages of the last round have to be sent before the next ones, which they almost always have been already
+        waitForUpdates();
+        
         GameState snapshot = gameState.getSnapshot();
         gameStates.add(snapshot);
         gameStateIdMap.put(snapshot.currentTick, snapshot);
@@ -204,12 +227,30 @@ public final class GameMain implements Runnable
                     delta = conns[t][p].lastGSSent;
                 }
                 conns[t][p].lastGSSent = snapshot;
-                sendUpdates(t, p, snapshot, delta);
+                
+                UDPConnection con = conns[t][p].con;
+                if (con != null)
+                {
+                    int key = delta == null ? -1 : delta.currentTick;
+                    UpdateEncoding encoding = encodings.get(key);
+                    if (encoding == null)
+                    {
+                        encoding = new UpdateEncoding(snapshot, delta);
+                        encodings.put(key, encoding);
+                    }
+                    encoding.add(con, conns[t][p].lastCmd);
+                }
                 
                 gsKeepFirst = Math.min(gsKeepFirst, ack);
             }
         }
         
+        for (UpdateEncoding encoding : encodings.valueCollection())
+        {
+            pendingUpdates.add(encoders.submit(encoding));
+        }
+        encodings.clear();
+        
         //remove old gameStates
         for (int i = 0; i < gameStates.size(); i++)
         {
@@ -225,31 +266,58 @@ public final class GameMain implements Runnable
             }
          }
     }
-    private void sendUpdates(int team, int player, GameState snapshot, GameState delta)
+    private void waitForUpdates()
     {
-        UDPConnection con = conns[team][player].con;
-        if (con == null)
-        {
-            return;
-        }
-        
-        OutputMessage msg = new OutputMessage();
-        BitOutput out = msg.getBitStream();
-        
+        long start = System.nanoTime();
         try
         {
-            out.writeInt(conns[team][player].lastCmd, 12); //sequence number of last recieved command
-            //out.writeInt(conns[team][player].lastGSAck, GameProtocol.TICK_TIME_FORMAT); //gsKeepFirst
-            out.writeInt(delta == null ? 0 : delta.currentTick, GameProtocol.TICK_TIME_FORMAT); //deltaTick
-            snapshot.write(out, delta);
-            out.align();
+            for (int i = 0; i < pendingUpdates.size(); i++)
+            {
+                pendingUpdates.get(i).get();
+            }
         }
-        catch (IOException e)
+        catch (InterruptedException e)
         {
             throw new RuntimeException(e.getMessage(), e);
         }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+        }
+        finally
+        {
+            pendingUpdates.clear();
+            blockedNanos += System.nanoTime() - start;
+        }
+    }
+    
+    /**
+     * Logs how many updates have been sent since the last time, how many of
+     * them had to be encoded, and how long the game thread has waited for
+     * them to be sent.
+     */
+    void reportUpdates()
+    {
+        int sent = updatesSent.getAndSet(0);
+        int encoded = updatesEncoded.getAndSet(0);
+        long bytes = bytesEncoded.getAndSet(0);
+        long blocked = blockedNanos;
+        blockedNanos = 0;
+        if (sent == 0)
+        {
+            return;
+        }
         
-        con.sendMessage(msg);
+        Logger.log("Game " + id + ": " + sent + " update" + SharedUtil.plural(sent) + " sent, " + (sent - encoded) + " sharing an encoding, "
+                + bytes + " byte" + SharedUtil.plural(bytes) + " encoded, blocked on sending for " + SharedUtil.getTimeString(blocked) + ".");
+    }
+    
+    /**
+     * @return The total time the game has waited for path queries, in nanoseconds.
+     */
+    long getPathWaitTime()
+    {
+        return gameState.paths.getWaitTime();
     }
     
     private boolean isEveryoneDisconnected()
@@ -318,9 +386,16 @@ public final class GameMain implements Runnable
         }
     }
     
-    void start()
+    void start(GameScheduler scheduler)
     {
-        thread.start();
+        Logger.log("Starting game " + id + "...");
+        setupConnections();
+        scheduler.add(this);
+    }
+    
+    boolean isStopped()
+    {
+        return shouldStop;
     }
     
     void stop()
@@ -353,6 +428,65 @@ public final class GameMain implements Runnable
         shouldStop = true;
     }
     
+    /**
+     * Encodes an update once, and sends it to all players it is for, each
+     * after their own header. Runs on an encoder, which only reads the game
+     * states, as they aren't changed after they are made.
+     */
+    private final class UpdateEncoding implements Runnable
+    {
+        private final GameState snapshot, delta;
+        private final List<UDPConnection> cons = new ArrayList<>(2);
+        private final TIntList lastCmds = new TIntArrayList(2);
+        
+        private UpdateEncoding(GameState snapshot, GameState delta)
+        {
+            this.snapshot = snapshot;
+            this.delta = delta;
+        }
+        
+        private void add(UDPConnection con, int lastCmd)
+        {
+            cons.add(con);
+            lastCmds.add(lastCmd);
+        }
+        
+        @Override
+        public void run()
+        {
+            try
+            {
+                //everything after the header of each player
+                ByteArrayOutputStream data = new ByteArrayOutputStream(64);
+                BitOutputStream out = new BitOutputStream(data);
+                out.writeInt(delta == null ? 0 : delta.currentTick, GameProtocol.TICK_TIME_FORMAT); //deltaTick
+                snapshot.write(out, delta);
+                long bits = out.writtenBits();
+                out.align();
+                byte[] bytes = data.toByteArray();
+                
+                for (int i = 0; i < cons.size(); i++)
+                {
+                    OutputMessage msg = new OutputMessage();
+                    BitOutputStream msgOut = msg.getBitStream();
+                    msgOut.writeInt(lastCmds.get(i), 12); //sequence number of last recieved command
+                    //msgOut.writeInt(conns[team][player].lastGSAck, GameProtocol.TICK_TIME_FORMAT); //gsKeepFirst
+                    msgOut.writeBits(bytes, bits);
+                    msgOut.align();
+                    cons.get(i).sendMessage(msg);
+                }
+                
+                updatesSent.addAndGet(cons.size());
+                updatesEncoded.incrementAndGet();
+                bytesEncoded.addAndGet(bytes.length);
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+    }
+    
     private static final class PlayerConnection
     {
         private final PlayerInfo info;
@@ -0,0 +1,243 @@
+package onlinegame.server.game;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import onlinegame.shared.GameUtil;
+import onlinegame.shared.Logger;
+import onlinegame.shared.SharedUtil;
+
+/**
+ * Runs the ticks of all games on a fixed number of worker threads, instead
+ * of a thread per game. Each game is given to the worker with the fewest
+ * games when it starts, and stays there, so its state stays in the caches
+ * of one core. A worker runs the game whose next tick is due first, and
+ * sleeps until then if none is due.
+ * <br />
+ * A game only waits for its path queries while no other game of its worker
+ * is due, and never past the time the next one is due, since a worker that
+ * waits for one game does nothing for the others. Queries that aren't done
+ * by then are delivered in a later tick.
+ * <br />
+ * How late each tick starts and how long the game waited for path queries
+ * are measured per game, and logged regularly and when the game ends.
+ *
+ * @author Alfred
+ */
+final class GameScheduler
+{
+    private static final long TICK_NANOS = 1_000_000_000L / GameUtil.SERVER_TICKRATE;
+    private static final long PATH_BUDGET_NANOS = (long)(GameUtil.SERVER_PATH_TIME_BUDGET * 1_000_000_000);
+    private static final int REPORT_INTERVAL = 60 * GameUtil.SERVER_TICKRATE; //ticks between the lateness reports of a game
+    
+    private final Worker[] workers;
+    
+    GameScheduler(int numWorkers)
+    {
+        workers = new Worker[numWorkers];
+        for (int i = 0; i < numWorkers; i++)
+        {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+        Logger.log("Game scheduler started with " + numWorkers + " worker" + SharedUtil.plural(numWorkers) + ".");
+    }
+    
+    /**
+     * Starts running the ticks of a game, until it is stopped.
+     * @param game The game.
+     */
+    void add(GameMain game)
+    {
+        Worker worker;
+        synchronized (this)
+        {
+            worker = workers[0];
+            for (int i = 1; i < workers.length; i++)
+            {
+                if (workers[i].numGames < worker.numGames)
+                {
+                    worker = workers[i];
+                }
+            }
+            worker.numGames++;
+        }
+        
+        worker.incoming.add(new ScheduledGame(game));
+        LockSupport.unpark(worker);
+    }
+    
+    private synchronized void removed(Worker worker)
+    {
+        worker.numGames--;
+    }
+    
+    private final class Worker extends Thread
+    {
+        private final Queue<ScheduledGame> incoming = new ConcurrentLinkedQueue<>();
+        private int numGames = 0; //guarded by the scheduler
+        
+        //the games of this worker by the time their next tick is due, only used by the worker
+        private final PriorityQueue<ScheduledGame> queue = new PriorityQueue<>(16, new Comparator<ScheduledGame>()
+        {
+            @Override
+            public int compare(ScheduledGame g1, ScheduledGame g2)
+            {
+                return Long.compare(g1.deadline, g2.deadline);
+            }
+        });
+        
+        private Worker(int index)
+        {
+            super("Game worker " + index);
+            setPriority(5);
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                ScheduledGame g;
+                while ((g = incoming.poll()) != null)
+                {
+                    g.deadline = System.nanoTime();
+                    queue.add(g);
+                }
+                
+                g = queue.peek();
+                if (g == null)
+                {
+                    LockSupport.park(this);
+                    continue;
+                }
+                
+                long now = System.nanoTime();
+                if (g.deadline > now)
+                {
+                    //woken up early by a new game, or spuriously
+                    LockSupport.parkNanos(this, g.deadline - now);
+                    continue;
+                }
+                queue.poll();
+                
+                if (g.game.isStopped() || !tick(g, now))
+                {
+                    g.report();
+                    removed(this);
+                    continue;
+                }
+                
+                //like FrameTimer, catch up on ticks that were a bit late, but not if it has fallen too far behind
+                if (now - g.deadline < TICK_NANOS)
+                {
+                    g.deadline += TICK_NANOS;
+                }
+                else
+                {
+                    g.deadline = now + TICK_NANOS;
+                }
+                queue.add(g);
+            }
+        }
+        
+        //returns whether the game should keep running
+        private boolean tick(ScheduledGame g, long now)
+        {
+            g.recordLateness(now - g.deadline);
+            
+            //the time until another game of this worker is due, which the game may spend waiting for its paths
+            ScheduledGame next = queue.peek();
+            long pathBudget = PATH_BUDGET_NANOS;
+            if (!incoming.isEmpty())
+            {
+                pathBudget = 0;
+            }
+            else if (next != null)
+            {
+                pathBudget = Math.max(0, Math.min(pathBudget, next.deadline - now));
+            }
+            
+            long waited = g.game.getPathWaitTime();
+            try
+            {
+                g.game.tick(pathBudget / 1e9);
+            }
+            catch (Throwable e)
+            {
+                //errors too, only the game that failed ends and the worker keeps running the others
+                Logger.logError("Game " + g.game.id + " crashed", e);
+                try
+                {
+                    GameHandler.stopGame(g.game);
+                }
+                catch (Throwable e2)
+                {
+                    Logger.logError("Game " + g.game.id + " could not be stopped", e2);
+                }
+                return false;
+            }
+            finally
+            {
+                g.pathWaitSum += g.game.getPathWaitTime() - waited;
+            }
+            
+            if (g.ticks % REPORT_INTERVAL == 0)
+            {
+                g.report();
+            }
+            return !g.game.isStopped();
+        }
+    }
+    
+    private static final class ScheduledGame
+    {
+        private final GameMain game;
+        private long deadline; //when the next tick is due, in System.nanoTime
+        
+        //the lateness of the ticks since the last report
+        private long ticks = 0;
+        private int reportTicks = 0;
+        private long latenessSum = 0, latenessMax = 0;
+        private int lateTicks = 0; //ticks that started a whole tick or more late
+        private long pathWaitSum = 0; //time spent waiting for path queries
+        
+        private ScheduledGame(GameMain game)
+        {
+            this.game = game;
+        }
+        
+        private void recordLateness(long lateness)
+        {
+            ticks++;
+            reportTicks++;
+            latenessSum += lateness;
+            latenessMax = Math.max(latenessMax, lateness);
+            if (lateness >= TICK_NANOS)
+            {
+                lateTicks++;
+            }
+        }
+        
+        private void report()
+        {
+            if (reportTicks == 0)
+            {
+                return;
+            }
+            
+            Logger.log("Game " + game.id + ": " + reportTicks + " tick" + SharedUtil.plural(reportTicks) + ", lateness "
+                    + SharedUtil.getTimeString(latenessSum / reportTicks) + " on average, " + SharedUtil.getTimeString(latenessMax) + " at most, "
+                    + lateTicks + " tick" + SharedUtil.plural(lateTicks) + " late by a tick or more, waited for paths for " + SharedUtil.getTimeString(pathWaitSum) + ".");
+            game.reportUpdates();
+            reportTicks = 0;
+            latenessSum = 0;
+            latenessMax = 0;
+            lateTicks = 0;
+            pathWaitSum = 0;
+        }
+    }
+}
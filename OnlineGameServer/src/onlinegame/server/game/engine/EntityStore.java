@@ -0,0 +1,118 @@
+package onlinegame.server.game.engine;
+
+import java.util.Arrays;
+import onlinegame.shared.game.pathfinder.ActorPath;
+
+/**
+ * The state of the entities of a game that is used every tick, kept in
+ * arrays indexed by a slot per entity instead of in the entities, so that
+ * systems like {@link MovementSystem} can go through all entities in a tight
+ * loop over memory that lies together.
+ * <br />
+ * The entities in the game occupy the slots from 0 to {@link #size()} - 1.
+ * When an entity is removed, the one in the last slot takes its place, so
+ * the slot of an entity can change and should only be kept for the current
+ * tick. {@link SEntity} reads and writes its state here while it is in the
+ * game, and keeps it itself before it is added and after it is removed.
+ * <br />
+ * Of the attributes of an actor, only the move speed is kept here, since
+ * the movement is the only system that needs one. All others stay in the
+ * {@link onlinegame.server.game.engine.status.SActorAttribs} of the actor.
+ *
+ * @author Alfred
+ */
+public final class EntityStore
+{
+    private static final int INITIAL_CAPACITY = 64;
+    
+    private int size = 0;
+    
+    SEntity[] entities = new SEntity[INITIAL_CAPACITY];
+    float[] x = new float[INITIAL_CAPACITY], y = new float[INITIAL_CAPACITY];
+    int[] team = new int[INITIAL_CAPACITY];
+    ActorPath[] path = new ActorPath[INITIAL_CAPACITY]; //null for entities that don't follow paths, or have reached the end of theirs
+    float[] moveSpeed = new float[INITIAL_CAPACITY]; //the move speed attribute, for following the path
+    
+    EntityStore() {}
+    
+    public int size()
+    {
+        return size;
+    }
+    
+    public SEntity getEntity(int slot)
+    {
+        return entities[slot];
+    }
+    
+    public float getX(int slot)
+    {
+        return x[slot];
+    }
+    
+    public float getY(int slot)
+    {
+        return y[slot];
+    }
+    
+    public int getTeam(int slot)
+    {
+        return team[slot];
+    }
+    
+    //gives the entity a slot, and its state to the slot
+    void add(SEntity e)
+    {
+        if (e.slot != -1)
+        {
+            throw new IllegalStateException("Entity already in the store: " + e.id);
+        }
+        if (size == entities.length)
+        {
+            int capacity = size * 2;
+            entities = Arrays.copyOf(entities, capacity);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            team = Arrays.copyOf(team, capacity);
+            path = Arrays.copyOf(path, capacity);
+            moveSpeed = Arrays.copyOf(moveSpeed, capacity);
+        }
+        
+        int slot = size++;
+        entities[slot] = e;
+        x[slot] = e.getXPos();
+        y[slot] = e.getYPos();
+        team[slot] = e.team;
+        path[slot] = null;
+        moveSpeed[slot] = 0;
+        e.slot = slot;
+        e.addedToStore();
+    }
+    
+    //gives the state in the slot back to the entity, and moves the last entity into the slot
+    void remove(SEntity e)
+    {
+        int slot = e.slot;
+        if (slot == -1)
+        {
+            return;
+        }
+        e.removedFromStore();
+        e.slot = -1;
+        
+        int last = --size;
+        if (slot != last)
+        {
+            SEntity moved = entities[last];
+            entities[slot] = moved;
+            x[slot] = x[last];
+            y[slot] = y[last];
+            team[slot] = team[last];
+            path[slot] = path[last];
+            moveSpeed[slot] = moveSpeed[last];
+            moved.slot = slot;
+        }
+        entities[last] = null;
+        path[last] = null;
+    }
+}
@@ -0,0 +1,50 @@
+package onlinegame.server.game.engine;
+
+import onlinegame.shared.game.pathfinder.ActorPath;
+
+/**
+ * Moves all entities that follow a path to their position on it at the
+ * start of a tick, in one pass over the {@link EntityStore}, instead of each
+ * actor doing it in its own update. The position on a path is a function of
+ * the time, so entities are moved whether they are awake or not, and once
+ * they have reached the end of their path they aren't looked at until they
+ * get another one.
+ * <br />
+ * Since this runs before any entity is updated, every update sees the
+ * positions of all entities in the current tick, no matter in which order
+ * the entities are updated. When actors moved themselves in their own
+ * update, an actor that was updated before its target saw where the target
+ * was in the previous tick.
+ *
+ * @author Alfred
+ */
+final class MovementSystem
+{
+    private MovementSystem() {}
+    
+    static void update(EntityStore store, SpatialGrid grid, double time)
+    {
+        ActorPath[] path = store.path;
+        float[] x = store.x, y = store.y, moveSpeed = store.moveSpeed;
+        for (int i = 0; i < store.size(); i++)
+        {
+            ActorPath p = path[i];
+            if (p == null)
+            {
+                continue;
+            }
+            
+            float nx = p.getPathXPos(time, moveSpeed[i]), ny = p.getPathYPos(time, moveSpeed[i]);
+            if (nx != x[i] || ny != y[i])
+            {
+                x[i] = nx;
+                y[i] = ny;
+                grid.move(store.entities[i]);
+            }
+            if ((time - p.startTime) * moveSpeed[i] >= p.length)
+            {
+                path[i] = null;
+            }
+        }
+    }
+}
@@ -9,11 +9,11 @@ import onlinegame.shared.game.GameProtocol;
 import onlinegame.shared.game.actions.AttackAction;
 import onlinegame.shared.game.pathfinder.ActorPath;
 import onlinegame.shared.game.pathfinder.Node;
+import onlinegame.shared.game.pathfinder.PathQuery;
 import onlinegame.shared.game.stats.AttribBuilder;
 import onlinegame.shared.game.stats.Attribs;
 import onlinegame.shared.game.stats.BaseAttribs;
 import onlinegame.server.game.engine.status.SActorAttribs;
-import org.joml.Vector2d;
 import static onlinegame.shared.game.stats.Attribs.*;
 
 /**
@@ -41,7 +41,9 @@ public abstract class SActor extends SEntity
             
             .finish();
     
-    protected ActorPath path;
+    protected ActorPath path; //changed with followPath, which keeps the store up to date
+    private PathQuery pathQuery = null; //the latest path query that hasn't been resolved yet
+    private float chaseGoalX = Float.NaN, chaseGoalY = Float.NaN; //the goal of the last full search while chasing, NaN if the path wasn't made for a chase
     protected SActor target;
     protected Action action;
     
@@ -56,6 +58,16 @@ public abstract class SActor extends SEntity
     private double cmdTime;
     private float cmdX, cmdY;
     private SActor cmdTarget = null;
+    private TimingWheel.Timer cmdExpiry = null; //removes the queued command once it is too old
+    private final Runnable expireCmd = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            cmdExpiry = null;
+            clearCmd();
+        }
+    };
     
     private double nextAttackTime = 0f;
     
@@ -73,10 +85,9 @@ public abstract class SActor extends SEntity
     {
         super.update();
         
-        updatePathPos();
+        //the actor has already been moved along its path by the movement system of the game
         
         double time = game.getCurrentTime();
-        if (time - cmdTime > GameUtil.SERVER_CMD_MAX_QUEUE_TIME) clearCmd(); //remove queued commands that are too old
         performCmd(time, true);
         boolean tryAgain = processTarget(time);
         
@@ -131,7 +142,7 @@ public abstract class SActor extends SEntity
                 if (time != game.getCurrentTime()) updatePathPos(game.getCurrentTime());
                 return false;
             }
-            else if (MathUtil.dist(xPos, yPos, target.xPos, target.yPos) < attribs.get(Attribs.ATTACK_RANGE))
+            else if (MathUtil.dist(getXPos(), getYPos(), target.getXPos(), target.getYPos()) < attribs.get(Attribs.ATTACK_RANGE))
             {
                 //stop moving
                 
@@ -197,6 +208,7 @@ public abstract class SActor extends SEntity
                             attribs.get(Attribs.ATTACK_PREHIT_OFFSET),
                             attribs.get(Attribs.ATTACK_POSTHIT_OFFSET),
                             attribs.get(Attribs.ATTACK_RELOAD_OFFSET));
+                    changed();
                     hasFired = false;
                     
                     //System.out.println("action started! (" + action.startTime + " - " + action.endTime + ")");
@@ -211,14 +223,14 @@ public abstract class SActor extends SEntity
                     return true;
                 }
             }
-            else if ((Math.abs(path.getEndX() - target.xPos) > .0001 || Math.abs(path.getEndY() - target.yPos) > .0001))
+            else if ((Math.abs(path.getEndX() - target.getXPos()) > .0001 || Math.abs(path.getEndY() - target.getYPos()) > .0001))
             {
                 if (action == null || action.allowMovement(time))
                 {
                     //move towards target
                     if ((game.getCurrentTick() - targetPathUpdateTick) % GameUtil.SERVER_PATH_UPDATE_INTERVAL == 0) //save cpu time by only updating path every X ticks
                     {
-                        findPathTo(action == null ? time : Math.max(action.allowMovementSince(time), game.getCurrentTime()-GameUtil.SERVER_TICK_DELTA), target.xPos, target.yPos);
+                        replanChase(action == null ? time : Math.max(action.allowMovementSince(time), game.getCurrentTime()-GameUtil.SERVER_TICK_DELTA));
                     }
                     if (time != game.getCurrentTime()) updatePathPos(game.getCurrentTime());
                     return false;
@@ -247,6 +259,41 @@ public abstract class SActor extends SEntity
     {
         super.postUpdate();
         attribs.recalculate();
+        float moveSpeed = attribs.get(Attribs.MOVE_SPEED);
+        if (slot != -1 && game.store.moveSpeed[slot] != moveSpeed)
+        {
+            //the position on the path changes with the speed, even after reaching its end at the old one
+            game.store.moveSpeed[slot] = moveSpeed;
+            game.store.path[slot] = path;
+        }
+    }
+    
+    @Override
+    protected int getNextUpdateTick()
+    {
+        int next = game.getCurrentTick() + 1;
+        if (target != null || cmdId != GameProtocol.CMD_NONE)
+        {
+            //chasing a target or waiting to carry out a command, which is checked every tick
+            return next;
+        }
+        if (action != null)
+        {
+            double time = action.endTime;
+            if (action.getActionId() == Action.A_ATTACK && !hasFired)
+            {
+                time = Math.min(time, ((AttackAction)action).postHitStart);
+            }
+            return Math.max(GameUtil.secondsToTicksCeil(time), next);
+        }
+        return Integer.MAX_VALUE;
+    }
+    
+    @Override
+    void addedToStore()
+    {
+        game.store.path[slot] = path;
+        game.store.moveSpeed[slot] = attribs.get(Attribs.MOVE_SPEED);
     }
     
     private void performCmd(double time, boolean allowBefore)
@@ -266,12 +313,31 @@ public abstract class SActor extends SEntity
     {
         this.cmdId = cmdId;
         cmdTime = game.getCurrentTime();
+        
+        //the first tick at which the command is too old
+        int expiryTick = GameUtil.secondsToTicksCeil(cmdTime + GameUtil.SERVER_CMD_MAX_QUEUE_TIME);
+        while (!(GameUtil.ticksToSeconds(expiryTick) - cmdTime > GameUtil.SERVER_CMD_MAX_QUEUE_TIME))
+        {
+            expiryTick++;
+        }
+        if (cmdExpiry != null)
+        {
+            cmdExpiry.cancel();
+        }
+        cmdExpiry = game.schedule(expiryTick, expireCmd);
+        
+        game.wake(this);
     }
     
     private void clearCmd()
     {
         cmdId = GameProtocol.CMD_NONE;
         cmdTarget = null;
+        if (cmdExpiry != null)
+        {
+            cmdExpiry.cancel();
+            cmdExpiry = null;
+        }
     }
     
     public void moveCommand(float x, float y)
@@ -377,23 +443,105 @@ public abstract class SActor extends SEntity
         return true;*/
     }
     
-    private final Vector2d tempVec2 = new Vector2d();
-    
-    protected void findPathTo(double time, float x, float y)
+    //the target usually moves only a little between updates, so the path to it is repaired instead of searched for if possible
+    private void replanChase(double time)
     {
-        updatePathPos();
-        
-        if (!game.pathfinder.nearestFreeSpace(x, y, game.map.scale * 64, tempVec2)) return;
-        Node[] nodes = game.pathfinder.findPath(xPos, yPos, tempVec2.x, tempVec2.y);
+        double drift = Double.POSITIVE_INFINITY;
+        if (pathQuery == null && !Float.isNaN(chaseGoalX))
+        {
+            drift = MathUtil.dist(chaseGoalX, chaseGoalY, target.getXPos(), target.getYPos());
+        }
         
+        Node[] nodes = game.paths.repairChase(path, time, attribs.get(Attribs.MOVE_SPEED), target.getXPos(), target.getYPos(), drift);
         if (nodes == null)
         {
-            stopMoving();
-            //path = new ActorPath(xPos, yPos, game.getCurrentTime());
+            findPathTo(time, target.getXPos(), target.getYPos(), true);
         }
         else
         {
-            path = new ActorPath(nodes, time);
+            followPath(new ActorPath(nodes, time));
+        }
+    }
+    
+    protected void findPathTo(double time, float x, float y)
+    {
+        findPathTo(time, x, y, false);
+    }
+    
+    //the path is searched for in the background and set at the end of the tick, or a later one if the search takes too long, following the partial path of the search meanwhile
+    private void findPathTo(final double time, final float x, final float y, final boolean chase)
+    {
+        updatePathPos();
+        cancelPathQuery();
+        chaseGoalX = Float.NaN;
+        chaseGoalY = Float.NaN;
+        final int submitTick = game.getCurrentTick();
+        
+        pathQuery = new PathQuery(getXPos(), getYPos(), x, y, game.map.scale * 64, new PathQuery.Listener()
+        {
+            private boolean partial = false; //true while following the partial path of the search
+            
+            @Override
+            public void pathResolved(PathQuery query)
+            {
+                pathQuery = null;
+                if (!query.hasGoal()) return;
+                
+                Node[] nodes = query.getPath();
+                if (nodes == null)
+                {
+                    stopMoving();
+                    //path = new ActorPath(xPos, yPos, game.getCurrentTime());
+                }
+                else
+                {
+                    if (partial || game.getCurrentTick() != submitTick)
+                    {
+                        //the actor has moved on since the search started, on the partial path or the one it had before, so continue from where it is
+                        Node[] spliced = game.paths.splicePath(path, game.getCurrentTime(), attribs.get(Attribs.MOVE_SPEED), nodes);
+                        if (spliced == null)
+                        {
+                            //it can't see the path anymore, so search again from here
+                            findPathTo(game.getCurrentTime(), x, y, chase);
+                            return;
+                        }
+                        followPath(new ActorPath(spliced, game.getCurrentTime()));
+                    }
+                    else
+                    {
+                        followPath(new ActorPath(nodes, time));
+                    }
+                    if (chase)
+                    {
+                        chaseGoalX = (float)query.getFreeGoalX();
+                        chaseGoalY = (float)query.getFreeGoalY();
+                    }
+                }
+            }
+            
+            @Override
+            public void pathPartial(PathQuery query)
+            {
+                //start walking instead of waiting for a long search, from where the actor has moved on to since the search started
+                Node[] spliced = game.paths.splicePath(path, game.getCurrentTime(), attribs.get(Attribs.MOVE_SPEED), query.getPartialPath());
+                if (spliced == null)
+                {
+                    //it can't see the partial path, so it keeps its current path until the search is done
+                    return;
+                }
+                followPath(new ActorPath(spliced, game.getCurrentTime()));
+                partial = true;
+            }
+        });
+        game.paths.submit(pathQuery);
+    }
+    
+    private void cancelPathQuery()
+    {
+        if (pathQuery != null)
+        {
+            pathQuery.cancel();
+            pathQuery = null;
         }
     }
     
@@ -404,10 +552,23 @@ public abstract class SActor extends SEntity
     
     public void stopMoving(double time)
     {
+        cancelPathQuery();
+        chaseGoalX = Float.NaN;
+        chaseGoalY = Float.NaN;
         updatePathPos(time);
         
-        if (path.numPoints() == 1 && path.getStartX() == xPos && path.getStartY() == yPos && path.startTime <= time) return; //already stopped
-        path = new ActorPath(xPos, yPos, time);
+        if (path.numPoints() == 1 && path.getStartX() == getXPos() && path.getStartY() == getYPos() && path.startTime <= time) return; //already stopped
+        followPath(new ActorPath(getXPos(), getYPos(), time));
+    }
+    
+    private void followPath(ActorPath path)
+    {
+        this.path = path;
+        changed();
+        if (slot != -1)
+        {
+            game.store.path[slot] = path;
+        }
     }
     
     private void updatePathPos()
@@ -417,13 +578,22 @@ public abstract class SActor extends SEntity
     
     private void updatePathPos(double time)
     {
-        xPos = path.getPathXPos(time, attribs.get(Attribs.MOVE_SPEED));
-        yPos = path.getPathYPos(time, attribs.get(Attribs.MOVE_SPEED));
+        setPos(path.getPathXPos(time, attribs.get(Attribs.MOVE_SPEED)), path.getPathYPos(time, attribs.get(Attribs.MOVE_SPEED)));
     }
     
     public void cancelAction()
     {
-        action = null;
+        if (action != null)
+        {
+            action = null;
+            changed();
+        }
+    }
+    
+    @Override
+    public float getHitRadius()
+    {
+        return hitRadius;
     }
     
     public final boolean canAttack(SEntity other)
@@ -436,5 +606,11 @@ public abstract class SActor extends SEntity
     }
     
     @Override
-    public abstract Actor getSnapshot();
+    protected int getSnapshotVersion()
+    {
+        return super.getSnapshotVersion() + attribs.getVersion();
+    }
+    
+    @Override
+    protected abstract Actor createSnapshot();
 }
@@ -14,7 +14,7 @@ public final class SCasterMinion extends SMinion
     }
     
     @Override
-    public CasterMinion getSnapshot()
+    protected CasterMinion createSnapshot()
     {
         return new CasterMinion(id, team, path, action, attribs);
     }
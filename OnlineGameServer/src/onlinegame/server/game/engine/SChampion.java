@@ -21,7 +21,7 @@ public class SChampion extends SActor
     }
     
     @Override
-    public Champion getSnapshot()
+    protected Champion createSnapshot()
     {
         return new Champion(id, team, path, action, attribs, champion, account.getUsername());
     }
@@ -2,6 +2,7 @@ package onlinegame.server.game.engine;
 
 import java.util.ArrayList;
 import java.util.List;
+import onlinegame.shared.MathUtil;
 import onlinegame.shared.game.Entity;
 
 /**
@@ -13,9 +14,20 @@ public abstract class SEntity
     public final SGameState game;
     public final int id;
     
-    protected float xPos, yPos;
+    private float xPos, yPos; //the position while the entity isn't in the store of the game
     public final int team;
     
+    int slot = -1; //the slot of the entity in the store of the game, -1 if it isn't in it
+    int gridCell = -1, gridSlot = -1; //the place of the entity in the grid of the game, -1 if it isn't in it
+    
+    int order; //the position of the entity in the update order
+    boolean awake = false; //whether the entity is updated every tick, or sleeps until its next update tick
+    TimingWheel.Timer wakeup = null; //the scheduled end of the sleep, if any
+    
+    private int version = 0; //counts the changes to the state that snapshots are made of
+    private Entity snapshot = null; //the last snapshot, which is reused until the version changes
+    private int snapshotVersion;
+    
     public SEntity(SGameState game, float xPos, float yPos, int team)
     {
         this.game = game;
@@ -29,17 +41,44 @@ public abstract class SEntity
     
     public void postUpdate() {}
     
+    /**
+     * Called after {@link #postUpdate}, to find out when the entity needs to
+     * be updated again. Until then, update and postUpdate aren't called,
+     * which must make no difference to the game other than not taking time.
+     * Anything that changes that, like a command, has to wake the entity
+     * with {@link SGameState#wake}.
+     * @return The next tick the entity must be updated at, the next tick if
+     *  it needs to be updated every tick, or Integer.MAX_VALUE if it only
+     *  needs to be updated when woken.
+     */
+    protected int getNextUpdateTick()
+    {
+        return game.getCurrentTick() + 1;
+    }
+    
+    /**
+     * @return The radius of the circle the entity occupies, 0 if it's only a point.
+     */
+    public float getHitRadius()
+    {
+        return 0;
+    }
+    
     public boolean collision(SEntity other)
     {
-        throw new UnsupportedOperationException("Not yet implemented.");
+        float r = getHitRadius() + other.getHitRadius();
+        return other != this && MathUtil.distSqr(getXPos(), getYPos(), other.getXPos(), other.getYPos()) < r * r;
     }
     public List<SEntity> collision()
     {
         ArrayList<SEntity> collisions = new ArrayList<>();
         
-        for (int i = 0; i < game.numEntities(); i++)
+        //only the entities close enough to possibly collide are tested
+        List<SEntity> near = new ArrayList<>();
+        game.grid.findInRadius(getXPos(), getYPos(), getHitRadius() + game.getMaxHitRadius(), SpatialGrid.ALL_TEAMS, near);
+        for (int i = 0; i < near.size(); i++)
         {
-            SEntity e = game.getEntity(i);
+            SEntity e = near.get(i);
             if (collision(e))
             {
                 collisions.add(e);
@@ -49,15 +88,84 @@ public abstract class SEntity
         return collisions;
     }
     
-    public abstract Entity getSnapshot();
+    /**
+     * @return A snapshot of the entity. The same object is returned as long
+     *  as {@link #getSnapshotVersion} stays the same, so unchanged entities
+     *  can be told apart from changed ones by reference.
+     */
+    public final Entity getSnapshot()
+    {
+        int v = getSnapshotVersion();
+        if (snapshot == null || snapshotVersion != v)
+        {
+            snapshot = createSnapshot();
+            snapshotVersion = v;
+        }
+        return snapshot;
+    }
+    
+    protected abstract Entity createSnapshot();
+    
+    /**
+     * Marks the state that snapshots are made of as changed, which subclasses
+     * must do whenever it changes, so that the next snapshot is made anew.
+     */
+    protected final void changed()
+    {
+        version++;
+    }
+    
+    /**
+     * @return A number that changes whenever the state that snapshots are
+     *  made of changes. Subclasses with state that counts its own changes
+     *  can add that to it.
+     */
+    protected int getSnapshotVersion()
+    {
+        return version;
+    }
     
     public final float getXPos()
     {
-        return xPos;
+        return slot == -1 ? xPos : game.store.x[slot];
     }
     
     public final float getYPos()
     {
-        return yPos;
+        return slot == -1 ? yPos : game.store.y[slot];
+    }
+    
+    /**
+     * Moves the entity, which must be done with this method so that the grid
+     * of the game stays up to date.
+     * @param x The new x coordinate.
+     * @param y The new y coordinate.
+     */
+    protected final void setPos(float x, float y)
+    {
+        if (slot == -1)
+        {
+            xPos = x;
+            yPos = y;
+        }
+        else
+        {
+            game.store.x[slot] = x;
+            game.store.y[slot] = y;
+        }
+        if (gridCell != -1)
+        {
+            game.grid.move(this);
+        }
+    }
+    
+    //called when the entity has been given a slot in the store, for subclasses to put their state there
+    void addedToStore() {}
+    
+    //called before the entity leaves its slot in the store
+    void removedFromStore()
+    {
+        xPos = game.store.x[slot];
+        yPos = game.store.y[slot];
     }
 }
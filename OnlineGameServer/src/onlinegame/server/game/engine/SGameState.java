@@ -3,6 +3,7 @@ package onlinegame.server.game.engine;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import onlinegame.server.game.PlayerInfo;
 import onlinegame.shared.GameUtil;
@@ -10,33 +11,58 @@ import onlinegame.shared.game.Entity;
 import onlinegame.shared.game.GameMap;
 import onlinegame.shared.game.GameProtocol;
 import onlinegame.shared.game.GameState;
-import onlinegame.shared.game.pathfinder.Pathfinder;
+import onlinegame.shared.game.pathfinder.PathService;
 
 /**
+ * The state of a game on the server.
+ * <br />
+ * Only the entities that are awake are updated each tick. After its update,
+ * an entity tells when it needs to be updated next (see
+ * {@link SEntity#getNextUpdateTick}), and sleeps until then if that isn't
+ * the next tick, while the movement system keeps moving it along its path.
+ * The awake entities are updated in the order they were added in, like all
+ * entities were before, so a game runs exactly the same as if all of them
+ * were updated every tick.
  *
  * @author Alfred
  */
 public final class SGameState
 {
+    private static final float GRID_CELL_SIZE = 4; //about the attack range, the most common query
+    
     private final List<SEntity> entities = new ArrayList<>();
     private final List<SEntity> adding = new ArrayList<>();
     private final List<SEntity> removing = new ArrayList<>();
     private final TIntObjectMap<SEntity> idMap = new TIntObjectHashMap<>();
     
+    private final List<SEntity> awake = new ArrayList<>(); //in update order
+    private final List<SEntity> waking = new ArrayList<>(); //to be put among the awake ones at the start of the next update
+    private final TimingWheel timers = new TimingWheel(0);
+    
     private int idCounter = 1;
+    private int orderCounter = 0;
+    
+    private float maxHitRadius = 0; //of all entities that have been added
     
     private int currentTick = 0;
     
     private final SChampion[][] players;
     private final int[][] playerIds;
     
+    private GameState lastSnapshot = null;
+    private Entity[] lastSnapshotEntities = null;
+    
     public final GameMap map;
-    public final Pathfinder pathfinder;
+    public final PathService paths;
+    public final SpatialGrid grid;
+    public final EntityStore store = new EntityStore();
     
     public SGameState(GameMap map, PlayerInfo[][] playerInfo)
     {
-        this.map = map;
-        pathfinder = new Pathfinder(map, .3);
+        //a copy of its own, since the map can be changed during the game and other games may use the same one
+        this.map = map.copy();
+        paths = new PathService(this.map, .3);
+        grid = new SpatialGrid(this.map.getScaledWidth(), this.map.getScaledHeight(), GRID_CELL_SIZE);
         
         players = new SChampion[2][];
         playerIds = new int[2][];
@@ -81,20 +107,155 @@ public final class SGameState
     }
     
     public void update()
+    {
+        update(GameUtil.SERVER_PATH_TIME_BUDGET);
+    }
+    
+    /**
+     * Runs one tick.
+     * @param pathBudget The longest time to wait for the path queries made in this tick, in seconds. The ones that aren't done by then are delivered in a later tick.
+     */
+    public void update(double pathBudget)
     {
         currentTick++;
         
-        for (int i = 0; i < entities.size(); i++)
+        MovementSystem.update(store, grid, getCurrentTime());
+        
+        //the timers of this tick run before the entities are updated, and wake the entities whose sleep ends now
+        timers.advance(currentTick);
+        
+        for (int i = 0; i < waking.size(); i++)
+        {
+            SEntity e = waking.get(i);
+            if (!e.awake && e.slot != -1)
+            {
+                addAwake(e);
+            }
+        }
+        waking.clear();
+        
+        for (int i = 0; i < awake.size(); i++)
         {
-            entities.get(i).update();
+            awake.get(i).update();
         }
         
+        //the path queries made by the entities are resolved together, and delivered to them here
+        paths.process(pathBudget);
+        
         addAndRemove();
         
-        for (int i = 0; i < entities.size(); i++)
+        for (int i = 0; i < awake.size(); i++)
+        {
+            awake.get(i).postUpdate();
+        }
+        
+        //put the entities that don't need to be updated next tick to sleep
+        int numAwake = 0;
+        for (int i = 0; i < awake.size(); i++)
+        {
+            SEntity e = awake.get(i);
+            int next = e.getNextUpdateTick();
+            if (next <= currentTick + 1)
+            {
+                awake.set(numAwake++, e);
+            }
+            else
+            {
+                e.awake = false;
+                if (next != Integer.MAX_VALUE)
+                {
+                    e.wakeup = timers.schedule(next, new Wakeup(e));
+                }
+            }
+        }
+        awake.subList(numAwake, awake.size()).clear();
+    }
+    
+    /**
+     * Makes an entity be updated from the next tick on, until it goes to
+     * sleep again. Has to be called when something happens to an entity
+     * that it didn't expect when it went to sleep, like a command.
+     * @param e The entity.
+     */
+    public void wake(SEntity e)
+    {
+        if (e.awake)
+        {
+            return;
+        }
+        if (e.wakeup != null)
         {
-            entities.get(i).postUpdate();
+            e.wakeup.cancel();
+            e.wakeup = null;
         }
+        waking.add(e);
+    }
+    
+    /**
+     * Schedules something to happen at the start of a tick, before the
+     * entities are updated.
+     * @param tick The tick, the next one if it has already started.
+     * @param callback What to do.
+     * @return The timer, which can be used to cancel it.
+     */
+    public TimingWheel.Timer schedule(int tick, Runnable callback)
+    {
+        return timers.schedule(tick, callback);
+    }
+    
+    //the awake entities are kept in the order they were added in
+    private void addAwake(SEntity e)
+    {
+        int low = 0, high = awake.size();
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (awake.get(mid).order < e.order)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+        awake.add(low, e);
+        e.awake = true;
+    }
+    
+    private void removeAwake(SEntity e)
+    {
+        if (e.awake)
+        {
+            int low = 0, high = awake.size() - 1;
+            while (awake.get((low + high) >>> 1) != e)
+            {
+                int mid = (low + high) >>> 1;
+                if (awake.get(mid).order < e.order)
+                {
+                    low = mid + 1;
+                }
+                else
+                {
+                    high = mid - 1;
+                }
+            }
+            awake.remove((low + high) >>> 1);
+            e.awake = false;
+        }
+        if (e.wakeup != null)
+        {
+            e.wakeup.cancel();
+            e.wakeup = null;
+        }
+    }
+    
+    /**
+     * @return The number of entities that are updated each tick, the others are asleep.
+     */
+    public int numAwake()
+    {
+        return awake.size();
     }
     
     public void moveCommand(SActor a, float x, float y)
@@ -114,6 +275,14 @@ public final class SGameState
         {
             SEntity e = adding.get(i);
             idMap.put(e.id, e);
+            store.add(e);
+            grid.add(e);
+            e.order = orderCounter++;
+            if (!e.awake)
+            {
+                addAwake(e);
+            }
+            maxHitRadius = Math.max(maxHitRadius, e.getHitRadius());
         }
         adding.clear();
         
@@ -122,6 +291,9 @@ public final class SGameState
         {
             SEntity e = removing.get(i);
             idMap.remove(e.id);
+            grid.remove(e);
+            store.remove(e);
+            removeAwake(e);
         }
         removing.clear();
         
@@ -162,6 +334,15 @@ public final class SGameState
         return e != null && idMap.containsKey(e.id);
     }
     
+    /**
+     * @return The largest hit radius of any entity, for finding the entities
+     *  that might collide with a circle in the grid.
+     */
+    public float getMaxHitRadius()
+    {
+        return maxHitRadius;
+    }
+    
     public SChampion getPlayerChampion(int team, int player)
     {
         return players[team][player];
@@ -174,13 +355,47 @@ public final class SGameState
     
     public GameState getSnapshot()
     {
-        Entity[] e = new Entity[entities.size()];
+        //the array of the last snapshot is reused if no entity has changed, and the snapshots of unchanged entities are too
+        int n = entities.size();
+        Entity[] prev = lastSnapshot == null || lastSnapshotEntities.length != n ? null : lastSnapshotEntities;
+        Entity[] e = prev == null ? new Entity[n] : null;
+        for (int i = 0; i < n; i++)
+        {
+            Entity s = entities.get(i).getSnapshot();
+            if (e == null && s != prev[i])
+            {
+                e = Arrays.copyOf(prev, n);
+            }
+            if (e != null)
+            {
+                e[i] = s;
+            }
+        }
+        if (e == null)
+        {
+            e = prev;
+        }
         
-        for (int i = 0; i < entities.size(); i++)
+        lastSnapshotEntities = e;
+        lastSnapshot = new GameState(e, currentTick, playerIds, lastSnapshot);
+        return lastSnapshot;
+    }
+    
+    //ends the sleep of an entity
+    private final class Wakeup implements Runnable
+    {
+        private final SEntity entity;
+        
+        private Wakeup(SEntity entity)
         {
-            e[i] = entities.get(i).getSnapshot();
+            this.entity = entity;
         }
         
-        return new GameState(e, currentTick, playerIds);
+        @Override
+        public void run()
+        {
+            entity.wakeup = null;
+            waking.add(entity);
+        }
     }
 }
@@ -14,5 +14,5 @@ public abstract class SMinion extends SActor
     }
     
     @Override
-    public abstract Minion getSnapshot();
+    protected abstract Minion createSnapshot();
 }
@@ -0,0 +1,331 @@
+package onlinegame.server.game.engine;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A uniform grid of the entities of a game, so that the entities near a
+ * point can be found without looking at all of them. Each entity is kept in
+ * the cell its position lies in, and moved to another cell when its position
+ * changes, which {@link SEntity#setPos} does.
+ * <br />
+ * Positions outside of the map are kept in the nearest border cell, so all
+ * queries work for them too, only slower if many entities are far outside.
+ * <br />
+ * Queries take a mask of the teams to include, see {@link #teamMask} and
+ * {@link #ALL_TEAMS}.
+ *
+ * @author Alfred
+ */
+public final class SpatialGrid
+{
+    public static final int ALL_TEAMS = -1;
+    
+    private static final int INITIAL_CELL_CAPACITY = 4;
+    
+    public final float cellSize;
+    private final float invCellSize;
+    public final int width, height;
+    
+    private final SEntity[][] cells;
+    private final int[] counts;
+    private int size = 0;
+    
+    //reused by findNearest
+    private SEntity[] nearest = new SEntity[0];
+    private double[] nearestDist = new double[0];
+    
+    /**
+     * @param scaledWidth The width of the area to cover, in world units.
+     * @param scaledHeight The height of the area to cover, in world units.
+     * @param cellSize The size of a cell, in world units. Queries are fastest
+     *  when it's about as large as their radius.
+     */
+    public SpatialGrid(float scaledWidth, float scaledHeight, float cellSize)
+    {
+        if (!(cellSize > 0))
+        {
+            throw new IllegalArgumentException("Invalid cell size: " + cellSize);
+        }
+        
+        this.cellSize = cellSize;
+        invCellSize = 1f / cellSize;
+        width = Math.max((int)Math.ceil(scaledWidth * invCellSize), 1);
+        height = Math.max((int)Math.ceil(scaledHeight * invCellSize), 1);
+        
+        cells = new SEntity[width * height][];
+        counts = new int[width * height];
+    }
+    
+    /**
+     * @param team A team.
+     * @return The mask of only that team.
+     */
+    public static int teamMask(int team)
+    {
+        return 1 << team;
+    }
+    
+    /**
+     * @param team A team.
+     * @return The mask of all teams except that one.
+     */
+    public static int otherTeamsMask(int team)
+    {
+        return ~(1 << team);
+    }
+    
+    public int size()
+    {
+        return size;
+    }
+    
+    private int cellX(double x)
+    {
+        return x <= 0 ? 0 : Math.min((int)(x * invCellSize), width - 1);
+    }
+    
+    private int cellY(double y)
+    {
+        return y <= 0 ? 0 : Math.min((int)(y * invCellSize), height - 1);
+    }
+    
+    private int cellOf(SEntity e)
+    {
+        return cellX(e.getXPos()) + cellY(e.getYPos()) * width;
+    }
+    
+    void add(SEntity e)
+    {
+        if (e.gridCell != -1)
+        {
+            throw new IllegalStateException("Entity already in the grid: " + e.id);
+        }
+        addToCell(e, cellOf(e));
+        size++;
+    }
+    
+    void remove(SEntity e)
+    {
+        if (e.gridCell == -1)
+        {
+            return;
+        }
+        removeFromCell(e);
+        size--;
+    }
+    
+    //called when the position of an entity in the grid has changed
+    void move(SEntity e)
+    {
+        int cell = cellOf(e);
+        if (cell != e.gridCell)
+        {
+            removeFromCell(e);
+            addToCell(e, cell);
+        }
+    }
+    
+    private void addToCell(SEntity e, int cell)
+    {
+        SEntity[] list = cells[cell];
+        int count = counts[cell];
+        if (list == null)
+        {
+            list = cells[cell] = new SEntity[INITIAL_CELL_CAPACITY];
+        }
+        else if (count == list.length)
+        {
+            list = cells[cell] = Arrays.copyOf(list, count * 2);
+        }
+        
+        list[count] = e;
+        counts[cell] = count + 1;
+        e.gridCell = cell;
+        e.gridSlot = count;
+    }
+    
+    //the last entity of the cell takes the place of the removed one
+    private void removeFromCell(SEntity e)
+    {
+        int cell = e.gridCell;
+        SEntity[] list = cells[cell];
+        int last = --counts[cell];
+        SEntity moved = list[last];
+        list[e.gridSlot] = moved;
+        moved.gridSlot = e.gridSlot;
+        list[last] = null;
+        
+        e.gridCell = -1;
+        e.gridSlot = -1;
+    }
+    
+    /**
+     * Finds the entities within a distance of a point.
+     * @param x The x coordinate of the point.
+     * @param y The y coordinate of the point.
+     * @param radius The distance.
+     * @param teams The mask of the teams to include.
+     * @param dest The list to add the entities to, in no particular order.
+     */
+    public void findInRadius(double x, double y, double radius, int teams, List<SEntity> dest)
+    {
+        double radiusSqr = radius * radius;
+        int cx1 = cellX(x - radius), cy1 = cellY(y - radius);
+        int cx2 = cellX(x + radius), cy2 = cellY(y + radius);
+        for (int cy = cy1; cy <= cy2; cy++)
+        {
+            for (int cx = cx1; cx <= cx2; cx++)
+            {
+                int cell = cx + cy * width;
+                SEntity[] list = cells[cell];
+                for (int i = 0; i < counts[cell]; i++)
+                {
+                    SEntity e = list[i];
+                    if ((teams & (1 << e.team)) != 0)
+                    {
+                        double dx = e.getXPos() - x, dy = e.getYPos() - y;
+                        if (dx * dx + dy * dy <= radiusSqr)
+                        {
+                            dest.add(e);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Finds the entities within a rectangle, including its edges.
+     * @param x1 The smallest x coordinate of the rectangle.
+     * @param y1 The smallest y coordinate of the rectangle.
+     * @param x2 The largest x coordinate of the rectangle.
+     * @param y2 The largest y coordinate of the rectangle.
+     * @param teams The mask of the teams to include.
+     * @param dest The list to add the entities to, in no particular order.
+     */
+    public void findInBox(double x1, double y1, double x2, double y2, int teams, List<SEntity> dest)
+    {
+        int cx1 = cellX(x1), cy1 = cellY(y1);
+        int cx2 = cellX(x2), cy2 = cellY(y2);
+        for (int cy = cy1; cy <= cy2; cy++)
+        {
+            for (int cx = cx1; cx <= cx2; cx++)
+            {
+                int cell = cx + cy * width;
+                SEntity[] list = cells[cell];
+                for (int i = 0; i < counts[cell]; i++)
+                {
+                    SEntity e = list[i];
+                    if ((teams & (1 << e.team)) != 0)
+                    {
+                        float ex = e.getXPos(), ey = e.getYPos();
+                        if (ex >= x1 && ey >= y1 && ex <= x2 && ey <= y2)
+                        {
+                            dest.add(e);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Finds the entities closest to a point. The cells are searched in rings
+     * around the point, until no cell that is left can be closer than the
+     * entities already found.
+     * @param x The x coordinate of the point.
+     * @param y The y coordinate of the point.
+     * @param k The largest number of entities to find.
+     * @param maxDist The largest distance of the entities to find.
+     * @param teams The mask of the teams to include.
+     * @param exclude An entity to leave out, e.g. the one searching, or null.
+     * @param dest The list to add the entities to, closest first.
+     * @return The number of entities found.
+     */
+    public int findNearest(double x, double y, int k, double maxDist, int teams, SEntity exclude, List<SEntity> dest)
+    {
+        if (k <= 0)
+        {
+            return 0;
+        }
+        if (nearest.length < k)
+        {
+            nearest = new SEntity[k];
+            nearestDist = new double[k];
+        }
+        
+        //distances to the cells are measured from the point moved onto the grid, which entities outside of it are too
+        double gx = Math.max(0, Math.min(x, width * cellSize)), gy = Math.max(0, Math.min(y, height * cellSize));
+        int ccx = cellX(x), ccy = cellY(y);
+        int maxRing = Math.max(Math.max(ccx, width - 1 - ccx), Math.max(ccy, height - 1 - ccy));
+        
+        double maxDistSqr = maxDist * maxDist;
+        int found = 0;
+        for (int r = 0; r <= maxRing; r++)
+        {
+            if (r > 0)
+            {
+                //entities in this ring are at least as far away as the edge of the previous rings, on the sides that have cells left
+                double edge = Double.POSITIVE_INFINITY;
+                if (ccx - r >= 0) edge = Math.min(edge, gx - (ccx - r + 1) * cellSize);
+                if (ccx + r < width) edge = Math.min(edge, (ccx + r) * cellSize - gx);
+                if (ccy - r >= 0) edge = Math.min(edge, gy - (ccy - r + 1) * cellSize);
+                if (ccy + r < height) edge = Math.min(edge, (ccy + r) * cellSize - gy);
+                double edgeSqr = edge * edge;
+                if (edgeSqr > maxDistSqr || (found == k && edgeSqr > nearestDist[k - 1]))
+                {
+                    break;
+                }
+            }
+            
+            for (int cy = Math.max(ccy - r, 0); cy <= Math.min(ccy + r, height - 1); cy++)
+            {
+                boolean edgeRow = cy == ccy - r || cy == ccy + r;
+                int step = edgeRow ? 1 : 2 * r;
+                for (int cx = ccx - r; cx <= ccx + r; cx += step)
+                {
+                    if (cx < 0 || cx >= width)
+                    {
+                        continue;
+                    }
+                    
+                    int cell = cx + cy * width;
+                    SEntity[] list = cells[cell];
+                    for (int i = 0; i < counts[cell]; i++)
+                    {
+                        SEntity e = list[i];
+                        if ((teams & (1 << e.team)) == 0 || e == exclude)
+                        {
+                            continue;
+                        }
+                        
+                        double dx = e.getXPos() - x, dy = e.getYPos() - y;
+                        double distSqr = dx * dx + dy * dy;
+                        if (distSqr > maxDistSqr || (found == k && distSqr >= nearestDist[k - 1]))
+                        {
+                            continue;
+                        }
+                        
+                        //insertion into the sorted list of the closest ones so far
+                        int j = found == k ? k - 1 : found++;
+                        for (; j > 0 && nearestDist[j - 1] > distSqr; j--)
+                        {
+                            nearest[j] = nearest[j - 1];
+                            nearestDist[j] = nearestDist[j - 1];
+                        }
+                        nearest[j] = e;
+                        nearestDist[j] = distSqr;
+                    }
+                }
+            }
+        }
+        
+        for (int i = 0; i < found; i++)
+        {
+            dest.add(nearest[i]);
+            nearest[i] = null;
+        }
+        return found;
+    }
+}
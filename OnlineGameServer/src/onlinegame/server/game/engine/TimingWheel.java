@@ -0,0 +1,222 @@
+package onlinegame.server.game.engine;
+
+/**
+ * Runs callbacks at the tick they were scheduled for. Scheduling and
+ * cancelling take constant time, and so does each tick apart from the
+ * callbacks that are run, however many timers are waiting.
+ * <br />
+ * The timers are kept in four levels of 256 slots each. A timer due within
+ * 256 ticks lies in the slot of its tick on the first level. A timer due
+ * later lies in a slot of the level whose slots are just long enough, and
+ * is moved down a level when the tick reaches the start of its slot, so
+ * every timer is moved at most three times.
+ * <br />
+ * Timers that are due in the same tick run in the order they were
+ * scheduled in, unless they were scheduled on different levels.
+ *
+ * @author Alfred
+ */
+public final class TimingWheel
+{
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    
+    //the first and last timer in each slot, the slots of the first level come first
+    private final Timer[] heads = new Timer[LEVELS * SLOTS];
+    private final Timer[] tails = new Timer[LEVELS * SLOTS];
+    
+    private int currentTick;
+    private int size = 0;
+    private long fired = 0;
+    
+    /**
+     * @param currentTick The tick the wheel starts at, timers can be scheduled from the one after it.
+     */
+    public TimingWheel(int currentTick)
+    {
+        if (currentTick < 0)
+        {
+            throw new IllegalArgumentException("Invalid tick: " + currentTick);
+        }
+        this.currentTick = currentTick;
+    }
+    
+    /**
+     * @return The last tick the wheel has been advanced to.
+     */
+    public int getCurrentTick()
+    {
+        return currentTick;
+    }
+    
+    /**
+     * @return The number of timers that are waiting.
+     */
+    public int size()
+    {
+        return size;
+    }
+    
+    /**
+     * @return The number of timers that have run.
+     */
+    public long getFiredCount()
+    {
+        return fired;
+    }
+    
+    /**
+     * Schedules a callback.
+     * @param tick The tick to run it at. If it has already been advanced to,
+     *  the callback runs at the next tick instead.
+     * @param callback The callback.
+     * @return The timer, which can be used to cancel it.
+     */
+    public Timer schedule(int tick, Runnable callback)
+    {
+        Timer t = new Timer(this, Math.max(tick, currentTick + 1), callback);
+        insert(t);
+        size++;
+        return t;
+    }
+    
+    /**
+     * Advances the wheel to a tick, running all callbacks that are due until
+     * then, including the ones scheduled by them.
+     * @param tick The tick.
+     */
+    public void advance(int tick)
+    {
+        while (currentTick < tick)
+        {
+            currentTick++;
+            
+            //move the timers of the slots that start now down a level, from the top
+            for (int level = LEVELS - 1; level > 0; level--)
+            {
+                int shift = level * SLOT_BITS;
+                if ((currentTick & ((1 << shift) - 1)) == 0)
+                {
+                    int slot = level * SLOTS + ((currentTick >>> shift) & SLOT_MASK);
+                    Timer t = heads[slot];
+                    heads[slot] = null;
+                    tails[slot] = null;
+                    while (t != null)
+                    {
+                        Timer next = t.next;
+                        insert(t);
+                        t = next;
+                    }
+                }
+            }
+            
+            int slot = currentTick & SLOT_MASK;
+            Timer t;
+            while ((t = heads[slot]) != null)
+            {
+                unlink(t);
+                size--;
+                fired++;
+                t.callback.run();
+            }
+        }
+    }
+    
+    //puts a timer in the slot it belongs in for the current tick
+    private void insert(Timer t)
+    {
+        int delta = t.tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1 << ((level + 1) * SLOT_BITS))
+        {
+            level++;
+        }
+        
+        int slot = level * SLOTS + ((t.tick >>> (level * SLOT_BITS)) & SLOT_MASK);
+        t.slot = slot;
+        t.next = null;
+        t.prev = tails[slot];
+        if (t.prev == null)
+        {
+            heads[slot] = t;
+        }
+        else
+        {
+            t.prev.next = t;
+        }
+        tails[slot] = t;
+    }
+    
+    private void unlink(Timer t)
+    {
+        if (t.prev == null)
+        {
+            heads[t.slot] = t.next;
+        }
+        else
+        {
+            t.prev.next = t.next;
+        }
+        if (t.next == null)
+        {
+            tails[t.slot] = t.prev;
+        }
+        else
+        {
+            t.next.prev = t.prev;
+        }
+        t.prev = null;
+        t.next = null;
+        t.slot = -1;
+    }
+    
+    /**
+     * A scheduled callback.
+     */
+    public static final class Timer
+    {
+        private final TimingWheel wheel;
+        private final int tick;
+        private final Runnable callback;
+        
+        private int slot = -1; //-1 once it has run or been cancelled
+        private Timer prev, next;
+        
+        private Timer(TimingWheel wheel, int tick, Runnable callback)
+        {
+            this.wheel = wheel;
+            this.tick = tick;
+            this.callback = callback;
+        }
+        
+        /**
+         * @return The tick the callback runs at.
+         */
+        public int getTick()
+        {
+            return tick;
+        }
+        
+        /**
+         * @return Whether the callback hasn't run or been cancelled yet.
+         */
+        public boolean isPending()
+        {
+            return slot != -1;
+        }
+        
+        /**
+         * Keeps the callback from running, if it hasn't already.
+         */
+        public void cancel()
+        {
+            if (slot != -1)
+            {
+                wheel.unlink(this);
+                wheel.size--;
+            }
+        }
+    }
+}
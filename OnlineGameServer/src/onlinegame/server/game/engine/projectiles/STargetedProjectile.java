@@ -22,9 +22,6 @@ public class STargetedProjectile extends SEntity
         this.target = target;
         this.speed = speed;
         this.startTime = startTime;
-        
-        xPos = source.getXPos();
-        yPos = source.getYPos();
     }
     
     @Override
@@ -39,14 +36,13 @@ public class STargetedProjectile extends SEntity
         }
         
         double delta = game.getTickDelta();
-        double dx = target.getXPos() - xPos;
-        double dy = target.getYPos() - yPos;
+        double dx = target.getXPos() - getXPos();
+        double dy = target.getYPos() - getYPos();
         double dist = Math.sqrt(dx * dx + dy * dy) / speed / delta;
         
         if (dist < 1)
         {
-            xPos = target.getXPos();
-            yPos = target.getYPos();
+            setPos(target.getXPos(), target.getYPos());
             
             //target hit
             //System.out.println("HIT!!!");
@@ -55,13 +51,12 @@ public class STargetedProjectile extends SEntity
         else
         {
             float f = (float)(1. / dist);
-            xPos = MathUtil.lerp(xPos, target.getXPos(), f);
-            yPos = MathUtil.lerp(yPos, target.getYPos(), f);
+            setPos(MathUtil.lerp(getXPos(), target.getXPos(), f), MathUtil.lerp(getYPos(), target.getYPos(), f));
         }
     }
     
     @Override
-    public TargetedProjectile getSnapshot()
+    protected TargetedProjectile createSnapshot()
     {
         return new TargetedProjectile(id, team, source.id, target.id, speed, startTime);
     }
@@ -1,5 +1,6 @@
 package onlinegame.server.game.engine.status;
 
+import java.util.Arrays;
 import onlinegame.shared.game.stats.Attribs;
 import static onlinegame.shared.game.stats.Attribs.*;
 import onlinegame.shared.game.stats.BaseAttribs;
@@ -11,12 +12,15 @@ import onlinegame.shared.game.stats.BaseAttribs;
 public final class SActorAttribs extends Attribs
 {
     public final BaseAttribs base;
-    private final float[] attribs;
+    private float[] attribs;
+    private float[] next; //where recalculate puts the new values, to compare them to the old ones
+    private int version = 0;
     
     public SActorAttribs(BaseAttribs base)
     {
         this.base = base;
         attribs = new float[NUM_ATTRIBS];
+        next = new float[NUM_ATTRIBS];
         
         recalculate();
     }
@@ -27,9 +31,17 @@ public final class SActorAttribs extends Attribs
         return attribs[attrib];
     }
     
+    /**
+     * @return A number that changes whenever the attributes change.
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+    
     public void recalculate()
     {
-        float[] a = attribs;
+        float[] a = next;
         base.copy(a); //reset to base attribs
         
         //attack interval
@@ -41,5 +53,12 @@ public final class SActorAttribs extends Attribs
         a[ATTACK_PREHIT_OFFSET ] = a[ATTACK_PREHIT_OFFSET_FACTOR ] * a[ATTACK_TIME];
         a[ATTACK_POSTHIT_OFFSET] = a[ATTACK_POSTHIT_OFFSET_FACTOR] * a[ATTACK_TIME];
         a[ATTACK_RELOAD_OFFSET ] = a[ATTACK_RELOAD_OFFSET_FACTOR ] * a[ATTACK_TIME];
+        
+        if (!Arrays.equals(a, attribs))
+        {
+            next = attribs;
+            attribs = a;
+            version++;
+        }
     }
 }
@@ -0,0 +1,94 @@
+package onlinegame.server.game.engine;
+
+import onlinegame.server.game.PlayerInfo;
+import onlinegame.shared.game.CasterMinion;
+import onlinegame.shared.game.GameMap;
+import onlinegame.shared.game.GameProtocol;
+import onlinegame.shared.game.Minion;
+import onlinegame.shared.game.stats.Attribs;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alfred
+ */
+public class MovementSystemTest
+{
+    private static final int TICKS = 1200;
+    
+    /**
+     * An actor that is updated before the one it watches still sees where
+     * that one is in the current tick, since all entities are moved before
+     * any of them is updated.
+     */
+    @Test
+    public void testUpdatesSeeCurrentPositions()
+    {
+        SGameState game = new SGameState(GameMap.TEST, new PlayerInfo[][] {{}, {}});
+        float h = GameMap.TEST.getScaledHeight();
+        
+        //added first, so it has a lower slot and is updated before the one it watches
+        Watcher watcher = new Watcher(game, 16, h - 24);
+        SCasterMinion target = new SCasterMinion(game, 24, h - 16, GameProtocol.TEAM_RED);
+        watcher.watched = target;
+        game.addEntity(watcher);
+        game.addEntity(target);
+        game.update();
+        
+        float startX = target.getXPos(), startY = target.getYPos();
+        game.moveCommand(target, 30, h - 30);
+        for (int i = 0; i < TICKS; i++)
+        {
+            game.update();
+            
+            //the ticks are much faster than real ones, so let the paths arrive as if they were on time
+            while (game.paths.numOutstanding() > 0)
+            {
+                game.paths.process(10);
+            }
+        }
+        
+        assertTrue("The target didn't move.", watcher.seenX != startX || watcher.seenY != startY);
+        assertEquals("Ticks in which the watcher saw an old position of the target:", 0, watcher.mismatches);
+    }
+    
+    private static final class Watcher extends SMinion
+    {
+        private SActor watched;
+        private float seenX, seenY;
+        private int mismatches = 0;
+        
+        private Watcher(SGameState game, float x, float y)
+        {
+            super(game, x, y, GameProtocol.TEAM_BLUE);
+        }
+        
+        @Override
+        public void update()
+        {
+            double time = game.getCurrentTime();
+            float speed = watched.attribs.get(Attribs.MOVE_SPEED);
+            seenX = watched.getXPos();
+            seenY = watched.getYPos();
+            if (seenX != watched.path.getPathXPos(time, speed) || seenY != watched.path.getPathYPos(time, speed))
+            {
+                mismatches++;
+            }
+            super.update();
+        }
+        
+        @Override
+        protected int getNextUpdateTick()
+        {
+            return game.getCurrentTick() + 1;
+        }
+        
+        @Override
+        protected Minion createSnapshot()
+        {
+            return new CasterMinion(id, team, path, action, attribs);
+        }
+    }
+}
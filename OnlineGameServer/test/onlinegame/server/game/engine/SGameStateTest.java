@@ -0,0 +1,55 @@
+package onlinegame.server.game.engine;
+
+import onlinegame.server.game.PlayerInfo;
+import onlinegame.shared.MathUtil;
+import onlinegame.shared.game.GameMap;
+import onlinegame.shared.game.pathfinder.Node;
+import onlinegame.shared.game.pathfinder.PathService;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alfred
+ */
+public class SGameStateTest
+{
+    /**
+     * A wall placed on the map of a game changes the paths of that game, and
+     * not the paths on the map the game was started with.
+     */
+    @Test
+    public void testChangedCellsChangeGamePaths()
+    {
+        SGameState game = new SGameState(GameMap.TEST, new PlayerInfo[][] {{}, {}});
+        float h = GameMap.TEST.getScaledHeight();
+        float x1 = 16, y1 = h - 16, x2 = 30, y2 = h - 30;
+        
+        double before = pathLength(game.paths, x1, y1, x2, y2);
+        
+        //a wall across the middle of the straight line between them
+        float invscale = 1 / game.map.scale;
+        int cx = (int)((x1 + x2) / 2 * invscale), cy = (int)((y1 + y2) / 2 * invscale);
+        game.map.setCells(cx - 4, cy - 4, cx + 4, cy + 4, GameMap.C_WALL);
+        
+        double after = pathLength(game.paths, x1, y1, x2, y2);
+        assertTrue("The path of the game didn't go around the wall: " + after + " <= " + before, after > before + 1e-4);
+        
+        double shared = pathLength(new PathService(GameMap.TEST, game.paths.hitRadius), x1, y1, x2, y2);
+        assertEquals("The wall changed the paths on the map the game was started with.", before, shared, 1e-4);
+    }
+    
+    private static double pathLength(PathService paths, double x1, double y1, double x2, double y2)
+    {
+        Node[] path = paths.getPathfinder().findPath(x1, y1, x2, y2);
+        assertNotNull("No path found.", path);
+        double len = 0;
+        for (int i = 1; i < path.length; i++)
+        {
+            len += MathUtil.dist(path[i - 1].x, path[i - 1].y, path[i].x, path[i].y);
+        }
+        return len;
+    }
+}
@@ -0,0 +1,223 @@
+package onlinegame.server.game.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import onlinegame.server.game.PlayerInfo;
+import onlinegame.shared.game.Entity;
+import onlinegame.shared.game.GameMap;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alfred
+ */
+public class SpatialGridTest
+{
+    private static final float SIZE = 40, CELL_SIZE = 4;
+    
+    private final SGameState game = new SGameState(GameMap.TEST, new PlayerInfo[][] {{}, {}});
+    private final SpatialGrid grid = new SpatialGrid(SIZE, SIZE, CELL_SIZE);
+    private final List<SEntity> all = new ArrayList<>();
+    
+    @Test
+    public void testFindInBox()
+    {
+        Point a = add(4, 4, 0);
+        Point b = add(8, 4, 1);
+        Point c = add(8, 8, 0);
+        add(8.01f, 8, 1);
+        add(20, 20, 1);
+        
+        //the edges are included
+        assertEquals(set(a, b, c), box(4, 4, 8, 8, SpatialGrid.ALL_TEAMS));
+        assertEquals(set(a, c), box(4, 4, 8, 8, SpatialGrid.teamMask(0)));
+        assertEquals(set(b), box(4, 4, 8, 8, SpatialGrid.otherTeamsMask(0)));
+        assertEquals(set(), box(4.5, 4.5, 7.5, 7.5, SpatialGrid.ALL_TEAMS));
+    }
+    
+    @Test
+    public void testFindInBoxOutside()
+    {
+        Point a = add(-3, 5, 0);
+        Point b = add(SIZE + 10, SIZE + 10, 1);
+        Point c = add(1, 5, 0);
+        
+        //entities outside of the grid are in the border cells, but only found by boxes around them
+        assertEquals(set(a), box(-5, 0, -1, 10, SpatialGrid.ALL_TEAMS));
+        assertEquals(set(a, c), box(-5, 0, 2, 10, SpatialGrid.ALL_TEAMS));
+        assertEquals(set(b), box(SIZE + 5, SIZE + 5, SIZE + 20, SIZE + 20, SpatialGrid.ALL_TEAMS));
+        assertEquals(set(), box(SIZE + 11, SIZE + 11, SIZE + 20, SIZE + 20, SpatialGrid.ALL_TEAMS));
+    }
+    
+    @Test
+    public void testFindInBoxRandom()
+    {
+        Random r = new Random(12345);
+        addRandom(r, 300);
+        for (int q = 0; q < 500; q++)
+        {
+            double x1 = coord(r), y1 = coord(r);
+            double x2 = x1 + r.nextDouble() * 20, y2 = y1 + r.nextDouble() * 20;
+            int teams = randomTeams(r);
+            
+            HashSet<SEntity> expected = new HashSet<>();
+            for (SEntity e : all)
+            {
+                if ((teams & SpatialGrid.teamMask(e.team)) != 0 && e.getXPos() >= x1 && e.getYPos() >= y1 && e.getXPos() <= x2 && e.getYPos() <= y2)
+                {
+                    expected.add(e);
+                }
+            }
+            assertEquals(expected, box(x1, y1, x2, y2, teams));
+        }
+    }
+    
+    @Test
+    public void testFindNearest()
+    {
+        Point a = add(10, 10, 0);
+        Point b = add(12, 10, 1);
+        Point c = add(30, 10, 0);
+        Point d = add(-5, 10, 1);
+        
+        assertEquals(list(a, b), nearest(10.5, 10, 2, 100, SpatialGrid.ALL_TEAMS, null));
+        assertEquals(list(b, d), nearest(10.5, 10, 5, 100, SpatialGrid.teamMask(1), null));
+        assertEquals(list(c), nearest(10.5, 10, 5, 100, SpatialGrid.otherTeamsMask(1), a));
+        assertEquals(list(a, b), nearest(10.5, 10, 5, 5, SpatialGrid.ALL_TEAMS, null));
+        assertEquals(list(), nearest(10.5, 10, 0, 100, SpatialGrid.ALL_TEAMS, null));
+        
+        //from outside of the grid, where the closest one is outside too
+        assertEquals(list(d, a, b), nearest(-20, 10, 3, 100, SpatialGrid.ALL_TEAMS, null));
+        assertEquals(list(c, b), nearest(SIZE + 20, 10, 2, 100, SpatialGrid.ALL_TEAMS, null));
+        assertEquals(list(), nearest(SIZE + 20, 10, 2, 10, SpatialGrid.ALL_TEAMS, null));
+    }
+    
+    @Test
+    public void testFindNearestRandom()
+    {
+        Random r = new Random(12345);
+        addRandom(r, 300);
+        for (int q = 0; q < 500; q++)
+        {
+            final double x = coord(r), y = coord(r);
+            int k = r.nextInt(12);
+            double maxDist = r.nextInt(4) == 0 ? Double.POSITIVE_INFINITY : r.nextDouble() * 20;
+            int teams = randomTeams(r);
+            SEntity exclude = r.nextBoolean() ? all.get(r.nextInt(all.size())) : null;
+            
+            List<SEntity> expected = new ArrayList<>();
+            for (SEntity e : all)
+            {
+                if ((teams & SpatialGrid.teamMask(e.team)) != 0 && e != exclude && dist(e, x, y) <= maxDist)
+                {
+                    expected.add(e);
+                }
+            }
+            Collections.sort(expected, new Comparator<SEntity>()
+            {
+                @Override
+                public int compare(SEntity e1, SEntity e2)
+                {
+                    return Double.compare(dist(e1, x, y), dist(e2, x, y));
+                }
+            });
+            expected = expected.subList(0, Math.min(k, expected.size()));
+            
+            List<SEntity> found = nearest(x, y, k, maxDist, teams, exclude);
+            assertEquals("Query " + q + ":", expected.size(), found.size());
+            for (int i = 0; i < found.size(); i++)
+            {
+                //entities at the same distance can come in any order
+                assertEquals("Query " + q + ", entity " + i + ":", dist(expected.get(i), x, y), dist(found.get(i), x, y), 0);
+            }
+        }
+    }
+    
+    private Point add(float x, float y, int team)
+    {
+        Point p = new Point(game, x, y, team);
+        grid.add(p);
+        all.add(p);
+        return p;
+    }
+    
+    //some of them outside of the grid
+    private void addRandom(Random r, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            add((float)coord(r), (float)coord(r), r.nextInt(3));
+        }
+    }
+    
+    private static double coord(Random r)
+    {
+        return r.nextDouble() * (SIZE + 20) - 10;
+    }
+    
+    private static int randomTeams(Random r)
+    {
+        switch (r.nextInt(3))
+        {
+            case 0: return SpatialGrid.ALL_TEAMS;
+            case 1: return SpatialGrid.teamMask(r.nextInt(3));
+            default: return SpatialGrid.otherTeamsMask(r.nextInt(3));
+        }
+    }
+    
+    private static double dist(SEntity e, double x, double y)
+    {
+        double dx = e.getXPos() - x, dy = e.getYPos() - y;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+    
+    private HashSet<SEntity> box(double x1, double y1, double x2, double y2, int teams)
+    {
+        List<SEntity> found = new ArrayList<>();
+        grid.findInBox(x1, y1, x2, y2, teams, found);
+        HashSet<SEntity> set = new HashSet<>(found);
+        assertEquals("An entity was found twice.", found.size(), set.size());
+        return set;
+    }
+    
+    private List<SEntity> nearest(double x, double y, int k, double maxDist, int teams, SEntity exclude)
+    {
+        List<SEntity> found = new ArrayList<>();
+        int count = grid.findNearest(x, y, k, maxDist, teams, exclude, found);
+        assertEquals("The returned count differs from the number of entities found.", found.size(), count);
+        return found;
+    }
+    
+    private static HashSet<SEntity> set(SEntity... entities)
+    {
+        HashSet<SEntity> set = new HashSet<>();
+        Collections.addAll(set, entities);
+        return set;
+    }
+    
+    private static List<SEntity> list(SEntity... entities)
+    {
+        List<SEntity> list = new ArrayList<>();
+        Collections.addAll(list, entities);
+        return list;
+    }
+    
+    private static final class Point extends SEntity
+    {
+        private Point(SGameState game, float x, float y, int team)
+        {
+            super(game, x, y, team);
+        }
+        
+        @Override
+        protected Entity createSnapshot()
+        {
+            return null;
+        }
+    }
+}
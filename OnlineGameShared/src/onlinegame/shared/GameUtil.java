@@ -23,7 +23,8 @@ public final class GameUtil
     
     public static final double
             SERVER_TICK_DELTA = 1f / SERVER_TICKRATE,
-            SERVER_CMD_MAX_QUEUE_TIME = 2.000f; //seconds
+            SERVER_CMD_MAX_QUEUE_TIME = 2.000f, //seconds
+            SERVER_PATH_TIME_BUDGET = .5f * SERVER_TICK_DELTA; //seconds the game thread may wait for path queries each tick
     
     private static final String[] teamName =
     {
@@ -45,4 +46,28 @@ public final class GameUtil
     {
         return (int)Math.floor(seconds * SERVER_TICKRATE + .000001);
     }
+    
+    /**
+     * @param seconds A time.
+     * @return The first tick whose time, as given by {@link #ticksToSeconds}, is at or after it.
+     */
+    public static int secondsToTicksCeil(double seconds)
+    {
+        if (!(seconds < ticksToSeconds(Integer.MAX_VALUE)))
+        {
+            return Integer.MAX_VALUE;
+        }
+        
+        //the tick delta is a float, so the estimate can be a tick off
+        int ticks = (int)Math.ceil(seconds * SERVER_TICKRATE);
+        while (ticksToSeconds(ticks) < seconds)
+        {
+            ticks++;
+        }
+        while (ticksToSeconds(ticks - 1) >= seconds)
+        {
+            ticks--;
+        }
+        return ticks;
+    }
 }
@@ -0,0 +1,302 @@
+package onlinegame.shared;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A d-ary min-heap of int elements in the range <code>[0, capacity)</code>,
+ * ordered by primitive double keys. Each element is in the heap at most once,
+ * and its position is tracked so that its key can be changed or it can be
+ * removed in O(log n) without boxing or searching.
+ * <br />
+ * Elements with equal keys are returned in no particular order.
+ *
+ * @author Alfred
+ */
+public final class IndexedDoubleHeap
+{
+    private final int _arity;
+    
+    private int[] _heap; //heap position -> element
+    private double[] _keys; //heap position -> key
+    private int[] _pos; //element -> heap position, or -1 if not in the heap
+    
+    private int _size = 0;
+    
+    public IndexedDoubleHeap(int capacity)
+    {
+        this(capacity, 4);
+    }
+    public IndexedDoubleHeap(int capacity, int arity)
+    {
+        if (capacity < 0)
+        {
+            throw new IllegalArgumentException("Negative capacity: " + capacity);
+        }
+        if (arity < 2)
+        {
+            throw new IllegalArgumentException("Arity must be at least 2: " + arity);
+        }
+        
+        _arity = arity;
+        _heap = new int[capacity];
+        _keys = new double[capacity];
+        _pos = new int[capacity];
+        Arrays.fill(_pos, -1);
+    }
+    
+    /**
+     * @return The number of distinct elements the heap can hold, i.e. one more than the largest allowed element.
+     */
+    public int capacity()
+    {
+        return _pos.length;
+    }
+    
+    public void ensureCapacity(int capacity)
+    {
+        int len = _pos.length;
+        if (len < capacity)
+        {
+            int newlen = Math.max(capacity, len + (len >>> 1));
+            _heap = Arrays.copyOf(_heap, newlen);
+            _keys = Arrays.copyOf(_keys, newlen);
+            _pos = Arrays.copyOf(_pos, newlen);
+            Arrays.fill(_pos, len, newlen, -1);
+        }
+    }
+    
+    public int size()
+    {
+        return _size;
+    }
+    
+    public boolean isEmpty()
+    {
+        return _size == 0;
+    }
+    
+    public boolean contains(int e)
+    {
+        return _pos[e] != -1;
+    }
+    
+    /**
+     * @param e The element.
+     * @return The key of the element, or NaN if it isn't in the heap.
+     */
+    public double getKey(int e)
+    {
+        int pos = _pos[e];
+        return pos == -1 ? Double.NaN : _keys[pos];
+    }
+    
+    /**
+     * Adds an element to the heap, or changes its key if it is already in it.
+     * @param e The element.
+     * @param key The new key.
+     * @return True if the element was added, false if its key was changed.
+     */
+    public boolean offer(int e, double key)
+    {
+        int pos = _pos[e];
+        if (pos == -1)
+        {
+            siftUp(_size++, e, key);
+            return true;
+        }
+        
+        double oldKey = _keys[pos];
+        if (key < oldKey)
+        {
+            siftUp(pos, e, key);
+        }
+        else if (key > oldKey)
+        {
+            siftDown(pos, e, key);
+        }
+        return false;
+    }
+    
+    /**
+     * Lowers the key of an element, adding it if it isn't in the heap.
+     * Nothing happens if the element already has a lower or equal key.
+     * @param e The element.
+     * @param key The new key.
+     * @return True if the key of the element was changed or it was added.
+     */
+    public boolean decreaseKey(int e, double key)
+    {
+        int pos = _pos[e];
+        if (pos == -1)
+        {
+            siftUp(_size++, e, key);
+            return true;
+        }
+        if (key < _keys[pos])
+        {
+            siftUp(pos, e, key);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * @return The element with the lowest key.
+     * @throws NoSuchElementException If the heap is empty.
+     */
+    public int peek()
+    {
+        if (_size == 0)
+        {
+            throw new NoSuchElementException();
+        }
+        return _heap[0];
+    }
+    
+    /**
+     * @return The lowest key in the heap.
+     * @throws NoSuchElementException If the heap is empty.
+     */
+    public double peekKey()
+    {
+        if (_size == 0)
+        {
+            throw new NoSuchElementException();
+        }
+        return _keys[0];
+    }
+    
+    /**
+     * Removes the element with the lowest key.
+     * @return The removed element.
+     * @throws NoSuchElementException If the heap is empty.
+     */
+    public int poll()
+    {
+        if (_size == 0)
+        {
+            throw new NoSuchElementException();
+        }
+        int root = _heap[0];
+        removeAt(0);
+        return root;
+    }
+    
+    public boolean remove(int e)
+    {
+        int pos = _pos[e];
+        if (pos == -1)
+        {
+            return false;
+        }
+        removeAt(pos);
+        return true;
+    }
+    
+    /**
+     * Removes all elements. Runs in O(size) rather than O(capacity).
+     */
+    public void clear()
+    {
+        int[] heap = _heap;
+        int[] posArr = _pos;
+        for (int i = 0; i < _size; i++)
+        {
+            posArr[heap[i]] = -1;
+        }
+        _size = 0;
+    }
+    
+    private void removeAt(int pos)
+    {
+        int[] heap = _heap;
+        _pos[heap[pos]] = -1;
+        
+        int last = --_size;
+        if (pos != last)
+        {
+            int e = heap[last];
+            double key = _keys[last];
+            
+            if (pos > 0 && key < _keys[(pos - 1) / _arity])
+            {
+                siftUp(pos, e, key);
+            }
+            else
+            {
+                siftDown(pos, e, key);
+            }
+        }
+    }
+    
+    private void siftUp(int pos, int e, double key)
+    {
+        int arity = _arity;
+        int[] heap = _heap;
+        double[] keys = _keys;
+        int[] posArr = _pos;
+        
+        while (pos > 0)
+        {
+            int parent = (pos - 1) / arity;
+            double pk = keys[parent];
+            if (key >= pk)
+            {
+                break;
+            }
+            int p = heap[parent];
+            heap[pos] = p;
+            keys[pos] = pk;
+            posArr[p] = pos;
+            pos = parent;
+        }
+        heap[pos] = e;
+        keys[pos] = key;
+        posArr[e] = pos;
+    }
+    
+    private void siftDown(int pos, int e, double key)
+    {
+        int arity = _arity;
+        int size = _size;
+        int[] heap = _heap;
+        double[] keys = _keys;
+        int[] posArr = _pos;
+        
+        while (true)
+        {
+            int first = pos * arity + 1;
+            if (first >= size)
+            {
+                break;
+            }
+            int end = Math.min(first + arity, size);
+            
+            //find the child with the lowest key
+            int child = first;
+            double ck = keys[first];
+            for (int i = first + 1; i < end; i++)
+            {
+                if (keys[i] < ck)
+                {
+                    child = i;
+                    ck = keys[i];
+                }
+            }
+            
+            if (key <= ck)
+            {
+                break;
+            }
+            int c = heap[child];
+            heap[pos] = c;
+            keys[pos] = ck;
+            posArr[c] = pos;
+            pos = child;
+        }
+        heap[pos] = e;
+        keys[pos] = key;
+        posArr[e] = pos;
+    }
+}
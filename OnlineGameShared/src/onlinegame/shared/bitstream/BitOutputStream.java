@@ -112,6 +112,7 @@ public final class BitOutputStream extends FilterOutputStream implements BitOutp
         if (rem == 8)
         {
             out.write(b);
+            writtenBits += 8;
             return;
         }
         
@@ -129,6 +130,7 @@ public final class BitOutputStream extends FilterOutputStream implements BitOutp
         if (rem == 8)
         {
             out.write(b, off, len);
+            writtenBits += 8L * len;
         }
         else
         {
@@ -140,6 +142,31 @@ public final class BitOutputStream extends FilterOutputStream implements BitOutp
         }
     }
     
+    /**
+     * Writes bits that were written to another bit stream, without having to
+     * encode them again, e.g. to write the same data after different headers.
+     * @param b The bytes the bits were written to, starting at the highest
+     *  bit of the first byte.
+     * @param bits The number of bits to write.
+     * @throws IOException
+     */
+    public void writeBits(byte[] b, long bits) throws IOException
+    {
+        if (bits < 0 || bits > 8L * b.length)
+        {
+            throw new IndexOutOfBoundsException("Invalid bit count: " + bits);
+        }
+        
+        int bytes = (int)(bits >>> 3);
+        write(b, 0, bytes);
+        
+        int last = (int)(bits & 7);
+        if (last > 0)
+        {
+            writeInt((b[bytes] & 0xff) >>> (8 - last), last);
+        }
+    }
+    
     @Override
     public void writeBoolean(boolean b) throws IOException
     {
@@ -0,0 +1,152 @@
+package onlinegame.shared.game;
+
+/**
+ * One bit per cell of a map, packed into <code>long</code> words both row by
+ * row and column by column, so that a run of up to 64 cells in either
+ * direction can be tested with a single word operation.
+ * <br />
+ * Coordinates must be inside the bitmap, out of bounds checks are left to
+ * the caller.
+ *
+ * @author Alfred
+ */
+public final class CellBitmap
+{
+    public final int width, height;
+    
+    private final int rowWords, colWords;
+    private final long[] rows; //bit (x & 63) of rows[y * rowWords + (x >>> 6)]
+    private final long[] cols; //bit (y & 63) of cols[x * colWords + (y >>> 6)]
+    
+    public CellBitmap(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        rowWords = (width + 63) >>> 6;
+        colWords = (height + 63) >>> 6;
+        rows = new long[rowWords * height];
+        cols = new long[colWords * width];
+    }
+    
+    /**
+     * @param bitmap The bitmap to copy.
+     */
+    public CellBitmap(CellBitmap bitmap)
+    {
+        width = bitmap.width;
+        height = bitmap.height;
+        rowWords = bitmap.rowWords;
+        colWords = bitmap.colWords;
+        rows = bitmap.rows.clone();
+        cols = bitmap.cols.clone();
+    }
+    
+    public boolean get(int x, int y)
+    {
+        return (rows[y * rowWords + (x >>> 6)] & (1L << x)) != 0;
+    }
+    
+    public void set(int x, int y, boolean value)
+    {
+        int ri = y * rowWords + (x >>> 6);
+        int ci = x * colWords + (y >>> 6);
+        if (value)
+        {
+            rows[ri] |= 1L << x;
+            cols[ci] |= 1L << y;
+        }
+        else
+        {
+            rows[ri] &= ~(1L << x);
+            cols[ci] &= ~(1L << y);
+        }
+    }
+    
+    /**
+     * @param y The row.
+     * @param x1 The first cell of the run.
+     * @param x2 The last cell of the run (inclusive).
+     * @return True if any of the cells <code>x1..x2</code> in row y is set.
+     */
+    public boolean anyInRow(int y, int x1, int x2)
+    {
+        return anyInRun(rows, y * rowWords, x1, x2);
+    }
+    
+    /**
+     * @param x The column.
+     * @param y1 The first cell of the run.
+     * @param y2 The last cell of the run (inclusive).
+     * @return True if any of the cells <code>y1..y2</code> in column x is set.
+     */
+    public boolean anyInColumn(int x, int y1, int y2)
+    {
+        return anyInRun(cols, x * colWords, y1, y2);
+    }
+    
+    /**
+     * @return True if any cell in the box (bounds inclusive) is set.
+     */
+    public boolean anyInBox(int x1, int y1, int x2, int y2)
+    {
+        for (int y = y1; y <= y2; y++)
+        {
+            if (anyInRun(rows, y * rowWords, x1, x2)) return true;
+        }
+        return false;
+    }
+    
+    private static boolean anyInRun(long[] words, int base, int i1, int i2)
+    {
+        int w1 = i1 >>> 6;
+        int w2 = i2 >>> 6;
+        long mask1 = -1L << i1;
+        long mask2 = -1L >>> (63 - (i2 & 63));
+        
+        if (w1 == w2)
+        {
+            return (words[base + w1] & mask1 & mask2) != 0;
+        }
+        
+        if ((words[base + w1] & mask1) != 0) return true;
+        for (int w = w1 + 1; w < w2; w++)
+        {
+            if (words[base + w] != 0) return true;
+        }
+        return (words[base + w2] & mask2) != 0;
+    }
+    
+    /**
+     * @param y The row.
+     * @param x The first cell.
+     * @return The 64 cells starting at x in row y, with cell x in the lowest
+     * bit. Cells beyond the right edge are 0.
+     */
+    public long getRowBits(int y, int x)
+    {
+        return getBits(rows, y * rowWords, rowWords, x);
+    }
+    
+    /**
+     * @param x The column.
+     * @param y The first cell.
+     * @return The 64 cells starting at y in column x, with cell y in the lowest
+     * bit. Cells beyond the bottom edge are 0.
+     */
+    public long getColumnBits(int x, int y)
+    {
+        return getBits(cols, x * colWords, colWords, y);
+    }
+    
+    private static long getBits(long[] words, int base, int numWords, int i)
+    {
+        int w = i >>> 6;
+        int shift = i & 63;
+        long bits = words[base + w] >>> shift;
+        if (shift != 0 && w + 1 < numWords)
+        {
+            bits |= words[base + w + 1] << (64 - shift);
+        }
+        return bits;
+    }
+}
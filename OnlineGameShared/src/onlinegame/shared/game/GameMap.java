@@ -7,6 +7,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import onlinegame.shared.Logger;
 
 /**
@@ -15,21 +19,6 @@ import onlinegame.shared.Logger;
  */
 public final class GameMap
 {
-    public static final GameMap
-            TEST;
-    
-    static
-    {
-        try
-        { 
-            TEST = new GameMap(0, "Test Map", "/maps/main2.png", .4f);
-        }
-        catch (IOException e)
-        {
-            throw new RuntimeException("Failed to load maps: " + e.getMessage(), e);
-        }
-    }
-    
     public static final byte
             C_INVALID = 0,
             C_EMPTY = 1,
@@ -49,12 +38,34 @@ public final class GameMap
         true
     };
     
+    //must come after the cell type tables, which the constructor uses
+    public static final GameMap
+            TEST;
+    
+    static
+    {
+        try
+        { 
+            TEST = new GameMap(0, "Test Map", "/maps/main2.png", .4f);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Failed to load maps: " + e.getMessage(), e);
+        }
+    }
+    
     public final int id;
     public final String name;
     private final byte[] cells;
     public final int width, height;
     public final float scale;
     public final float invscale;
+    public final long cellHash; //of the cells as loaded, before any calls to setCells
+    private final CellBitmap blockedBits, opaqueBits;
+    private volatile int version = 0;
+    
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
     
     private GameMap(int id, String name, String fname, float scale) throws IOException
     {
@@ -85,7 +96,7 @@ public final class GameMap
             width = dec.getWidth();
             height = dec.getHeight();
             int bytesPerPixel = 4;
-
+            
             buf = ByteBuffer.allocate(width * height * bytesPerPixel);
             dec.decode(buf, width * bytesPerPixel, PNGDecoder.Format.RGBA);
             buf.flip();
@@ -114,6 +125,209 @@ public final class GameMap
                     break;
             }
         }
+        
+        cellHash = hashCells();
+        
+        blockedBits = new CellBitmap(width, height);
+        opaqueBits = new CellBitmap(width, height);
+        fillBitmaps();
+    }
+    
+    private GameMap(GameMap map)
+    {
+        id = map.id;
+        name = map.name;
+        scale = map.scale;
+        invscale = map.invscale;
+        width = map.width;
+        height = map.height;
+        cellHash = map.cellHash;
+        
+        map.lock.readLock().lock();
+        try
+        {
+            cells = map.cells.clone();
+            version = map.version;
+        }
+        finally
+        {
+            map.lock.readLock().unlock();
+        }
+        
+        blockedBits = new CellBitmap(width, height);
+        opaqueBits = new CellBitmap(width, height);
+        fillBitmaps();
+    }
+    
+    private void fillBitmaps()
+    {
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                byte cell = getCellFast(x, y);
+                blockedBits.set(x, y, !isWalkable[cell]);
+                opaqueBits.set(x, y, isOpaque[cell]);
+            }
+        }
+    }
+    
+    /**
+     * Loads a map that isn't one of the predefined ones, e.g. for tools and benchmarks.
+     * @param id The map id, which must not be shared with any other map in use.
+     * @param name The name of the map.
+     * @param fname The resource path of the map image, e.g. "/maps/main.png".
+     * @param scale The size of a cell in world units.
+     * @return The loaded map.
+     * @throws IOException If the image could not be read.
+     */
+    public static GameMap load(int id, String name, String fname, float scale) throws IOException
+    {
+        return new GameMap(id, name, fname, scale);
+    }
+    
+    /**
+     * Creates a copy of this map with the current cells, which can be changed
+     * without affecting this map or anyone else using it. The copy has the
+     * same id, {@link #cellHash} and version, so data derived from cells that
+     * have never been changed can still be shared, but none of the listeners.
+     * @return The copy.
+     */
+    public GameMap copy()
+    {
+        return new GameMap(this);
+    }
+    
+    //64-bit FNV-1a hash of the map size and contents, used to identify cached data derived from the cells
+    private long hashCells()
+    {
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ width) * 0x100000001b3L;
+        hash = (hash ^ height) * 0x100000001b3L;
+        for (int i = 0; i < cells.length; i++)
+        {
+            hash = (hash ^ cells[i]) * 0x100000001b3L;
+        }
+        return hash;
+    }
+    
+    /**
+     * @return A number that is changed by {@link #setCells}, which data derived from the cells can be tagged with to detect when it is out of date.
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+    
+    /**
+     * Returns the lock that guards the cells. Changes hold the write lock,
+     * so threads other than the one changing the map have to hold the read
+     * lock to see a consistent state of the cells and everything the
+     * listeners derive from them.
+     * @return The lock.
+     */
+    public ReadWriteLock getLock()
+    {
+        return lock;
+    }
+    
+    /**
+     * @param listener The listener to notify of every change to the cells.
+     */
+    public void addChangeListener(ChangeListener listener)
+    {
+        listeners.add(listener);
+    }
+    
+    public void removeChangeListener(ChangeListener listener)
+    {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Changes a cell, see {@link #setCells}.
+     * @param x The x coordinate of the cell.
+     * @param y The y coordinate of the cell.
+     * @param type The new cell type.
+     */
+    public void setCell(int x, int y, byte type)
+    {
+        setCells(x, y, x, y, type);
+    }
+    
+    /**
+     * Changes all cells in a rectangle, e.g. to place or remove a wall at
+     * runtime. If any cell changes, the version is incremented and the
+     * listeners are notified, all while holding the write lock.
+     * <br />
+     * Maps that are used by more than one game, like {@link #TEST}, must not
+     * be changed, each game changes its own {@link #copy} instead.
+     * @param x1 The x coordinate of the first cell.
+     * @param y1 The y coordinate of the first cell.
+     * @param x2 The x coordinate of the last cell.
+     * @param y2 The y coordinate of the last cell.
+     * @param type The new cell type.
+     */
+    public void setCells(int x1, int y1, int x2, int y2, byte type)
+    {
+        if (x1 > x2 || y1 > y2 || isOutOfBounds(x1, y1) || isOutOfBounds(x2, y2))
+        {
+            throw new IllegalArgumentException("Invalid cell range: [" + x1 + ", " + y1 + "] to [" + x2 + ", " + y2 + "]");
+        }
+        if (type < 0 || type >= isWalkable.length)
+        {
+            throw new IllegalArgumentException("Invalid cell type: " + type);
+        }
+        
+        lock.writeLock().lock();
+        try
+        {
+            boolean changed = false;
+            for (int y = y1; y <= y2; y++)
+            {
+                for (int x = x1; x <= x2; x++)
+                {
+                    int i = x + y * width;
+                    if (cells[i] != type)
+                    {
+                        cells[i] = type;
+                        blockedBits.set(x, y, !isWalkable[type]);
+                        opaqueBits.set(x, y, isOpaque[type]);
+                        changed = true;
+                    }
+                }
+            }
+            if (!changed)
+            {
+                return;
+            }
+            
+            version++;
+            for (ChangeListener l : listeners)
+            {
+                l.cellsChanged(this, x1, y1, x2, y2);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * @return A bitmap of all cells that are not walkable.
+     */
+    public CellBitmap getBlockedBitmap()
+    {
+        return blockedBits;
+    }
+    
+    /**
+     * @return A bitmap of all opaque cells.
+     */
+    public CellBitmap getOpaqueBitmap()
+    {
+        return opaqueBits;
     }
     
     public float getScaledWidth()
@@ -189,4 +403,20 @@ public final class GameMap
     {
         return isOpaque[cells[x + y*width]];
     }
+    
+    /**
+     * Receives the changes made with {@link GameMap#setCells}.
+     */
+    public static interface ChangeListener
+    {
+        /**
+         * Called after cells have been changed, while the write lock is still held.
+         * @param map The map.
+         * @param x1 The x coordinate of the first cell of the changed rectangle.
+         * @param y1 The y coordinate of the first cell.
+         * @param x2 The x coordinate of the last cell.
+         * @param y2 The y coordinate of the last cell.
+         */
+        public void cellsChanged(GameMap map, int x1, int y1, int x2, int y2);
+    }
 }
@@ -1,7 +1,9 @@
 package onlinegame.shared.game;
 
-import gnu.trove.map.TIntObjectMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -18,7 +20,7 @@ import onlinegame.shared.net.GameProtocolException;
 public final class GameState
 {
     private final Entity[] entities;
-    private final TIntObjectMap<Entity> idMap;
+    private final TIntIntMap index; //the index of each entity by id, shared by states whose entities have the same ids in the same order
     
     private final Champion[][] players;
     
@@ -26,11 +28,24 @@ public final class GameState
     public final double currentTime;
     
     public GameState(Entity[] entities, int currentTick, int[][] playerIds)
+    {
+        this(entities, currentTick, playerIds, null);
+    }
+    /**
+     * @param entities The entities, which must not be changed afterwards.
+     * @param currentTick The tick.
+     * @param playerIds The ids of the champions of the players of each team.
+     * @param prev The previous state, or null. If its entities have the same
+     *  ids in the same order, the index of the entities is shared with it
+     *  instead of built again, and writing a delta against it only has to
+     *  look at the entities that aren't the same objects as in it.
+     */
+    public GameState(Entity[] entities, int currentTick, int[][] playerIds, GameState prev)
     {
         this.entities = entities;
         this.currentTick = currentTick;
         currentTime = GameUtil.ticksToSeconds(currentTick);
-        idMap = init();
+        index = prev != null && sameIds(entities, prev.entities) ? prev.index : init();
         
         players = new Champion[2][];
         for (int t = 0; t < 2; t++)
@@ -60,18 +75,17 @@ public final class GameState
                 
                 if (entities[i] == null) throw new GameProtocolException("Null entities are not allowed!");
             }
-            idMap = init();
         }
         else
         {
-            idMap = new TIntObjectHashMap<>(entities.length * 2 + 1, .5f);
+            TIntSet ids = new TIntHashSet(entities.length * 2 + 1, .5f);
             
-            while (true) //temporarily put all the destroyed entity id:s in the map (which for now acts as a set)
+            while (true) //put all the destroyed entity id:s in the set
             {
                 int id = in.readInt(IntFormat.UINTV);
                 if (id == 0) break;
                 
-                idMap.put(id, null);
+                ids.add(id);
             }
             
             int i = 0;
@@ -84,41 +98,46 @@ public final class GameState
                 if (e == null) break; //reached the last entity
                 if (i >= numEntities) throw new GameProtocolException("Too many entities sent!");
                 entities[i++] = e; //store entity and increment counter
-                idMap.put(e.id, null);
+                ids.add(e.id);
             }
             
             for (int j = 0; j < prev.numEntities(); j++) //add all entities that weren't updated
             {
                 Entity e = prev.getEntity(j);
-                if (!idMap.containsKey(e.id))
+                if (!ids.contains(e.id))
                 {
                     if (i >= numEntities) throw new GameProtocolException("This should never happen ;_;");
                     entities[i++] = e;
                 }
             }
             if (i < numEntities - 1) throw new GameProtocolException("fdjoflajhoo");
-            
-            idMap.clear();
-            for (int j = 0; j < entities.length; j++) //clear the map and fill it with the entities
-            {
-                Entity e = entities[j];
-                idMap.put(e.id, e);
-            }
         }
+        index = init();
         players = readPlayers(in, prev);
     }
     
-    private TIntObjectMap<Entity> init()
+    private TIntIntMap init()
     {
-        TIntObjectMap<Entity> map = new TIntObjectHashMap<>(entities.length * 2 + 1, .5f);
+        TIntIntMap map = new TIntIntHashMap(entities.length * 2 + 1, .5f, 0, -1);
         for (int i = 0; i < entities.length; i++)
         {
             Entity e = entities[i];
-            map.put(e.id, e);
+            map.put(e.id, i);
         }
         return map;
     }
     
+    private static boolean sameIds(Entity[] entities, Entity[] other)
+    {
+        if (entities == other) return true;
+        if (entities.length != other.length) return false;
+        for (int i = 0; i < entities.length; i++)
+        {
+            if (entities[i].id != other[i].id) return false;
+        }
+        return true;
+    }
+    
     private Champion[][] readPlayers(BitInput in, GameState prev) throws IOException
     {
         Champion[][] players;
@@ -187,25 +206,45 @@ public final class GameState
         else
         {
             Entity[] prevEntities = prev.entities;
-            //write the id of all destroyed entities (null-terminated)
-            for (int i = 0; i < prevEntities.length; i++)
+            if (index == prev.index)
             {
-                Entity e = prevEntities[i];
-                if (!idMap.containsKey(e.id))
+                //the same entities in the same order, so none are destroyed and unchanged ones are the same objects
+                out.writeInt(0, IntFormat.UINTV);
+                if (entities != prevEntities)
                 {
-                    out.writeInt(e.id, IntFormat.UINTV);
+                    for (int i = 0; i < entities.length; i++)
+                    {
+                        Entity e = entities[i];
+                        if (e != prevEntities[i])
+                        {
+                            e.write(out, prevEntities[i]);
+                        }
+                    }
                 }
+                out.writeInt(0, IntFormat.UINTV);
             }
-            out.writeInt(0, IntFormat.UINTV); //write 0 to mark the end
-            
-            //write all updated entities (null-terminated)
-            for (int i = 0; i < entities.length; i++)
+            else
             {
-                Entity e = entities[i];
-                Entity delta = prev.findEntity(e.id);
-                e.write(out, delta);
+                //write the id of all destroyed entities (null-terminated)
+                for (int i = 0; i < prevEntities.length; i++)
+                {
+                    Entity e = prevEntities[i];
+                    if (!index.containsKey(e.id))
+                    {
+                        out.writeInt(e.id, IntFormat.UINTV);
+                    }
+                }
+                out.writeInt(0, IntFormat.UINTV); //write 0 to mark the end
+                
+                //write all updated entities (null-terminated)
+                for (int i = 0; i < entities.length; i++)
+                {
+                    Entity e = entities[i];
+                    Entity delta = prev.findEntity(e.id);
+                    e.write(out, delta);
+                }
+                out.writeInt(0, IntFormat.UINTV);
             }
-            out.writeInt(0, IntFormat.UINTV);
         }
         writePlayers(out, prev);
     }
@@ -222,7 +261,8 @@ public final class GameState
     
     public Entity findEntity(int id)
     {
-        return idMap.get(id);
+        int i = index.get(id);
+        return i == -1 ? null : entities[i];
     }
     
     public int getNumPlayers(int team)
@@ -11,12 +11,25 @@ import onlinegame.shared.game.GameProtocol;
 import onlinegame.shared.net.GameProtocolException;
 
 /**
+ * The path of an actor, starting at a given time, which the actor follows at
+ * its movement speed.
+ * <br />
+ * The distance along the path to each point is stored, so a position is
+ * found by a binary search over the points. Since positions are mostly asked
+ * for at increasing times, the search starts with the segment of the last
+ * position and the few after it.
+ * <br />
+ * Not thread safe, the last position is cached.
  *
  * @author Alfred
  */
 public final class ActorPath
 {
+    //segments after the one of the last position that are checked before a binary search
+    private static final int CURSOR_STEPS = 4;
+    
     private final float[] xPoints, yPoints;
+    private final double[] pointPos; //the distance along the path to each point
     public final double startTime;
     public final double length;
     
@@ -37,6 +50,7 @@ public final class ActorPath
         
         this.xPoints = xPoints;
         this.yPoints = yPoints;
+        pointPos = new double[xPoints.length];
         
         this.startTime = startTime;
         length = calcLength();
@@ -47,6 +61,7 @@ public final class ActorPath
         int len = nodes.length;
         xPoints = new float[len];
         yPoints = new float[len];
+        pointPos = new double[len];
         
         for (int i = 0; i < len; i++)
         {
@@ -69,6 +84,7 @@ public final class ActorPath
         
         xPoints = new float[len];
         yPoints = new float[len];
+        pointPos = new double[len];
         
         for (int i = 0; i < len; i++)
         {
@@ -80,6 +96,7 @@ public final class ActorPath
         length = calcLength();
     }
     
+    //also fills in pointPos
     private double calcLength()
     {
         double len = 0;
@@ -92,6 +109,7 @@ public final class ActorPath
         {
             double x2 = xPoints[i], y2 = yPoints[i];
             len += MathUtil.dist(x1, y1, x2, y2);
+            pointPos[i] = len;
             
             x1 = x2;
             y1 = y2;
@@ -152,7 +170,8 @@ public final class ActorPath
     
     private double cachedX = Float.NaN, cachedY = Float.NaN;
     private int cachedPrevPoint = -1;
-    private double cachedPos = Float.NaN;
+    private double cachedPos = Double.NaN;
+    private int cursor = 1; //the end point of the segment of the last position
     
     public float getPathXPos(double time, double speed)
     {
@@ -196,11 +215,9 @@ public final class ActorPath
         return cachedPrevPoint;
     }
     
-    //can be optimized by going in reverse if pos > length/2
-    //or by pre-calculating the distances and using binary search
     private void calcPathPos(double pos)
     {
-        cachedPos = (float)pos;
+        cachedPos = pos;
         
         int len = numPoints();
         
@@ -222,32 +239,49 @@ public final class ActorPath
             return;
         }
         
-        double dist = 0;
-        double x1 = xPoints[0], y1 = yPoints[0];
-        
-        for (int i = 1; i < len; i++)
+        //the first point at or beyond pos, its segment has a length greater than 0
+        int i = findSegment(pos);
+        double x1 = xPoints[i-1], y1 = yPoints[i-1];
+        double x2 = xPoints[i], y2 = yPoints[i];
+        double f = (pos - pointPos[i-1]) / MathUtil.dist(x1, y1, x2, y2);
+        cachedX = MathUtil.lerp(x1, x2, f);
+        cachedY = MathUtil.lerp(y1, y2, f);
+        cachedPrevPoint = i-1;
+    }
+    
+    //the smallest i with pointPos[i] >= pos, for 0 < pos < length
+    private int findSegment(double pos)
+    {
+        int i = cursor;
+        if (pointPos[i-1] < pos)
         {
-            double x2 = xPoints[i], y2 = yPoints[i];
-            double segmentLength = MathUtil.dist(x1, y1, x2, y2);
-            double newDist = dist + segmentLength;
-            
-            if (pos <= newDist)
+            //usually the same segment as last time or one of the next ones
+            int end = Math.min(i + CURSOR_STEPS, numPoints());
+            for (; i < end; i++)
             {
-                double f = (pos - dist) / segmentLength;
-                cachedX = MathUtil.lerp(x1, x2, f);
-                cachedY = MathUtil.lerp(y1, y2, f);
-                cachedPrevPoint = i-1;
-                return;
+                if (pointPos[i] >= pos)
+                {
+                    cursor = i;
+                    return i;
+                }
             }
-            
-            dist = newDist;
-            x1 = x2;
-            y1 = y2;
         }
         
-        cachedX = x1;
-        cachedY = y1;
-        cachedPrevPoint = len-1;
+        int lo = 1, hi = numPoints() - 1;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (pointPos[mid] >= pos)
+            {
+                hi = mid;
+            }
+            else
+            {
+                lo = mid + 1;
+            }
+        }
+        cursor = lo;
+        return lo;
     }
     
     @Override
@@ -264,7 +298,7 @@ public final class ActorPath
                 Arrays.equals(xPoints, p.xPoints) &&
                 Arrays.equals(yPoints, p.yPoints);
     }
-
+    
     @Override
     public int hashCode()
     {
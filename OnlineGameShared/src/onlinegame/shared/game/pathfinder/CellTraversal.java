@@ -1,9 +1,18 @@
 package onlinegame.shared.game.pathfinder;
 
 import onlinegame.shared.MathUtil;
+import onlinegame.shared.game.CellBitmap;
 import onlinegame.shared.game.GameMap;
 
 /**
+ * Line collision tests against the unwalkable cells of a map.
+ * <br />
+ * The cells touched by a square moving along a line segment can be found one
+ * row at a time: row y is touched by the part of the segment where the square
+ * overlaps the row, and within the row the touched cells form a single run.
+ * Each run is tested against the map's {@link CellBitmap}, up to 64 cells per
+ * word. Lines that are steeper than 45 degrees are tested column by column
+ * instead, so that the runs are always as long as possible.
  *
  * @author Alfred
  */
@@ -11,134 +20,103 @@ public final class CellTraversal
 {
     private CellTraversal() {}
     
+    /**
+     * Tests whether a line segment passes through any unwalkable cell.
+     * @param map The map.
+     * @param x1 The x coordinate of the start point.
+     * @param y1 The y coordinate of the start point.
+     * @param x2 The x coordinate of the end point.
+     * @param y2 The y coordinate of the end point.
+     * @return True if there is a collision.
+     */
     public static boolean collisionLine(GameMap map, double x1, double y1, double x2, double y2)
+    {
+        return collisionLine(map, x1, y1, x2, y2, 0);
+    }
+    
+    /**
+     * Tests whether a square moving along a line segment touches any
+     * unwalkable cell, i.e. whether {@link Pathfinder#collisionBox} would
+     * report a collision anywhere along the segment. The end points must be
+     * inside the map, and everything outside the map counts as unwalkable.
+     * @param map The map.
+     * @param x1 The x coordinate of the start point.
+     * @param y1 The y coordinate of the start point.
+     * @param x2 The x coordinate of the end point.
+     * @param y2 The y coordinate of the end point.
+     * @param radius The half-width of the square.
+     * @return True if there is a collision.
+     */
+    public static boolean collisionLine(GameMap map, double x1, double y1, double x2, double y2, double radius)
     {
         double invscale = 1. / map.scale;
         x1 *= invscale;
         y1 *= invscale;
         x2 *= invscale;
         y2 *= invscale;
+        double rad = Math.abs(radius) * invscale;
         
-        int ix1 = MathUtil.floor(x1);
-        int iy1 = MathUtil.floor(y1);
-        int ix2 = MathUtil.floor(x2);
-        int iy2 = MathUtil.floor(y2);
-        
-        if (ix1 < 0 || iy1 < 0 || ix1 >= map.width || iy1 >= map.height
-         || ix2 < 0 || iy2 < 0 || ix2 >= map.width || iy2 >= map.height)
+        if (x1 < 0 || y1 < 0 || x1 >= map.width || y1 >= map.height
+         || x2 < 0 || y2 < 0 || x2 >= map.width || y2 >= map.height)
         {
             //out of bounds
             return true;
         }
         
-        if (!map.isWalkableFast(ix1, iy1)) return true;
-        
-        if (iy1 == iy2)
+        CellBitmap blocked = map.getBlockedBitmap();
+        if (Math.abs(x2 - x1) >= Math.abs(y2 - y1))
         {
-            if (ix1 == ix2)
-            {
-                //zero length line
-                //xList.add(ix1);
-                //yList.add(iy1);
-                return false; //already tested first point above and it was walkable
-            }
-            
-            //horizontal line
-            if (ix2 > ix1)
-            {
-                for (int x = ix1+1; x <= ix2; x++)
-                {
-                    if (!map.isWalkableFast(x, iy1)) return true;
-                    //xList.add(x);
-                    //yList.add(iy1);
-                }
-            }
-            else
-            {
-                for (int x = ix1-1; x >= ix2; x--)
-                {
-                    if (!map.isWalkableFast(x, iy1)) return true;
-                    //xList.add(x);
-                    //yList.add(iy1);
-                }
-            }
-            return false;
+            return sweep(blocked, false, map.width, map.height, x1, y1, x2, y2, rad);
         }
-        if (ix1 == ix2)
+        else
         {
-            //vertical line
-            if (iy2 > iy1)
-            {
-                for (int y = iy1+1; y <= iy2; y++)
-                {
-                    if (!map.isWalkableFast(ix1, y)) return true;
-                    //xList.add(ix1);
-                    //yList.add(y);
-                }
-            }
-            else
-            {
-                for (int y = iy1-1; y >= iy2; y--)
-                {
-                    if (!map.isWalkableFast(ix1, y)) return true;
-                    //xList.add(ix1);
-                    //yList.add(y);
-                }
-            }
-            return false;
+            //mostly vertical, swap the axes and use the columns
+            return sweep(blocked, true, map.height, map.width, y1, x1, y2, x2, rad);
         }
-        
+    }
+    
+    //tests one run per row (or per column if transposed, in which case x and y are swapped)
+    private static boolean sweep(CellBitmap blocked, boolean transposed, int width, int height,
+            double x1, double y1, double x2, double y2, double rad)
+    {
         double dx = x2 - x1;
         double dy = y2 - y1;
         
-        int signx = dx > 0 ? 1 : -1;
-        int signy = dy > 0 ? 1 : -1;
-        
-        dx = Math.abs(dx);
-        dy = Math.abs(dy);
-        
-        double vx = 1. / dx;
-        double vy = 1. / dy;
-        
-        double dxperdy = dx * vy;
-        double dyperdx = dy * vx;
+        double minY = Math.min(y1, y2), maxY = Math.max(y1, y2);
+        int firstRow = MathUtil.floor(minY - rad);
+        int lastRow = MathUtil.floor(maxY + rad);
+        if (firstRow < 0 || lastRow >= height)
+        {
+            return true;
+        }
         
-        int x = ix1;
-        int y = iy1;
-        double xrem = signx > 0 ? 1.0 - MathUtil.frac(x1) : MathUtil.frac(x1);
-        double yrem = signy > 0 ? 1.0 - MathUtil.frac(y1) : MathUtil.frac(y1);
+        //x coordinates of the end points with the lowest and highest y
+        double xAtMinY = dy >= 0 ? x1 : x2;
+        double xAtMaxY = dy >= 0 ? x2 : x1;
         
-        //first point is already tested
-        //if (!map.isWalkableFast(x, y)) return true;
-        //xList.add(x);
-        //yList.add(y);
+        //x coordinate of the line at y = row - rad, stepped one row at a time
+        double dxdy = dy == 0 ? 0 : dx / dy;
+        double xRowStart = x1 + (firstRow - rad - y1) * dxdy;
+        double xRowSpan = (1 + 2 * rad) * dxdy;
         
-        boolean reachedX = false, reachedY = false;
-        while (!reachedX || !reachedY)
+        for (int y = firstRow; y <= lastRow; y++, xRowStart += dxdy)
         {
-            double xdist = xrem * vx;
-            double ydist = yrem * vy;
+            //the part of the segment where the square overlaps row y: y - rad <= py < y + 1 + rad
+            double xa = y - rad <= minY ? xAtMinY : xRowStart;
+            double xb = y + 1 + rad >= maxY ? xAtMaxY : xRowStart + xRowSpan;
             
-            if (xdist < ydist)
+            int a = MathUtil.floor(Math.min(xa, xb) - rad);
+            int b = MathUtil.floor(Math.max(xa, xb) + rad);
+            if (a < 0 || b >= width)
             {
-                x += signx;
-                yrem -= xrem * dyperdx;
-                xrem = 1.0;
-                reachedX |= x == ix2;
+                return true;
             }
-            else
+            
+            if (transposed ? blocked.anyInColumn(y, a, b) : blocked.anyInRow(y, a, b))
             {
-                y += signy;
-                xrem -= yrem * dxperdy;
-                yrem = 1.0;
-                reachedY |= y == iy2;
+                return true;
             }
-            
-            if (!map.isWalkableFast(x, y)) return true;
-            //xList.add(x);
-            //yList.add(y);
         }
-        
         return false;
     }
 }
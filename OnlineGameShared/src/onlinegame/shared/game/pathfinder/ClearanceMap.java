@@ -0,0 +1,405 @@
+package onlinegame.shared.game.pathfinder;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import onlinegame.shared.MathUtil;
+import onlinegame.shared.game.GameMap;
+import org.joml.Vector2d;
+
+/**
+ * The clearance of every cell of a map, i.e. the chessboard distance (in
+ * cells) to the closest unwalkable cell, where everything outside the map
+ * counts as unwalkable. Unwalkable cells have a clearance of 0 and their
+ * neighbors a clearance of 1.
+ * <br />
+ * Actors are treated as axis-aligned squares with a half-width of their
+ * radius, like in {@link Pathfinder#collisionBox}. A square whose center is in
+ * a cell with a clearance greater than <code>floor(radius) + 1</code> can't
+ * touch any unwalkable cell, so most box queries are answered by a single
+ * lookup. Line queries are handled by {@link CellTraversal}.
+ * <br />
+ * When cells of the map are changed (see {@link GameMap#setCells}), only the
+ * clearance of the cells around them that depended on them is recomputed.
+ *
+ * @author Alfred
+ */
+public final class ClearanceMap
+{
+    public static final int MAX_CLEARANCE = 127;
+    
+    //the clearance maps are only weakly reachable from here, the listeners of the maps keep them alive
+    private static final Map<GameMap, WeakReference<ClearanceMap>> maps = new WeakHashMap<>();
+    
+    private final GameMap map;
+    private final int width, height;
+    private final byte[] clearance;
+    
+    private ClearanceMap(GameMap map)
+    {
+        this.map = map;
+        width = map.width;
+        height = map.height;
+        clearance = new byte[width * height];
+        
+        compute();
+        
+        map.addChangeListener(new GameMap.ChangeListener()
+        {
+            @Override
+            public void cellsChanged(GameMap map, int x1, int y1, int x2, int y2)
+            {
+                update(x1, y1, x2, y2);
+            }
+        });
+    }
+    
+    /**
+     * Returns the clearance map of the given map, creating it the first time it is requested.
+     * @param map The map.
+     * @return The clearance map.
+     */
+    public static ClearanceMap of(GameMap map)
+    {
+        synchronized (maps)
+        {
+            WeakReference<ClearanceMap> ref = maps.get(map);
+            ClearanceMap cm = ref == null ? null : ref.get();
+            if (cm == null)
+            {
+                cm = new ClearanceMap(map);
+                maps.put(map, new WeakReference<>(cm));
+            }
+            return cm;
+        }
+    }
+    
+    //two-pass chessboard distance transform
+    private void compute()
+    {
+        byte[] c = clearance;
+        
+        //forward pass: west, north-west, north and north-east neighbors
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                int i = x + y * width;
+                if (!map.isWalkableFast(i))
+                {
+                    c[i] = 0;
+                    continue;
+                }
+                
+                int d = MAX_CLEARANCE;
+                d = Math.min(d, get(x - 1, y    ) + 1);
+                d = Math.min(d, get(x - 1, y - 1) + 1);
+                d = Math.min(d, get(x,     y - 1) + 1);
+                d = Math.min(d, get(x + 1, y - 1) + 1);
+                c[i] = (byte)d;
+            }
+        }
+        
+        //backward pass: east, south-east, south and south-west neighbors
+        for (int y = height - 1; y >= 0; y--)
+        {
+            for (int x = width - 1; x >= 0; x--)
+            {
+                int i = x + y * width;
+                int d = c[i];
+                if (d == 0) continue;
+                
+                d = Math.min(d, get(x + 1, y    ) + 1);
+                d = Math.min(d, get(x + 1, y + 1) + 1);
+                d = Math.min(d, get(x,     y + 1) + 1);
+                d = Math.min(d, get(x - 1, y + 1) + 1);
+                c[i] = (byte)d;
+            }
+        }
+    }
+    
+    /*
+     * Updates the clearance after the cells in the rectangle have changed.
+     * The cells whose clearance may rise are the freed cells and, recursively,
+     * every neighbor whose old clearance was one more than that of a cell
+     * already found, since a cell keeps its clearance as long as one of its
+     * neighbors with one less does. Those are reset from their other
+     * neighbors, the newly blocked cells are set to 0, and the changes are
+     * spread outwards in order of clearance, as far as the clearance drops.
+     */
+    private void update(int x1, int y1, int x2, int y2)
+    {
+        byte[] c = clearance;
+        
+        //the cells that may rise, found with the old clearance
+        TIntHashSet raised = new TIntHashSet();
+        TIntArrayList queue = new TIntArrayList();
+        for (int y = y1; y <= y2; y++)
+        {
+            for (int x = x1; x <= x2; x++)
+            {
+                int i = x + y * width;
+                if (c[i] == 0 && map.isWalkableFast(i))
+                {
+                    raised.add(i);
+                    queue.add(i);
+                }
+            }
+        }
+        for (int k = 0; k < queue.size(); k++)
+        {
+            int i = queue.get(k);
+            int x = i % width, y = i / width;
+            for (int ny = Math.max(y - 1, 0); ny <= Math.min(y + 1, height - 1); ny++)
+            {
+                for (int nx = Math.max(x - 1, 0); nx <= Math.min(x + 1, width - 1); nx++)
+                {
+                    int n = nx + ny * width;
+                    if (c[n] == c[i] + 1 && c[n] < MAX_CLEARANCE && map.isWalkableFast(n) && raised.add(n))
+                    {
+                        queue.add(n);
+                    }
+                }
+            }
+        }
+        
+        //bucket queue by clearance, entries are stale if the clearance has dropped since
+        TIntArrayList[] buckets = new TIntArrayList[MAX_CLEARANCE + 1];
+        for (int d = 0; d <= MAX_CLEARANCE; d++)
+        {
+            buckets[d] = new TIntArrayList();
+        }
+        
+        for (int k = 0; k < queue.size(); k++)
+        {
+            c[queue.get(k)] = MAX_CLEARANCE;
+        }
+        for (int y = y1; y <= y2; y++)
+        {
+            for (int x = x1; x <= x2; x++)
+            {
+                int i = x + y * width;
+                if (c[i] != 0 && !map.isWalkableFast(i))
+                {
+                    c[i] = 0;
+                    buckets[0].add(i);
+                }
+            }
+        }
+        for (int k = 0; k < queue.size(); k++)
+        {
+            int i = queue.get(k);
+            int x = i % width, y = i / width;
+            int d = MAX_CLEARANCE;
+            for (int ny = y - 1; ny <= y + 1; ny++)
+            {
+                for (int nx = x - 1; nx <= x + 1; nx++)
+                {
+                    if (nx < 0 || ny < 0 || nx >= width || ny >= height || !raised.contains(nx + ny * width))
+                    {
+                        d = Math.min(d, get(nx, ny) + 1);
+                    }
+                }
+            }
+            c[i] = (byte)d;
+            buckets[d].add(i);
+        }
+        
+        for (int d = 0; d < MAX_CLEARANCE; d++)
+        {
+            TIntArrayList bucket = buckets[d];
+            for (int k = 0; k < bucket.size(); k++)
+            {
+                int i = bucket.get(k);
+                if (c[i] != d) continue;
+                
+                int x = i % width, y = i / width;
+                for (int ny = Math.max(y - 1, 0); ny <= Math.min(y + 1, height - 1); ny++)
+                {
+                    for (int nx = Math.max(x - 1, 0); nx <= Math.min(x + 1, width - 1); nx++)
+                    {
+                        int n = nx + ny * width;
+                        if (c[n] > d + 1)
+                        {
+                            c[n] = (byte)(d + 1);
+                            buckets[d + 1].add(n);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * @param x The x coordinate of the cell.
+     * @param y The y coordinate of the cell.
+     * @return The clearance of the cell, capped at {@link #MAX_CLEARANCE}, or 0 if it is outside the map.
+     */
+    public int get(int x, int y)
+    {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+        {
+            return 0;
+        }
+        return clearance[x + y * width];
+    }
+    
+    public GameMap getMap()
+    {
+        return map;
+    }
+    
+    //the largest chessboard distance from the center cell to a cell touched by a square of the given radius
+    private static int reach(double radius)
+    {
+        return (int)radius + 1;
+    }
+    
+    /**
+     * Tests whether a square with the given center and radius overlaps any unwalkable cell.
+     * @param x The x coordinate of the center.
+     * @param y The y coordinate of the center.
+     * @param radius The half-width of the square.
+     * @return True if the square collides with the map.
+     */
+    public boolean collisionBox(double x, double y, double radius)
+    {
+        double invscale = 1. / map.scale;
+        return collisionBoxUnscaled(x * invscale, y * invscale, radius * invscale);
+    }
+    
+    private boolean collisionBoxUnscaled(double x, double y, double rad)
+    {
+        int ix = MathUtil.floor(x);
+        int iy = MathUtil.floor(y);
+        if (get(ix, iy) > reach(rad))
+        {
+            return false;
+        }
+        
+        int ix1 = MathUtil.floor(x - rad);
+        int iy1 = MathUtil.floor(y - rad);
+        int ix2 = MathUtil.floor(x + rad);
+        int iy2 = MathUtil.floor(y + rad);
+        
+        if (ix1 < 0 || iy1 < 0 || ix2 >= width || iy2 >= height)
+        {
+            return true;
+        }
+        return map.getBlockedBitmap().anyInBox(ix1, iy1, ix2, iy2);
+    }
+    
+    /**
+     * Finds the closest point to the given position where a square with the
+     * given radius doesn't collide with the map.
+     * <br />
+     * The free space is bounded by lines at a distance of exactly
+     * <code>radius</code> from cell borders, so the closest point either is
+     * the position itself, or has one coordinate on such a line and the other
+     * one either on another one or equal to the position's.
+     * @param x The x coordinate of the position.
+     * @param y The y coordinate of the position.
+     * @param radius The half-width of the square.
+     * @param maxDist The maximum distance from the position.
+     * @param dest The vector to store the result in.
+     * @return True if a point was found, false if there is no free point within maxDist (and {@link RadialOrder#maxDist()} cells).
+     */
+    public boolean nearestFreeSpace(double x, double y, double radius, double maxDist, Vector2d dest)
+    {
+        double invscale = 1. / map.scale;
+        double qx = x * invscale;
+        double qy = y * invscale;
+        double rad = Math.abs(radius) * invscale;
+        double safeRad = rad - 0.00001;
+        double maxDistUnscaled = maxDist * invscale;
+        
+        if (!collisionBoxUnscaled(qx, qy, safeRad))
+        {
+            dest.x = x;
+            dest.y = y;
+            return true;
+        }
+        
+        int ix = MathUtil.floor(qx);
+        int iy = MathUtil.floor(qy);
+        
+        double bestX = 0, bestY = 0;
+        double bestDist = maxDistUnscaled;
+        boolean found = false;
+        
+        double[] xs = new double[5];
+        double[] ys = new double[5];
+        
+        int max = RadialOrder.count();
+        for (int i = 0; i < max; i++)
+        {
+            //no point in a later cell can be closer than this
+            if (RadialOrder.getDist(i) - 1.4143 >= bestDist)
+            {
+                break;
+            }
+            
+            int cx = ix + RadialOrder.getX(i);
+            int cy = iy + RadialOrder.getY(i);
+            if (get(cx, cy) == 0)
+            {
+                continue;
+            }
+            
+            double ddx = Math.max(Math.max(cx - qx, qx - (cx + 1)), 0);
+            double ddy = Math.max(Math.max(cy - qy, qy - (cy + 1)), 0);
+            if (ddx * ddx + ddy * ddy >= bestDist * bestDist)
+            {
+                continue;
+            }
+            
+            int nx = candidates(qx, cx, rad, xs);
+            int ny = candidates(qy, cy, rad, ys);
+            for (int j = 0; j < nx; j++)
+            {
+                for (int k = 0; k < ny; k++)
+                {
+                    double px = xs[j], py = ys[k];
+                    double distSqr = MathUtil.distSqr(qx, qy, px, py);
+                    if (distSqr < bestDist * bestDist && !collisionBoxUnscaled(px, py, safeRad))
+                    {
+                        bestDist = Math.sqrt(distSqr);
+                        bestX = px;
+                        bestY = py;
+                        found = true;
+                    }
+                }
+            }
+        }
+        
+        if (!found)
+        {
+            return false;
+        }
+        
+        dest.x = bestX * map.scale;
+        dest.y = bestY * map.scale;
+        return true;
+    }
+    
+    //the coordinates in [c, c+1] where the closest free point can be: q itself and all m +- rad for integers m
+    private static int candidates(double q, int c, double rad, double[] dest)
+    {
+        int n = 0;
+        if (q >= c && q <= c + 1)
+        {
+            dest[n++] = q;
+        }
+        for (int m = MathUtil.ceil(c + rad); m <= MathUtil.floor(c + 1 + rad); m++)
+        {
+            dest[n++] = m - rad;
+        }
+        for (int m = MathUtil.ceil(c - rad); m <= MathUtil.floor(c + 1 - rad); m++)
+        {
+            dest[n++] = m + rad;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,362 @@
+package onlinegame.shared.game.pathfinder;
+
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import java.util.Arrays;
+import onlinegame.shared.Logger;
+import onlinegame.shared.SharedUtil;
+import onlinegame.shared.game.CellBitmap;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * The abstract graph of hierarchical pathfinding (HPA*), used by the
+ * {@link HierarchicalPathfinder}.
+ * <br />
+ * The map is split into square clusters of cells. Wherever the passable cells
+ * (see {@link PassableCells}) on both sides of a cluster border
+ * form an opening, one or two transitions are placed across it, each made of
+ * a pair of neighboring cells. The cells of the transitions are the nodes of
+ * the graph, and they are connected across the border and to the other nodes
+ * of their cluster, with the length of the shortest path between them that
+ * stays inside the cluster.
+ * <br />
+ * Unlike the visibility graph of the {@link Pathfinder}, whose edge count
+ * grows with the square of the number of corners on the whole map, the size
+ * of this graph and the time to build it grow linearly with the map area.
+ * <br />
+ * When cells of the map change, a new graph is created with {@link #update},
+ * which only searches the clusters around the changed cells again.
+ * <br />
+ * Runtime: O(w * h * t log c) where t is the number of nodes per cluster and c the cluster area
+ * <br />
+ * Memory: O(w * h / c * t^2)
+ *
+ * @author Alfred
+ */
+public final class ClusterGraph
+{
+    public static final int DEFAULT_CLUSTER_SIZE = 16;
+    
+    //openings at least this wide get a transition at each end instead of one in the middle
+    private static final int WIDE_OPENING = 6;
+    
+    public final GameMap map;
+    public final double hitRadius;
+    public final int clusterSize;
+    public final int version; //of the map the graph was built for, see GameMap#getVersion
+    final int clustersX, clustersY;
+    final CellBitmap passable;
+    
+    //nodes sorted by cluster, the nodes of cluster c are clusterFirstNode[c] until clusterFirstNode[c+1]
+    final int[] nodeCell;
+    final int[] clusterFirstNode;
+    
+    //edges in compressed sparse row format, like Graph
+    final int[] firstEdge;
+    final int[] edgeTarget;
+    final float[] edgeCost;
+    
+    /**
+     * Builds the graph. The caller must hold the read lock of the map
+     * unless the map is only changed by the calling thread.
+     * @param map The map.
+     * @param hitRadius The radius of the actors using the graph.
+     * @param clusterSize The width and height of the clusters, in cells.
+     */
+    public ClusterGraph(GameMap map, double hitRadius, int clusterSize)
+    {
+        this(map, hitRadius, clusterSize, PassableCells.find(map, hitRadius), null, null);
+    }
+    
+    /**
+     * Builds the graph. If there is an old graph, the edges inside the
+     * clusters that aren't dirty and still have the same nodes are copied
+     * from it instead of being searched again (see {@link #update}).
+     * @param map The map.
+     * @param hitRadius The radius of the actors using the graph.
+     * @param clusterSize The width and height of the clusters, in cells.
+     * @param passable The passable cells.
+     * @param old The graph before the change, or null to build the whole graph.
+     * @param dirty The clusters whose passable cells may have changed.
+     */
+    private ClusterGraph(GameMap map, double hitRadius, int clusterSize, CellBitmap passable, ClusterGraph old, boolean[] dirty)
+    {
+        long startTime = System.nanoTime();
+        
+        this.map = map;
+        this.hitRadius = hitRadius;
+        this.clusterSize = clusterSize;
+        version = map.getVersion();
+        clustersX = (map.width + clusterSize - 1) / clusterSize;
+        clustersY = (map.height + clusterSize - 1) / clusterSize;
+        this.passable = passable;
+        
+        //pairs of cells across the cluster borders
+        TIntArrayList transitions = new TIntArrayList();
+        for (int cy = 0; cy < clustersY; cy++)
+        {
+            for (int cx = 0; cx < clustersX; cx++)
+            {
+                int x0 = cx * clusterSize, y0 = cy * clusterSize;
+                if (cx + 1 < clustersX)
+                {
+                    findTransitions(x0 + clusterSize - 1, y0, 1, 0, 0, 1, Math.min(clusterSize, map.height - y0), transitions);
+                }
+                if (cy + 1 < clustersY)
+                {
+                    findTransitions(x0, y0 + clusterSize - 1, 0, 1, 1, 0, Math.min(clusterSize, map.width - x0), transitions);
+                }
+            }
+        }
+        
+        //one node per distinct cell, sorted by cluster
+        int[] cells = transitions.toArray();
+        Arrays.sort(cells);
+        int numCells = 0;
+        for (int i = 0; i < cells.length; i++)
+        {
+            if (i == 0 || cells[i] != cells[i - 1])
+            {
+                cells[numCells++] = cells[i];
+            }
+        }
+        long[] sortKeys = new long[numCells];
+        for (int i = 0; i < numCells; i++)
+        {
+            sortKeys[i] = ((long)getCluster(cells[i]) << 32) | cells[i];
+        }
+        Arrays.sort(sortKeys);
+        
+        int numNodes = numCells;
+        nodeCell = new int[numNodes];
+        clusterFirstNode = new int[clustersX * clustersY + 1];
+        TIntIntHashMap cellNode = new TIntIntHashMap(numNodes * 2, .5f, -1, -1);
+        for (int i = 0; i < numNodes; i++)
+        {
+            nodeCell[i] = (int)sortKeys[i];
+            cellNode.put(nodeCell[i], i);
+            clusterFirstNode[(int)(sortKeys[i] >>> 32) + 1]++;
+        }
+        for (int c = 0; c < clustersX * clustersY; c++)
+        {
+            clusterFirstNode[c + 1] += clusterFirstNode[c];
+        }
+        
+        //edges across the borders
+        TIntArrayList[] targets = new TIntArrayList[numNodes];
+        TFloatArrayList[] costs = new TFloatArrayList[numNodes];
+        for (int i = 0; i < numNodes; i++)
+        {
+            targets[i] = new TIntArrayList();
+            costs[i] = new TFloatArrayList();
+        }
+        for (int i = 0; i < transitions.size(); i += 2)
+        {
+            int a = cellNode.get(transitions.get(i));
+            int b = cellNode.get(transitions.get(i + 1));
+            targets[a].add(b);
+            costs[a].add(map.scale);
+            targets[b].add(a);
+            costs[b].add(map.scale);
+        }
+        
+        //edges inside the clusters
+        ClusterSearch search = new ClusterSearch(this);
+        int searched = 0;
+        for (int c = 0; c < clustersX * clustersY; c++)
+        {
+            int first = clusterFirstNode[c], end = clusterFirstNode[c + 1];
+            if (old != null && !dirty[c] && hasSameNodes(old, c))
+            {
+                //the distances only depend on the passable cells of the cluster, so they are the same as before
+                int oldFirst = old.clusterFirstNode[c], oldEnd = old.clusterFirstNode[c + 1];
+                for (int i = first; i < end; i++)
+                {
+                    int n = oldFirst + (i - first);
+                    for (int e = old.firstEdge[n]; e < old.firstEdge[n + 1]; e++)
+                    {
+                        int m = old.edgeTarget[e];
+                        if (m >= oldFirst && m < oldEnd)
+                        {
+                            targets[i].add(first + (m - oldFirst));
+                            costs[i].add(old.edgeCost[e]);
+                        }
+                    }
+                }
+                continue;
+            }
+            
+            searched++;
+            for (int i = first; i < end; i++)
+            {
+                search.start(c % clustersX, c / clustersX);
+                search.seed(nodeCell[i], 0);
+                search.run(-1);
+                for (int j = first; j < end; j++)
+                {
+                    double d = search.getDistance(nodeCell[j]);
+                    if (j != i && d != Double.POSITIVE_INFINITY)
+                    {
+                        targets[i].add(j);
+                        costs[i].add((float)d);
+                    }
+                }
+            }
+        }
+        
+        int numEdges = 0;
+        firstEdge = new int[numNodes + 1];
+        for (int i = 0; i < numNodes; i++)
+        {
+            firstEdge[i] = numEdges;
+            numEdges += targets[i].size();
+        }
+        firstEdge[numNodes] = numEdges;
+        edgeTarget = new int[numEdges];
+        edgeCost = new float[numEdges];
+        for (int i = 0; i < numNodes; i++)
+        {
+            targets[i].toArray(edgeTarget, 0, firstEdge[i], targets[i].size());
+            costs[i].toArray(edgeCost, 0, firstEdge[i], costs[i].size());
+        }
+        
+        Logger.log((old == null ? "Generated" : "Updated") + " cluster graph for " + map.name + ": " + clustersX + "x" + clustersY + " clusters ("
+                + searched + " searched), " + numNodes + " nodes, " + numEdges / 2 + " edges in " + SharedUtil.getTimeString(System.nanoTime() - startTime) + ".");
+    }
+    
+    /**
+     * Creates the graph for the map after cells have changed. The transitions
+     * are found again everywhere, which only takes a pass over the cluster
+     * borders, but the searches inside the clusters, which take most of the
+     * time, only run again for the clusters that are affected by the change,
+     * i.e. the ones whose passable cells or transitions have changed. The
+     * caller must hold the write lock of the map, or the read lock if the
+     * map is only changed by the calling thread.
+     * @param x1 The x coordinate of the first changed cell.
+     * @param y1 The y coordinate of the first changed cell.
+     * @param x2 The x coordinate of the last changed cell.
+     * @param y2 The y coordinate of the last changed cell.
+     * @return The updated graph. This graph isn't modified.
+     */
+    public ClusterGraph update(int x1, int y1, int x2, int y2)
+    {
+        CellBitmap newPassable = new CellBitmap(passable);
+        PassableCells.update(newPassable, map, hitRadius, x1, y1, x2, y2);
+        
+        int r = PassableCells.range(map, hitRadius);
+        int cx1 = Math.max(x1 - r, 0) / clusterSize, cy1 = Math.max(y1 - r, 0) / clusterSize;
+        int cx2 = Math.min(x2 + r, map.width - 1) / clusterSize, cy2 = Math.min(y2 + r, map.height - 1) / clusterSize;
+        boolean[] dirty = new boolean[clustersX * clustersY];
+        for (int cy = cy1; cy <= cy2; cy++)
+        {
+            for (int cx = cx1; cx <= cx2; cx++)
+            {
+                dirty[cx + cy * clustersX] = true;
+            }
+        }
+        
+        return new ClusterGraph(map, hitRadius, clusterSize, newPassable, this, dirty);
+    }
+    
+    //true if the cluster has the nodes it had in the old graph, in the same order
+    private boolean hasSameNodes(ClusterGraph old, int c)
+    {
+        int first = clusterFirstNode[c], oldFirst = old.clusterFirstNode[c];
+        int count = clusterFirstNode[c + 1] - first;
+        if (old.clusterFirstNode[c + 1] - oldFirst != count)
+        {
+            return false;
+        }
+        for (int i = 0; i < count; i++)
+        {
+            if (nodeCell[first + i] != old.nodeCell[oldFirst + i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Finds the openings along one cluster border and adds a transition for
+     * each of them.
+     * @param x The x coordinate of the first cell on the near side of the border.
+     * @param y The y coordinate of the first cell on the near side of the border.
+     * @param acrossX The x offset from a cell to its neighbor on the far side.
+     * @param acrossY The y offset from a cell to its neighbor on the far side.
+     * @param alongX The x step along the border.
+     * @param alongY The y step along the border.
+     * @param length The number of cells along the border.
+     * @param transitions The list to add the cell pairs to.
+     */
+    private void findTransitions(int x, int y, int acrossX, int acrossY, int alongX, int alongY, int length, TIntArrayList transitions)
+    {
+        int runStart = -1;
+        for (int i = 0; i <= length; i++)
+        {
+            int ax = x + i * alongX, ay = y + i * alongY;
+            boolean open = i < length && passable.get(ax, ay) && passable.get(ax + acrossX, ay + acrossY);
+            if (open && runStart == -1)
+            {
+                runStart = i;
+            }
+            else if (!open && runStart != -1)
+            {
+                int runEnd = i - 1;
+                if (runEnd - runStart + 1 >= WIDE_OPENING)
+                {
+                    addTransition(x + runStart * alongX, y + runStart * alongY, acrossX, acrossY, transitions);
+                    addTransition(x + runEnd * alongX, y + runEnd * alongY, acrossX, acrossY, transitions);
+                }
+                else
+                {
+                    int mid = (runStart + runEnd) / 2;
+                    addTransition(x + mid * alongX, y + mid * alongY, acrossX, acrossY, transitions);
+                }
+                runStart = -1;
+            }
+        }
+    }
+    
+    private void addTransition(int x, int y, int acrossX, int acrossY, TIntArrayList transitions)
+    {
+        transitions.add(x + y * map.width);
+        transitions.add((x + acrossX) + (y + acrossY) * map.width);
+    }
+    
+    /**
+     * @param cell The index of a cell (x + y * width).
+     * @return The index of the cluster it is in (x + y * clustersX).
+     */
+    int getCluster(int cell)
+    {
+        return (cell % map.width) / clusterSize + (cell / map.width) / clusterSize * clustersX;
+    }
+    
+    /**
+     * @return The number of nodes.
+     */
+    public int size()
+    {
+        return nodeCell.length;
+    }
+    
+    /**
+     * @return The number of directed edges.
+     */
+    public int numEdges()
+    {
+        return edgeTarget.length;
+    }
+    
+    public int getClustersX()
+    {
+        return clustersX;
+    }
+    
+    public int getClustersY()
+    {
+        return clustersY;
+    }
+}
@@ -0,0 +1,185 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.util.Arrays;
+import onlinegame.shared.IndexedDoubleHeap;
+import onlinegame.shared.game.CellBitmap;
+
+/**
+ * Dijkstra search between the centers of passable cells, restricted to a
+ * single cluster of a {@link ClusterGraph}. The moves go to any of the 8
+ * neighbors, diagonally only if both orthogonal neighbors are passable as
+ * well, which makes every move between neighboring cells free of collisions.
+ * <br />
+ * Cells are identified by their index in the map (x + y * width). The state
+ * is only reset lazily, so a search costs nothing outside of the cells it
+ * actually reaches.
+ *
+ * @author Alfred
+ */
+final class ClusterSearch
+{
+    //neighbor offsets, orthogonal first
+    private static final int[] dirX = {1, 0, -1, 0, 1, -1, -1, 1};
+    private static final int[] dirY = {0, 1, 0, -1, 1, 1, -1, -1};
+    private static final double SQRT2 = Math.sqrt(2);
+    
+    private final CellBitmap passable;
+    private final int width, size;
+    private final double orthogonal, diagonal;
+    
+    //state indexed by the position inside the current cluster, valid if the stamp equals the current generation
+    private final int[] stamp;
+    private int generation = 0;
+    private final double[] dist;
+    private final int[] parent;
+    private final IndexedDoubleHeap heap;
+    private int x0, y0, x1, y1; //the current cluster, x1 and y1 exclusive
+    
+    private int expanded = 0;
+    
+    /**
+     * @param clusters The clusters to search in.
+     */
+    ClusterSearch(ClusterGraph clusters)
+    {
+        passable = clusters.passable;
+        width = clusters.map.width;
+        size = clusters.clusterSize;
+        orthogonal = clusters.map.scale;
+        diagonal = clusters.map.scale * SQRT2;
+        
+        stamp = new int[size * size];
+        dist = new double[size * size];
+        parent = new int[size * size];
+        heap = new IndexedDoubleHeap(size * size);
+    }
+    
+    /**
+     * Starts a new search inside a cluster, without any seeds.
+     * @param cx The x coordinate of the cluster.
+     * @param cy The y coordinate of the cluster.
+     */
+    void start(int cx, int cy)
+    {
+        x0 = cx * size;
+        y0 = cy * size;
+        x1 = Math.min(x0 + size, passable.width);
+        y1 = Math.min(y0 + size, passable.height);
+        
+        generation++;
+        if (generation == 0)
+        {
+            //the counter has wrapped around, make sure no old stamps are mistaken for current ones
+            Arrays.fill(stamp, 0);
+            generation = 1;
+        }
+        heap.clear();
+    }
+    
+    /**
+     * Adds a cell the search starts from.
+     * @param cell The cell, which must be a passable cell inside the cluster.
+     * @param cost The initial cost of the cell.
+     */
+    void seed(int cell, double cost)
+    {
+        int i = local(cell);
+        if (stamp[i] != generation || cost < dist[i])
+        {
+            stamp[i] = generation;
+            dist[i] = cost;
+            parent[i] = -1;
+            heap.decreaseKey(i, cost);
+        }
+    }
+    
+    /**
+     * Runs the search.
+     * @param target The cell to stop at once its distance is known, or -1 to reach every cell.
+     */
+    void run(int target)
+    {
+        int t = target == -1 ? -1 : local(target);
+        while (!heap.isEmpty())
+        {
+            int c = heap.poll();
+            expanded++;
+            if (c == t)
+            {
+                return;
+            }
+            
+            int cx = x0 + c % size, cy = y0 + c / size;
+            double cd = dist[c];
+            for (int dir = 0; dir < 8; dir++)
+            {
+                int nx = cx + dirX[dir], ny = cy + dirY[dir];
+                if (nx < x0 || ny < y0 || nx >= x1 || ny >= y1 || !passable.get(nx, ny))
+                {
+                    continue;
+                }
+                
+                double nd;
+                if (dir < 4)
+                {
+                    nd = cd + orthogonal;
+                }
+                else
+                {
+                    if (!passable.get(nx, cy) || !passable.get(cx, ny))
+                    {
+                        continue;
+                    }
+                    nd = cd + diagonal;
+                }
+                
+                int n = (nx - x0) + (ny - y0) * size;
+                if (stamp[n] != generation || nd < dist[n])
+                {
+                    stamp[n] = generation;
+                    dist[n] = nd;
+                    parent[n] = c;
+                    heap.decreaseKey(n, nd);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @param cell A cell.
+     * @return The distance of the cell from the seeds, or infinity if it wasn't reached or is outside the cluster.
+     */
+    double getDistance(int cell)
+    {
+        int x = cell % width, y = cell / width;
+        if (x < x0 || y < y0 || x >= x1 || y >= y1)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+        int i = (x - x0) + (y - y0) * size;
+        return stamp[i] == generation ? dist[i] : Double.POSITIVE_INFINITY;
+    }
+    
+    /**
+     * @param cell A cell that was reached by the search.
+     * @return The cell it was reached from, or -1 for seeds.
+     */
+    int getParent(int cell)
+    {
+        int p = parent[local(cell)];
+        return p == -1 ? -1 : (x0 + p % size) + (y0 + p / size) * width;
+    }
+    
+    /**
+     * @return The total number of cells taken from the frontier so far.
+     */
+    int getExpanded()
+    {
+        return expanded;
+    }
+    
+    private int local(int cell)
+    {
+        return (cell % width - x0) + (cell / width - y0) * size;
+    }
+}
@@ -1,7 +1,5 @@
 package onlinegame.shared.game.pathfinder;
 
-import gnu.trove.map.TObjectIntMap;
-import gnu.trove.map.hash.TObjectIntHashMap;
 import java.util.Arrays;
 import onlinegame.shared.Logger;
 import onlinegame.shared.Timer;
@@ -13,24 +11,17 @@ import onlinegame.shared.Timer;
 public final class FloydWarshall
 {
     private final float[] dist;
-    private final TObjectIntMap<Node> nodeIdMap;
     public final int numVertices;
     
-    private FloydWarshall(float[] dist, TObjectIntMap<Node> nodeIdMap, int numVertices)
+    private FloydWarshall(float[] dist, int numVertices)
     {
         this.dist = dist;
-        this.nodeIdMap = nodeIdMap;
         this.numVertices = numVertices;
     }
     
-    public float getDistance(Node n1, Node n2)
-    {
-        return getDistanceFast(getNodeIndex(n1), getNodeIndex(n2));
-    }
-    
     public float getDistance(int n1, int n2)
     {
-        if (n1 < 0 || n2 < 0 || n1 >= dist.length || n2 >= dist.length)
+        if (n1 < 0 || n2 < 0 || n1 >= numVertices || n2 >= numVertices)
         {
             throw new IndexOutOfBoundsException();
         }
@@ -42,11 +33,6 @@ public final class FloydWarshall
         return dist[n1 + n2 * numVertices];
     }
     
-    public int getNodeIndex(Node n)
-    {
-        return nodeIdMap.get(n);
-    }
-    
     /**
      * Runtime: O(n<sup>3</sup>)
      * <br />
@@ -72,30 +58,18 @@ public final class FloydWarshall
         //initialize array to infinity
         Arrays.fill(dist, Float.POSITIVE_INFINITY);
         
-        TObjectIntMap<Node> nodeIdMap = new TObjectIntHashMap<>(2 * numVertices + 1, .5f, -1);
-        
         for (int i = 0; i < numVertices; i++)
         {
             //set the diagonals (the path from a vertex to itself) to 0
             dist[i + i * numVertices] = 0;
-            
-            //add the node to the map
-            nodeIdMap.put(g.get(i), i);
         }
         
         //initialize edge costs
         for (int i = 0; i < numVertices; i++)
         {
-            Node n1 = g.get(i);
-            int numEdges = n1.numNeighbors();
-            for (int j = 0; j < numEdges; j++)
+            for (int e = g.getFirstEdge(i); e < g.getEndEdge(i); e++)
             {
-                Node n2 = n1.getNeighbor(j);
-                //Edge e = n1.getEdge(j);
-                //Node n2 = e.second == n1 ? e.first : e.second;
-                int i2 = nodeIdMap.get(n2);
-                
-                dist[i + i2 * numVertices] = (float)n1.getNeighborCost(j);
+                dist[i + g.getEdgeTarget(e) * numVertices] = g.getEdgeCost(e);
             }
         }
         
@@ -152,7 +126,7 @@ public final class FloydWarshall
         }
         */
         
-        return new FloydWarshall(dist, nodeIdMap, numVertices);
+        return new FloydWarshall(dist, numVertices);
     }
 }
 
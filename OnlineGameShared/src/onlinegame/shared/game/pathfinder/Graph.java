@@ -1,61 +1,264 @@
 package onlinegame.shared.game.pathfinder;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.Arrays;
 
 /**
+ * An immutable navigation graph stored in compressed sparse row form: the
+ * neighbors of node <code>i</code> are the edges
+ * <code>firstEdge[i] .. firstEdge[i+1]-1</code>, sorted by node index.
+ * Since it can't be modified it can be safely shared between any number of
+ * {@link Pathfinder}s and threads, and so can the {@link Landmarks} derived
+ * from it.
+ * <br />
+ * Every node lies diagonally off a corner of a blocked cell, and the
+ * direction of that cell is stored with the node (see {@link #getCorner}).
+ * A shortest path only bends at a node if both of its lines there are
+ * tangent to the cell (see {@link #isTangentLine}), which is used to prune the
+ * graph, see {@link #getTautGraph}.
  *
  * @author Alfred
  */
 public final class Graph
 {
-    private final List<Node> nodes;
+    /**
+     * Bits of {@link #getCorner}, set if the blocked cell of the node is in
+     * the positive x or y direction respectively.
+     */
+    public static final int CORNER_POSITIVE_X = 1, CORNER_POSITIVE_Y = 2;
     
-    public Graph()
+    //lines this close to an edge of the blocked cell of a node count as tangent
+    private static final double TANGENT_SLOPE = .0001, TANGENT_OFFSET = .00001;
+    
+    //package-private for the pathfinder's inner loops
+    final float[] x, y;
+    final byte[] corner;
+    final int[] firstEdge;
+    final int[] edgeTarget;
+    final float[] edgeCost;
+    
+    private final boolean taut;
+    private volatile Landmarks landmarks = null;
+    private volatile Graph tautGraph = null;
+    
+    Graph(float[] x, float[] y, byte[] corner, int[] firstEdge, int[] edgeTarget, float[] edgeCost)
     {
-        this.nodes = new ArrayList<>();
+        this(x, y, corner, firstEdge, edgeTarget, edgeCost, false);
     }
-    public Graph(Node[] nodes)
+    
+    private Graph(float[] x, float[] y, byte[] corner, int[] firstEdge, int[] edgeTarget, float[] edgeCost, boolean taut)
     {
-        this.nodes = new ArrayList<>(nodes.length);
-        for (int i = 0; i < nodes.length; i++)
+        if (x.length != y.length || corner.length != x.length || firstEdge.length != x.length + 1 || edgeTarget.length != edgeCost.length
+                || firstEdge[0] != 0 || firstEdge[x.length] != edgeTarget.length)
         {
-            this.nodes.add(nodes[i]);
+            throw new IllegalArgumentException("Inconsistent graph arrays.");
         }
+        
+        this.x = x;
+        this.y = y;
+        this.corner = corner;
+        this.firstEdge = firstEdge;
+        this.edgeTarget = edgeTarget;
+        this.edgeCost = edgeCost;
+        this.taut = taut;
     }
-    public Graph(Collection<Node> nodes)
+    
+    public int size()
     {
-        this.nodes = new ArrayList<>(nodes);
+        return x.length;
     }
     
-    public void add(Node n)
+    /**
+     * @return The number of directed edges, i.e. twice the number of connections.
+     */
+    public int numEdges()
     {
-        nodes.add(n);
+        return edgeTarget.length;
     }
     
-    public void remove(int i)
+    public float getX(int node)
     {
-        nodes.remove(i);
+        return x[node];
     }
     
-    public void remove(Node n)
+    public float getY(int node)
     {
-        nodes.remove(n);
+        return y[node];
     }
     
-    public void removeLast()
+    /**
+     * @param node The node.
+     * @return The direction of the blocked cell the node belongs to, a combination of {@link #CORNER_POSITIVE_X} and {@link #CORNER_POSITIVE_Y}.
+     */
+    public int getCorner(int node)
     {
-        nodes.remove(nodes.size() - 1);
+        return corner[node];
     }
     
-    public int size()
+    /**
+     * @param corner The direction of a blocked cell, see {@link #getCorner}.
+     * @param dx The x offset from the node to a point.
+     * @param dy The y offset from the node to a point.
+     * @return True if the point lies strictly inside the quadrant of the node's blocked cell, in which case the line to it always hits the cell.
+     */
+    static boolean inBlockedQuadrant(int corner, double dx, double dy)
+    {
+        return ((corner & CORNER_POSITIVE_X) != 0 ? dx > 0 : dx < 0)
+                && ((corner & CORNER_POSITIVE_Y) != 0 ? dy > 0 : dy < 0);
+    }
+    
+    /**
+     * @param corner The direction of a blocked cell, see {@link #getCorner}.
+     * @param dx The x offset from the node to a point.
+     * @param dy The y offset from the node to a point.
+     * @return True if the line through the node and the point doesn't pass through the blocked cell, i.e. the point isn't in its quadrant or the opposite one.
+     */
+    static boolean isTangentLine(int corner, double dx, double dy)
+    {
+        double ax = Math.abs(dx), ay = Math.abs(dy);
+        if (Math.min(ax, ay) <= TANGENT_SLOPE * Math.max(ax, ay) + TANGENT_OFFSET)
+        {
+            //along an edge of the cell, give or take rounding errors and the margin of the line tests
+            return true;
+        }
+        double p = dx * dy;
+        boolean same = ((corner & CORNER_POSITIVE_X) != 0) == ((corner & CORNER_POSITIVE_Y) != 0);
+        return same ? p <= 0 : p >= 0;
+    }
+    
+    /**
+     * @param node The node.
+     * @param px The x coordinate of a point.
+     * @param py The y coordinate of a point.
+     * @return True if a path can bend around the node coming from or going to the point, see {@link #isTangentLine}.
+     */
+    public boolean isTangent(int node, double px, double py)
+    {
+        return isTangentLine(corner[node], px - x[node], py - y[node]);
+    }
+    
+    public int numNeighbors(int node)
+    {
+        return firstEdge[node + 1] - firstEdge[node];
+    }
+    
+    public int getFirstEdge(int node)
+    {
+        return firstEdge[node];
+    }
+    
+    public int getEndEdge(int node)
+    {
+        return firstEdge[node + 1];
+    }
+    
+    public int getEdgeTarget(int edge)
     {
-        return nodes.size();
+        return edgeTarget[edge];
     }
     
-    public Node get(int i)
+    public float getEdgeCost(int edge)
     {
-        return nodes.get(i);
+        return edgeCost[edge];
+    }
+    
+    public int getNeighbor(int node, int i)
+    {
+        return edgeTarget[firstEdge[node] + i];
+    }
+    
+    public float getNeighborCost(int node, int i)
+    {
+        return edgeCost[firstEdge[node] + i];
+    }
+    
+    /**
+     * @return True if this is the graph returned by {@link #getTautGraph}.
+     */
+    public boolean isTaut()
+    {
+        return taut;
+    }
+    
+    /**
+     * Returns this graph with only the edges that are tangent to the blocked
+     * cells at both ends, created the first time it is requested. The nodes
+     * are the same.
+     * <br />
+     * Every node between the start and the goal of a shortest path is a
+     * place where the path wraps around a blocked cell, so the lines before
+     * and after it are both tangent to it. Searches whose start and goal
+     * aren't graph nodes therefore find paths of the same length in the
+     * taut graph, as long as the lines from the start and to the goal are
+     * only used at nodes where they are tangent too.
+     * @return The taut graph.
+     */
+    public Graph getTautGraph()
+    {
+        if (taut)
+        {
+            return this;
+        }
+        Graph g = tautGraph;
+        if (g == null)
+        {
+            synchronized (this)
+            {
+                g = tautGraph;
+                if (g == null)
+                {
+                    g = prune();
+                    tautGraph = g;
+                }
+            }
+        }
+        return g;
+    }
+    
+    private Graph prune()
+    {
+        int size = size();
+        int[] newFirstEdge = new int[size + 1];
+        int[] newEdgeTarget = new int[edgeTarget.length];
+        float[] newEdgeCost = new float[edgeCost.length];
+        
+        int e2 = 0;
+        for (int i = 0; i < size; i++)
+        {
+            newFirstEdge[i] = e2;
+            for (int e = firstEdge[i]; e < firstEdge[i + 1]; e++)
+            {
+                int j = edgeTarget[e];
+                if (isTangent(i, x[j], y[j]) && isTangent(j, x[i], y[i]))
+                {
+                    newEdgeTarget[e2] = j;
+                    newEdgeCost[e2] = edgeCost[e];
+                    e2++;
+                }
+            }
+        }
+        newFirstEdge[size] = e2;
+        
+        return new Graph(x, y, corner, newFirstEdge, Arrays.copyOf(newEdgeTarget, e2), Arrays.copyOf(newEdgeCost, e2), true);
+    }
+    
+    /**
+     * @return The {@link Landmarks#DEFAULT_COUNT default} landmarks of this graph, which are generated the first time they are requested.
+     */
+    public Landmarks getLandmarks()
+    {
+        Landmarks l = landmarks;
+        if (l == null)
+        {
+            synchronized (this)
+            {
+                l = landmarks;
+                if (l == null)
+                {
+                    l = Landmarks.generate(this, Landmarks.DEFAULT_COUNT);
+                    landmarks = l;
+                }
+            }
+        }
+        return l;
     }
 }
@@ -0,0 +1,133 @@
+package onlinegame.shared.game.pathfinder;
+
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import java.util.ArrayList;
+import java.util.List;
+import onlinegame.shared.MathUtil;
+
+/**
+ * Collects nodes and connections and turns them into an immutable {@link Graph}.
+ *
+ * @author Alfred
+ */
+public final class GraphBuilder
+{
+    private final TDoubleArrayList xList = new TDoubleArrayList();
+    private final TDoubleArrayList yList = new TDoubleArrayList();
+    private final TByteArrayList cornerList = new TByteArrayList();
+    private final List<TIntArrayList> neighbors = new ArrayList<>();
+    
+    /**
+     * @param x The x coordinate of the node.
+     * @param y The y coordinate of the node.
+     * @param corner The direction of the blocked cell the node belongs to, see {@link Graph#getCorner}.
+     * @return The index of the node.
+     */
+    public int addNode(double x, double y, int corner)
+    {
+        xList.add(x);
+        yList.add(y);
+        cornerList.add((byte)corner);
+        neighbors.add(new TIntArrayList());
+        return xList.size() - 1;
+    }
+    
+    public int size()
+    {
+        return xList.size();
+    }
+    
+    public double getX(int node)
+    {
+        return xList.get(node);
+    }
+    
+    public double getY(int node)
+    {
+        return yList.get(node);
+    }
+    
+    public int getCorner(int node)
+    {
+        return cornerList.get(node);
+    }
+    
+    public int numNeighbors(int node)
+    {
+        return neighbors.get(node).size();
+    }
+    
+    /**
+     * Connects two nodes in both directions, with the euclidean distance as cost.
+     * @param n1 The first node.
+     * @param n2 The second node.
+     */
+    public void connect(int n1, int n2)
+    {
+        neighbors.get(n1).add(n2);
+        neighbors.get(n2).add(n1);
+    }
+    
+    /**
+     * Builds the graph. Nodes without any neighbors are left out, and the
+     * neighbor lists are sorted by node index.
+     * @return The finished graph.
+     */
+    public Graph build()
+    {
+        int size = size();
+        
+        //map old node indices to new ones, skipping unconnected nodes
+        int[] newIndex = new int[size];
+        int newSize = 0;
+        int numEdges = 0;
+        for (int i = 0; i < size; i++)
+        {
+            int num = numNeighbors(i);
+            if (num == 0)
+            {
+                newIndex[i] = -1;
+            }
+            else
+            {
+                newIndex[i] = newSize++;
+                numEdges += num;
+            }
+        }
+        
+        float[] x = new float[newSize];
+        float[] y = new float[newSize];
+        byte[] corner = new byte[newSize];
+        int[] firstEdge = new int[newSize + 1];
+        int[] edgeTarget = new int[numEdges];
+        float[] edgeCost = new float[numEdges];
+        
+        int e = 0;
+        for (int i = 0; i < size; i++)
+        {
+            int n = newIndex[i];
+            if (n == -1) continue;
+            
+            double x1 = xList.get(i), y1 = yList.get(i);
+            x[n] = (float)x1;
+            y[n] = (float)y1;
+            corner[n] = cornerList.get(i);
+            firstEdge[n] = e;
+            
+            TIntArrayList list = neighbors.get(i);
+            list.sort();
+            for (int j = 0; j < list.size(); j++)
+            {
+                int other = list.get(j);
+                edgeTarget[e] = newIndex[other];
+                edgeCost[e] = (float)MathUtil.dist(x1, y1, xList.get(other), yList.get(other));
+                e++;
+            }
+        }
+        firstEdge[newSize] = e;
+        
+        return new Graph(x, y, corner, firstEdge, edgeTarget, edgeCost);
+    }
+}
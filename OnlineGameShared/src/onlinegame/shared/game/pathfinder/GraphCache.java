@@ -0,0 +1,392 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import onlinegame.shared.Logger;
+import onlinegame.shared.Timer;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * Process-wide registry of immutable navigation graphs, keyed by map id, cells
+ * and hit radius, so that every game on the same map shares a single graph,
+ * even if each game has its own copy of the map (see {@link GameMap#copy}).
+ * <br />
+ * If a cache directory has been set, generated graphs are also written to disk
+ * (keyed by a hash of the map cells) and memory-mapped on later starts instead
+ * of being generated again.
+ * <br />
+ * When cells of a map are changed (see {@link GameMap#setCells}), the graphs
+ * that map has used are replaced with updated ones (see {@link GraphUpdater})
+ * for that map only, while the write lock of the map is held, so {@link #get}
+ * returns the graph of the current cells to threads that hold the read lock.
+ * The shared graphs are never changed, so other copies of the map keep using
+ * them. Graphs of changed maps aren't shared, or saved to or loaded from the
+ * disk cache.
+ *
+ * @author Alfred
+ */
+public final class GraphCache
+{
+    private GraphCache() {}
+    
+    private static final int MAGIC = 0x4e415647; //"NAVG"
+    private static final int VERSION = 3;
+    
+    private static final ConcurrentMap<Key, Entry> graphs = new ConcurrentHashMap<>();
+    //the graphs each map is using, only weakly reachable from here, the listeners of the maps keep them alive
+    private static final Map<GameMap, WeakReference<MapGraphs>> mapGraphs = new WeakHashMap<>();
+    private static volatile File cacheDir = null;
+    
+    /**
+     * Sets the directory that generated graphs are saved to and loaded from.
+     * @param dir The cache directory, or null to disable the disk cache.
+     */
+    public static void setCacheDirectory(File dir)
+    {
+        cacheDir = dir;
+    }
+    
+    public static File getCacheDirectory()
+    {
+        return cacheDir;
+    }
+    
+    /**
+     * Returns the graph for the given map and hit radius, generating or
+     * loading it if this is the first request for it. Concurrent requests for
+     * the same graph wait for the first one to finish instead of generating it
+     * again.
+     * @param map The map.
+     * @param hitRadius The hit radius of the actors using the graph.
+     * @return The graph.
+     */
+    public static Graph get(GameMap map, double hitRadius)
+    {
+        MapGraphs mg;
+        synchronized (mapGraphs)
+        {
+            WeakReference<MapGraphs> ref = mapGraphs.get(map);
+            mg = ref == null ? null : ref.get();
+            if (mg == null)
+            {
+                mg = new MapGraphs(map);
+                mapGraphs.put(map, new WeakReference<>(mg));
+            }
+        }
+        return mg.get(hitRadius);
+    }
+    
+    /**
+     * Removes all graphs from the in-memory registry. Games that are still
+     * running keep the graphs they already have.
+     */
+    public static void clear()
+    {
+        synchronized (mapGraphs)
+        {
+            for (Map.Entry<GameMap, WeakReference<MapGraphs>> e : mapGraphs.entrySet())
+            {
+                MapGraphs mg = e.getValue().get();
+                if (mg != null)
+                {
+                    e.getKey().removeChangeListener(mg);
+                }
+            }
+            mapGraphs.clear();
+        }
+        graphs.clear();
+    }
+    
+    //the shared graph of the cells the map was loaded with
+    private static Graph getShared(GameMap map, double hitRadius)
+    {
+        Key key = new Key(map.id, map.cellHash, hitRadius);
+        Entry entry = graphs.get(key);
+        if (entry == null)
+        {
+            Entry newEntry = new Entry(map, hitRadius);
+            entry = graphs.putIfAbsent(key, newEntry);
+            if (entry == null)
+            {
+                entry = newEntry;
+            }
+        }
+        return entry.get();
+    }
+    
+    private static Graph load(GameMap map, double hitRadius)
+    {
+        //the file names only identify the cells the map was loaded with
+        File dir = map.getVersion() == 0 ? cacheDir : null;
+        File file = dir == null ? null : new File(dir, getFileName(map, hitRadius));
+        
+        if (file != null && file.isFile())
+        {
+            try
+            {
+                Timer t = new Timer();
+                Graph g = read(file, map, hitRadius);
+                t.print("Loaded graph for " + map.name + " from " + file.getName() + " (" + g.size() + " nodes)");
+                return g;
+            }
+            catch (IOException | RuntimeException e)
+            {
+                Logger.logError("Invalid graph cache file " + file + " - " + e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+        }
+        
+        Graph g = Pathfinder.genGraph(map, hitRadius);
+        
+        if (file != null)
+        {
+            try
+            {
+                write(file, g, map, hitRadius);
+            }
+            catch (IOException e)
+            {
+                Logger.logError("Failed to write graph cache file " + file + " - " + e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+        }
+        
+        return g;
+    }
+    
+    private static String getFileName(GameMap map, double hitRadius)
+    {
+        return "graph-" + map.id
+                + "-" + Long.toHexString(map.cellHash)
+                + "-" + Long.toHexString(Double.doubleToLongBits(hitRadius))
+                + ".bin";
+    }
+    
+    /*
+     * File format (big-endian):
+     *   int magic, int version
+     *   long cellHash, int width, int height, float scale, double hitRadius
+     *   int numNodes, int numEdges
+     *   numNodes * float x, numNodes * float y
+     *   (numNodes + 1) * int firstEdge
+     *   numEdges * int edgeTarget, numEdges * float edgeCost
+     *   numNodes * byte corner
+     */
+    private static void write(File file, Graph g, GameMap map, double hitRadius) throws IOException
+    {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new IOException("Could not create directory " + dir);
+        }
+        
+        //write to a temporary file first, so that other processes never see a half-written file
+        File temp = File.createTempFile(file.getName(), ".tmp", dir);
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(map.cellHash);
+                out.writeInt(map.width);
+                out.writeInt(map.height);
+                out.writeFloat(map.scale);
+                out.writeDouble(hitRadius);
+                
+                out.writeInt(g.size());
+                out.writeInt(g.numEdges());
+                for (float x : g.x) out.writeFloat(x);
+                for (float y : g.y) out.writeFloat(y);
+                for (int e : g.firstEdge) out.writeInt(e);
+                for (int t : g.edgeTarget) out.writeInt(t);
+                for (float c : g.edgeCost) out.writeFloat(c);
+                out.write(g.corner);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+    
+    private static Graph read(File file, GameMap map, double hitRadius) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+        {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            
+            if (buf.getInt() != MAGIC) throw new IOException("Not a graph file.");
+            int version = buf.getInt();
+            if (version != VERSION) throw new IOException("Unsupported version: " + version);
+            
+            if (buf.getLong() != map.cellHash
+                    || buf.getInt() != map.width
+                    || buf.getInt() != map.height
+                    || buf.getFloat() != map.scale
+                    || buf.getDouble() != hitRadius)
+            {
+                throw new IOException("The graph was generated for a different map.");
+            }
+            
+            int size = buf.getInt();
+            int numEdges = buf.getInt();
+            if (size < 0) throw new IOException("Invalid node count: " + size);
+            if (numEdges < 0) throw new IOException("Invalid edge count: " + numEdges);
+            if ((long)buf.remaining() != 4L * (3L * size + 1 + 2L * numEdges) + size) throw new IOException("Wrong file size.");
+            
+            float[] x = new float[size];
+            float[] y = new float[size];
+            byte[] corner = new byte[size];
+            int[] firstEdge = new int[size + 1];
+            int[] edgeTarget = new int[numEdges];
+            float[] edgeCost = new float[numEdges];
+            
+            //bulk reads, the views are positioned at the buffer's current position
+            buf.asFloatBuffer().get(x);
+            buf.position(buf.position() + 4 * size);
+            buf.asFloatBuffer().get(y);
+            buf.position(buf.position() + 4 * size);
+            buf.asIntBuffer().get(firstEdge);
+            buf.position(buf.position() + 4 * (size + 1));
+            buf.asIntBuffer().get(edgeTarget);
+            buf.position(buf.position() + 4 * numEdges);
+            buf.asFloatBuffer().get(edgeCost);
+            buf.position(buf.position() + 4 * numEdges);
+            buf.get(corner);
+            
+            for (int i = 0; i < size; i++)
+            {
+                if (firstEdge[i] > firstEdge[i + 1]) throw new IOException("Invalid edge offsets at node " + i);
+            }
+            for (int t : edgeTarget)
+            {
+                if (t < 0 || t >= size) throw new IOException("Invalid neighbor index: " + t);
+            }
+            for (byte c : corner)
+            {
+                if ((c & ~(Graph.CORNER_POSITIVE_X | Graph.CORNER_POSITIVE_Y)) != 0) throw new IOException("Invalid corner: " + c);
+            }
+            
+            try
+            {
+                return new Graph(x, y, corner, firstEdge, edgeTarget, edgeCost);
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IOException("Unexpected end of file.", e);
+        }
+    }
+    
+    //a shared graph, which is never changed
+    private static final class Entry
+    {
+        //only used to load the graph, any map with the same id and cells would do
+        private GameMap map;
+        private final double hitRadius;
+        private Graph graph = null;
+        
+        private Entry(GameMap map, double hitRadius)
+        {
+            this.map = map;
+            this.hitRadius = hitRadius;
+        }
+        
+        private synchronized Graph get()
+        {
+            if (graph == null)
+            {
+                graph = load(map, hitRadius);
+                map = null;
+            }
+            return graph;
+        }
+    }
+    
+    //the graphs used by one map, by hit radius
+    private static final class MapGraphs implements GameMap.ChangeListener
+    {
+        private final GameMap map;
+        private final Map<Double, Graph> graphs = new HashMap<>();
+        
+        private MapGraphs(GameMap map)
+        {
+            this.map = map;
+            map.addChangeListener(this);
+        }
+        
+        private synchronized Graph get(double hitRadius)
+        {
+            Graph g = graphs.get(hitRadius);
+            if (g == null)
+            {
+                //changed maps generate their own graphs
+                g = map.getVersion() == 0 ? getShared(map, hitRadius) : load(map, hitRadius);
+                graphs.put(hitRadius, g);
+            }
+            return g;
+        }
+        
+        @Override
+        public synchronized void cellsChanged(GameMap map, int x1, int y1, int x2, int y2)
+        {
+            for (Map.Entry<Double, Graph> e : graphs.entrySet())
+            {
+                e.setValue(GraphUpdater.update(e.getValue(), map, e.getKey(), x1, y1, x2, y2));
+            }
+        }
+    }
+    
+    private static final class Key
+    {
+        private final int mapId;
+        private final long cellHash;
+        private final double hitRadius;
+        
+        private Key(int mapId, long cellHash, double hitRadius)
+        {
+            this.mapId = mapId;
+            this.cellHash = cellHash;
+            this.hitRadius = hitRadius;
+        }
+        
+        @Override
+        public boolean equals(Object o)
+        {
+            if (o == this) return true;
+            if (!(o instanceof Key)) return false;
+            
+            Key k = (Key)o;
+            return mapId == k.mapId && cellHash == k.cellHash && Double.doubleToLongBits(hitRadius) == Double.doubleToLongBits(k.hitRadius);
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            int hash = 7;
+            hash = 59 * hash + mapId;
+            hash = 59 * hash + (int)(cellHash ^ (cellHash >>> 32));
+            hash = 59 * hash + (int)(Double.doubleToLongBits(hitRadius) ^ (Double.doubleToLongBits(hitRadius) >>> 32));
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package onlinegame.shared.game.pathfinder;
+
+import gnu.trove.list.array.TIntArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import onlinegame.shared.Logger;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * Finds the edges of a visibility graph, i.e. the pairs of nodes that can
+ * see each other, in parallel on the {@link PathService} pool.
+ * <br />
+ * Every node lies diagonally off a corner of a blocked cell, and a line that
+ * leaves it into the quadrant of that cell always hits the cell. Pairs where
+ * either node lies in the other one's blocked quadrant are therefore
+ * rejected without a line test, and the nodes are kept in a grid of buckets
+ * so that whole buckets inside the quadrant are skipped at once. Both tests
+ * are exact, so the edges are the same as if every pair had been tested.
+ * <br />
+ * Each node is connected to the nodes before it, and the results are merged
+ * in node order, so the graph doesn't depend on how the work was split.
+ *
+ * @author Alfred
+ */
+final class GraphConnector
+{
+    //bucket size in cells
+    private static final int BUCKET_SIZE = 16;
+    
+    //nodes per task that isn't split any further
+    private static final int TASK_SIZE = 8;
+    
+    private final GameMap map;
+    private final double rad;
+    private final double[] x, y;
+    private final int[] corner; //the direction of the blocked cell of each node, see Graph.getCorner
+    
+    //nodes sorted by bucket, the nodes of bucket b are bucketNodes[bucketStart[b]] until bucketNodes[bucketStart[b+1]]
+    private final int bucketsX, bucketsY;
+    private final int[] bucketStart, bucketNodes;
+    private final double[] bucketMinX, bucketMinY, bucketMaxX, bucketMaxY;
+    
+    private final int[][] lower; //the visible nodes with a lower index, for each node
+    
+    private final long totalPairs;
+    private final AtomicLong pairsDone = new AtomicLong();
+    private final AtomicInteger loggedPercent = new AtomicInteger();
+    private final AtomicLong raycasts = new AtomicLong();
+    
+    /**
+     * @param map The map.
+     * @param rad The radius to test the lines with.
+     * @param x The x coordinates of the nodes.
+     * @param y The y coordinates of the nodes.
+     * @param corner The direction of the blocked cell each node belongs to, see {@link Graph#getCorner}.
+     */
+    GraphConnector(GameMap map, double rad, double[] x, double[] y, int[] corner)
+    {
+        this.map = map;
+        this.rad = rad;
+        this.x = x;
+        this.y = y;
+        this.corner = corner;
+        int n = x.length;
+        lower = new int[n][];
+        totalPairs = (long)n * (n - 1) / 2;
+        
+        double bucketWidth = BUCKET_SIZE * map.scale;
+        bucketsX = Math.max(1, (int)Math.ceil(map.getScaledWidth() / bucketWidth) + 1);
+        bucketsY = Math.max(1, (int)Math.ceil(map.getScaledHeight() / bucketWidth) + 1);
+        int numBuckets = bucketsX * bucketsY;
+        
+        int[] bucket = new int[n];
+        bucketStart = new int[numBuckets + 1];
+        for (int i = 0; i < n; i++)
+        {
+            //nodes can lie slightly outside of the map
+            int bx = Math.min(Math.max((int)Math.floor(x[i] / bucketWidth), 0), bucketsX - 1);
+            int by = Math.min(Math.max((int)Math.floor(y[i] / bucketWidth), 0), bucketsY - 1);
+            bucket[i] = bx + by * bucketsX;
+            bucketStart[bucket[i] + 1]++;
+        }
+        for (int b = 0; b < numBuckets; b++)
+        {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        
+        bucketNodes = new int[n];
+        bucketMinX = new double[numBuckets];
+        bucketMinY = new double[numBuckets];
+        bucketMaxX = new double[numBuckets];
+        bucketMaxY = new double[numBuckets];
+        Arrays.fill(bucketMinX, Double.POSITIVE_INFINITY);
+        Arrays.fill(bucketMinY, Double.POSITIVE_INFINITY);
+        Arrays.fill(bucketMaxX, Double.NEGATIVE_INFINITY);
+        Arrays.fill(bucketMaxY, Double.NEGATIVE_INFINITY);
+        int[] fill = Arrays.copyOf(bucketStart, numBuckets);
+        for (int i = 0; i < n; i++)
+        {
+            int b = bucket[i];
+            bucketNodes[fill[b]++] = i;
+            bucketMinX[b] = Math.min(bucketMinX[b], x[i]);
+            bucketMinY[b] = Math.min(bucketMinY[b], y[i]);
+            bucketMaxX[b] = Math.max(bucketMaxX[b], x[i]);
+            bucketMaxY[b] = Math.max(bucketMaxY[b], y[i]);
+        }
+    }
+    
+    /**
+     * Tests all pairs of nodes, using the pool of the calling thread if it
+     * is a pool thread, and the {@link PathService} pool otherwise.
+     * @return The visible nodes with a lower index, for each node.
+     */
+    int[][] connect()
+    {
+        Task task = new Task(0, x.length);
+        if (ForkJoinTask.inForkJoinPool())
+        {
+            task.invoke();
+        }
+        else
+        {
+            PathService.pool.invoke(task);
+        }
+        return lower;
+    }
+    
+    /**
+     * @return The number of line tests done by {@link #connect}.
+     */
+    long getRaycasts()
+    {
+        return raycasts.get();
+    }
+    
+    /**
+     * @return The number of pairs of nodes, which would all need a line test without pruning.
+     */
+    long getTotalPairs()
+    {
+        return totalPairs;
+    }
+    
+    private void connect(int i, TIntArrayList result)
+    {
+        result.resetQuick();
+        double xi = x[i], yi = y[i];
+        int rays = 0;
+        
+        for (int b = 0; b < bucketsX * bucketsY; b++)
+        {
+            int start = bucketStart[b], end = bucketStart[b + 1];
+            boolean positiveX = (corner[i] & Graph.CORNER_POSITIVE_X) != 0;
+            boolean positiveY = (corner[i] & Graph.CORNER_POSITIVE_Y) != 0;
+            if (start == end || isBlocked(i, positiveX ? bucketMinX[b] : bucketMaxX[b], positiveY ? bucketMinY[b] : bucketMaxY[b]))
+            {
+                continue;
+            }
+            
+            for (int k = start; k < end; k++)
+            {
+                int j = bucketNodes[k];
+                if (j >= i || isBlocked(i, x[j], y[j]) || isBlocked(j, xi, yi))
+                {
+                    continue;
+                }
+                
+                rays++;
+                if (!CellTraversal.collisionLine(map, xi, yi, x[j], y[j], rad))
+                {
+                    result.add(j);
+                }
+            }
+        }
+        
+        lower[i] = result.toArray();
+        raycasts.addAndGet(rays);
+    }
+    
+    //true if the point lies strictly inside the blocked quadrant of the node
+    private boolean isBlocked(int node, double px, double py)
+    {
+        return Graph.inBlockedQuadrant(corner[node], px - x[node], py - y[node]);
+    }
+    
+    private void progress(long pairs)
+    {
+        if (totalPairs == 0)
+        {
+            return;
+        }
+        int percent = (int)(pairsDone.addAndGet(pairs) * 100 / totalPairs) / 10 * 10;
+        int logged = loggedPercent.get();
+        if (percent > logged && percent < 100 && loggedPercent.compareAndSet(logged, percent))
+        {
+            Logger.log("Generating graph for " + map.name + ": " + percent + "%");
+        }
+    }
+    
+    private final class Task extends RecursiveAction
+    {
+        private static final long serialVersionUID = 0x5c1e0b7a93d2f461L;
+        
+        private final int from, to;
+        
+        Task(int from, int to)
+        {
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            if (to - from > TASK_SIZE)
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Task(from, mid), new Task(mid, to));
+                return;
+            }
+            
+            TIntArrayList result = new TIntArrayList();
+            long pairs = 0;
+            for (int i = from; i < to; i++)
+            {
+                connect(i, result);
+                pairs += i;
+            }
+            progress(pairs);
+        }
+    }
+}
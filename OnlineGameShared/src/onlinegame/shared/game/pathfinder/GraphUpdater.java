@@ -0,0 +1,260 @@
+package onlinegame.shared.game.pathfinder;
+
+import onlinegame.shared.Logger;
+import onlinegame.shared.SharedUtil;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * Brings a visibility graph up to date after cells of its map have changed,
+ * without generating it again.
+ * <br />
+ * Whether a cell has nodes only depends on the cells within a few cells of
+ * it, so only the nodes in a window around the changed cells are found
+ * again. A line test can only change if the line passes over a changed
+ * cell, so of the remaining pairs of nodes, only the ones whose line crosses
+ * the changed cells (widened by the radius of the line tests) are tested
+ * again: the old edges if cells were only blocked, and all of them if any
+ * were freed. New nodes are tested against all nodes, pruned like in
+ * {@link GraphConnector}.
+ * <br />
+ * Since a graph doesn't contain nodes without neighbors, nodes outside of
+ * the window that couldn't see any other node before the change aren't
+ * connected by an update even if they could be afterwards.
+ * <br />
+ * Only the line tests, which take most of the time of
+ * {@link Pathfinder#genGraph}, are limited to the changed region. Everything
+ * else is a full rebuild: graphs are immutable so that games whose maps
+ * haven't changed can keep sharing the old one, so a new graph is built with
+ * all nodes and edges, and its taut graph and landmarks are generated from
+ * scratch the first time they are requested, since a change can alter the
+ * distances between any two nodes.
+ *
+ * @author Alfred
+ */
+final class GraphUpdater
+{
+    //added to the widened rectangle of changed cells, so that rounding errors don't matter
+    private static final double MARGIN = .001;
+    
+    private final GameMap map;
+    private final double rad;
+    private final double rx1, ry1, rx2, ry2; //the changed cells, widened by the radius of the line tests
+    
+    private double[] x, y;
+    private int[] corner;
+    private int[] outcode; //the sides of the rectangle each node is outside of
+    
+    private int raycasts = 0;
+    
+    private GraphUpdater(GameMap map, double rad, int x1, int y1, int x2, int y2)
+    {
+        this.map = map;
+        this.rad = rad;
+        double s = map.scale;
+        rx1 = x1 * s - rad - MARGIN;
+        ry1 = y1 * s - rad - MARGIN;
+        rx2 = (x2 + 1) * s + rad + MARGIN;
+        ry2 = (y2 + 1) * s + rad + MARGIN;
+    }
+    
+    /**
+     * Updates a graph for changed cells. The map must already contain the
+     * changes, and the graph must be up to date with all other changes.
+     * @param old The graph before the change, which isn't modified.
+     * @param map The map.
+     * @param hitRadius The radius the graph was generated for.
+     * @param x1 The x coordinate of the first changed cell.
+     * @param y1 The y coordinate of the first changed cell.
+     * @param x2 The x coordinate of the last changed cell.
+     * @param y2 The y coordinate of the last changed cell.
+     * @return The updated graph, a new one that shares nothing with the old graph.
+     */
+    static Graph update(Graph old, GameMap map, double hitRadius, int x1, int y1, int x2, int y2)
+    {
+        return new GraphUpdater(map, hitRadius - .00001, x1, y1, x2, y2).update(old, hitRadius, x1, y1, x2, y2);
+    }
+    
+    private Graph update(Graph old, double hitRadius, int x1, int y1, int x2, int y2)
+    {
+        long startTime = System.nanoTime();
+        double s = map.scale;
+        
+        //the cells whose nodes depend on the changed cells
+        int margin = 2 + (int)Math.ceil(hitRadius / s);
+        int wx1 = Math.max(x1 - margin, 0), wy1 = Math.max(y1 - margin, 0);
+        int wx2 = Math.min(x2 + margin, map.width - 1), wy2 = Math.min(y2 + margin, map.height - 1);
+        int ww = wx2 - wx1 + 1;
+        int[] corners = new int[ww * (wy2 - wy1 + 1)];
+        for (int cy = wy1; cy <= wy2; cy++)
+        {
+            for (int cx = wx1; cx <= wx2; cx++)
+            {
+                corners[(cx - wx1) + (cy - wy1) * ww] = Pathfinder.getCorners(map, cx, cy, hitRadius);
+            }
+        }
+        
+        //keep the old nodes that still exist, with the exact coordinates genGraph would give them
+        GraphBuilder g = new GraphBuilder();
+        int[] newIndex = new int[old.size()];
+        for (int n = 0; n < old.size(); n++)
+        {
+            int c = old.corner[n];
+            int cx = (c & Graph.CORNER_POSITIVE_X) != 0 ? (int)Math.round((old.x[n] + hitRadius) / s) : (int)Math.round((old.x[n] - hitRadius) / s) - 1;
+            int cy = (c & Graph.CORNER_POSITIVE_Y) != 0 ? (int)Math.round((old.y[n] + hitRadius) / s) : (int)Math.round((old.y[n] - hitRadius) / s) - 1;
+            if (cx >= wx1 && cy >= wy1 && cx <= wx2 && cy <= wy2)
+            {
+                int w = (cx - wx1) + (cy - wy1) * ww;
+                if ((corners[w] & (1 << c)) == 0)
+                {
+                    newIndex[n] = -1;
+                    continue;
+                }
+                corners[w] &= ~(1 << c);
+            }
+            newIndex[n] = g.addNode(Pathfinder.getCornerX(map, cx, c, hitRadius), Pathfinder.getCornerY(map, cy, c, hitRadius), c);
+        }
+        int numKept = g.size();
+        
+        //new nodes
+        for (int cy = wy1; cy <= wy2; cy++)
+        {
+            for (int cx = wx1; cx <= wx2; cx++)
+            {
+                int cs = corners[(cx - wx1) + (cy - wy1) * ww];
+                for (int c = 3; c >= 0; c--)
+                {
+                    if ((cs & (1 << c)) != 0)
+                    {
+                        g.addNode(Pathfinder.getCornerX(map, cx, c, hitRadius), Pathfinder.getCornerY(map, cy, c, hitRadius), c);
+                    }
+                }
+            }
+        }
+        
+        int size = g.size();
+        x = new double[size];
+        y = new double[size];
+        corner = new int[size];
+        outcode = new int[size];
+        for (int i = 0; i < size; i++)
+        {
+            x[i] = g.getX(i);
+            y[i] = g.getY(i);
+            corner[i] = g.getCorner(i);
+            outcode[i] = (x[i] < rx1 ? 1 : 0) | (x[i] > rx2 ? 2 : 0) | (y[i] < ry1 ? 4 : 0) | (y[i] > ry2 ? 8 : 0);
+        }
+        
+        //lines can only have been freed if one of the changed cells is walkable now
+        boolean freed = false;
+        for (int cy = y1; cy <= y2 && !freed; cy++)
+        {
+            for (int cx = x1; cx <= x2 && !freed; cx++)
+            {
+                freed = map.isWalkable(cx, cy);
+            }
+        }
+        
+        //old edges between kept nodes, tested again if they cross the changed cells
+        for (int n = 0; n < old.size(); n++)
+        {
+            int i = newIndex[n];
+            if (i == -1) continue;
+            
+            for (int e = old.firstEdge[n]; e < old.firstEdge[n + 1]; e++)
+            {
+                int m = old.edgeTarget[e];
+                int j = newIndex[m];
+                if (m >= n || j == -1) continue;
+                
+                if (!crosses(i, j) || (!freed && canSee(i, j)))
+                {
+                    g.connect(i, j);
+                }
+            }
+        }
+        
+        //if cells were freed, any pair of kept nodes whose line crosses them can see each other now
+        if (freed)
+        {
+            for (int i = 0; i < numKept; i++)
+            {
+                for (int j = 0; j < i; j++)
+                {
+                    if (crosses(i, j) && canSee(i, j))
+                    {
+                        g.connect(i, j);
+                    }
+                }
+            }
+        }
+        
+        //new nodes
+        for (int i = numKept; i < size; i++)
+        {
+            for (int j = 0; j < i; j++)
+            {
+                if (canSee(i, j))
+                {
+                    g.connect(i, j);
+                }
+            }
+        }
+        
+        Graph graph = g.build();
+        
+        Logger.log("Updated graph for " + map.name + ": " + graph.size() + " nodes (" + (size - numKept) + " new, " + (old.size() - numKept) + " removed), "
+                + graph.numEdges() / 2 + " edges in " + SharedUtil.getTimeString(System.nanoTime() - startTime) + " (" + raycasts + " pairs tested).");
+        
+        return graph;
+    }
+    
+    //the line test, unless either node lies in the other one's blocked quadrant
+    private boolean canSee(int i, int j)
+    {
+        if (Graph.inBlockedQuadrant(corner[i], x[j] - x[i], y[j] - y[i]) || Graph.inBlockedQuadrant(corner[j], x[i] - x[j], y[i] - y[j]))
+        {
+            return false;
+        }
+        raycasts++;
+        return !CellTraversal.collisionLine(map, x[i], y[i], x[j], y[j], rad);
+    }
+    
+    //true if the line between the nodes crosses the widened rectangle of changed cells
+    private boolean crosses(int i, int j)
+    {
+        if ((outcode[i] & outcode[j]) != 0)
+        {
+            //both are on the same outer side
+            return false;
+        }
+        if (outcode[i] == 0 || outcode[j] == 0)
+        {
+            return true;
+        }
+        
+        //Liang-Barsky clipping
+        double dx = x[j] - x[i], dy = y[j] - y[i];
+        double[] t = {0, 1};
+        return clip(-dx, x[i] - rx1, t) && clip(dx, rx2 - x[i], t)
+                && clip(-dy, y[i] - ry1, t) && clip(dy, ry2 - y[i], t);
+    }
+    
+    //narrows the range t of the line parameter to the inner side of one edge, false if nothing is left
+    private static boolean clip(double p, double q, double[] t)
+    {
+        if (p == 0)
+        {
+            return q >= 0;
+        }
+        double r = q / p;
+        if (p < 0)
+        {
+            t[0] = Math.max(t[0], r);
+        }
+        else
+        {
+            t[1] = Math.min(t[1], r);
+        }
+        return t[0] <= t[1];
+    }
+}
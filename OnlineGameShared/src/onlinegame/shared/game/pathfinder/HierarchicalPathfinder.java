@@ -0,0 +1,437 @@
+package onlinegame.shared.game.pathfinder;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import onlinegame.shared.IndexedDoubleHeap;
+import onlinegame.shared.MathUtil;
+import onlinegame.shared.game.GameMap;
+import org.joml.Vector2d;
+
+/**
+ * Hierarchical pathfinding (HPA*) for maps that are too large for the
+ * visibility graph of the {@link Pathfinder}.
+ * <br />
+ * A search connects the start and the goal to the nodes of their clusters in
+ * the {@link ClusterGraph}, runs A* on the abstract graph, and then refines
+ * the result into a chain of neighboring cells by searching inside each
+ * cluster along the way. The chain is finally straightened by string pulling,
+ * so the result is an any-angle path like the one of the flat pathfinder.
+ * <br />
+ * The paths are not always the shortest ones: the abstract graph only crosses
+ * cluster borders at a few places, and the string pulling can only remove
+ * detours of the cell path, not pick a different way around an obstacle.
+ * On main2.png they are about 1-3% longer. In return the work per search
+ * grows with the number of clusters between the start and the goal instead
+ * of the number of corners on the map.
+ * <br />
+ * The expanded nodes in the {@link PathStats} include the cells expanded
+ * inside the clusters.
+ *
+ * @author Alfred
+ */
+public final class HierarchicalPathfinder implements PathSearch
+{
+    //how far from the start and goal cells (in cells) the search can start and end
+    private static final int SEED_RANGE = 2;
+    
+    public final GameMap map;
+    
+    private final double hitRadius;
+    private final ClusterGraph clusters;
+    private final ClearanceMap clearance;
+    private final ClusterSearch search;
+    private final PathStats stats = new PathStats();
+    
+    //abstract search state, indexed by node (the goal uses the index after the last node)
+    //an entry is only valid if its stamp equals the current generation
+    private final int goalIndex;
+    private final int[] stamp, goalCostStamp;
+    private int generation = 0;
+    private final double[] cost, goalCost;
+    private final int[] parent; //-1 for nodes reached directly from the start
+    private final IndexedDoubleHeap frontier;
+    private double goalX, goalY;
+    private int directCluster; //the cluster of the path from the start to the goal that doesn't use any node
+    
+    //passable cells near the start and goal that can be reached in a straight line, with the length of that line
+    private final TIntArrayList startSeeds = new TIntArrayList(), goalSeeds = new TIntArrayList();
+    private final TDoubleArrayList startSeedCosts = new TDoubleArrayList(), goalSeedCosts = new TDoubleArrayList();
+    
+    private final TIntArrayList trace = new TIntArrayList();
+    private int raycasts;
+    
+    /**
+     * @param clusters The abstract graph, which can be shared between pathfinders.
+     */
+    public HierarchicalPathfinder(ClusterGraph clusters)
+    {
+        this.clusters = clusters;
+        map = clusters.map;
+        hitRadius = clusters.hitRadius;
+        clearance = ClearanceMap.of(map);
+        search = new ClusterSearch(clusters);
+        
+        goalIndex = clusters.size();
+        int size = clusters.size() + 1;
+        stamp = new int[size];
+        cost = new double[size];
+        parent = new int[size];
+        frontier = new IndexedDoubleHeap(size);
+        goalCostStamp = new int[clusters.size()];
+        goalCost = new double[clusters.size()];
+    }
+    
+    @Override
+    public PathStats getStats()
+    {
+        return stats;
+    }
+    
+    public ClusterGraph getClusterGraph()
+    {
+        return clusters;
+    }
+    
+    @Override
+    public boolean nearestFreeSpace(double x, double y, double maxDist, Vector2d dest)
+    {
+        Lock lock = map.getLock().readLock();
+        lock.lock();
+        try
+        {
+            return clearance.nearestFreeSpace(x, y, hitRadius, maxDist, dest);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public Node[] repairPath(ActorPath path, double time, double speed, double goalX, double goalY)
+    {
+        return Pathfinder.repairPath(map, clearance, hitRadius, path, time, speed, goalX, goalY);
+    }
+    
+    /**
+     * Finds a path with the abstract graph, which isn't updated when cells of
+     * the map change, so a new pathfinder is needed for a new graph then
+     * (see {@link ClusterGraph#version}).
+     */
+    @Override
+    public Node[] findPath(double startX, double startY, double goalX, double goalY)
+    {
+        Lock lock = map.getLock().readLock();
+        lock.lock();
+        try
+        {
+            return findPathLocked(startX, startY, goalX, goalY);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private Node[] findPathLocked(double startX, double startY, double goalX, double goalY)
+    {
+        long startTime = System.nanoTime();
+        int cellsBefore = search.getExpanded();
+        
+        double fixedrad = hitRadius - .00001;
+        if (clearance.collisionBox(startX, startY, fixedrad) || clearance.collisionBox(goalX, goalY, fixedrad))
+        {
+            //start or goal is blocked
+            stats.record(false, 0, 0, System.nanoTime() - startTime);
+            return null;
+        }
+        
+        raycasts = 1;
+        if (!CellTraversal.collisionLine(map, startX, startY, goalX, goalY, fixedrad))
+        {
+            //goal can be directly reached from start
+            stats.record(true, 0, raycasts, System.nanoTime() - startTime);
+            return new Node[] {new Node(startX, startY), new Node(goalX, goalY)};
+        }
+        
+        this.goalX = goalX;
+        this.goalY = goalY;
+        findSeeds(startX, startY, startSeeds, startSeedCosts);
+        findSeeds(goalX, goalY, goalSeeds, goalSeedCosts);
+        
+        int expanded = 0;
+        boolean found = false;
+        if (!startSeeds.isEmpty() && !goalSeeds.isEmpty())
+        {
+            nextGeneration();
+            frontier.clear();
+            connectGoal();
+            connectStart();
+            
+            while (!frontier.isEmpty())
+            {
+                int c = frontier.poll();
+                if (c == goalIndex)
+                {
+                    found = true;
+                    break;
+                }
+                expanded++;
+                
+                double cc = cost[c];
+                for (int e = clusters.firstEdge[c]; e < clusters.firstEdge[c + 1]; e++)
+                {
+                    relax(clusters.edgeTarget[e], cc + clusters.edgeCost[e], c);
+                }
+                if (goalCostStamp[c] == generation)
+                {
+                    relax(goalIndex, cc + goalCost[c], c);
+                }
+            }
+        }
+        
+        Node[] path = null;
+        if (found)
+        {
+            PathSmoother smoother = new PathSmoother(map, hitRadius);
+            path = smoother.smooth(startX, startY, refine());
+            raycasts += smoother.getRaycasts();
+        }
+        
+        stats.record(found, expanded + search.getExpanded() - cellsBefore, raycasts, System.nanoTime() - startTime);
+        return path;
+    }
+    
+    private void findSeeds(double x, double y, TIntArrayList seeds, TDoubleArrayList seedCosts)
+    {
+        seeds.resetQuick();
+        seedCosts.resetQuick();
+        
+        double rad = hitRadius - .00001;
+        int px = MathUtil.floor(x * map.invscale);
+        int py = MathUtil.floor(y * map.invscale);
+        for (int cy = py - SEED_RANGE; cy <= py + SEED_RANGE; cy++)
+        {
+            for (int cx = px - SEED_RANGE; cx <= px + SEED_RANGE; cx++)
+            {
+                if (cx < 0 || cy < 0 || cx >= map.width || cy >= map.height || !clusters.passable.get(cx, cy))
+                {
+                    continue;
+                }
+                double centerX = (cx + .5) * map.scale, centerY = (cy + .5) * map.scale;
+                raycasts++;
+                if (!CellTraversal.collisionLine(map, x, y, centerX, centerY, rad))
+                {
+                    seeds.add(cx + cy * map.width);
+                    seedCosts.add(MathUtil.dist(x, y, centerX, centerY));
+                }
+            }
+        }
+    }
+    
+    //searches a cluster from the seeds inside it
+    private void searchFromSeeds(int cluster, TIntArrayList seeds, TDoubleArrayList seedCosts, int target)
+    {
+        search.start(cluster % clusters.clustersX, cluster / clusters.clustersX);
+        for (int i = 0; i < seeds.size(); i++)
+        {
+            if (clusters.getCluster(seeds.get(i)) == cluster)
+            {
+                search.seed(seeds.get(i), seedCosts.get(i));
+            }
+        }
+        search.run(target);
+    }
+    
+    //true if an earlier seed is in the same cluster as the given one
+    private boolean isClusterDone(TIntArrayList seeds, int i)
+    {
+        int cluster = clusters.getCluster(seeds.get(i));
+        for (int j = 0; j < i; j++)
+        {
+            if (clusters.getCluster(seeds.get(j)) == cluster)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    //the cost from the nodes of the goal's clusters to the goal
+    private void connectGoal()
+    {
+        for (int i = 0; i < goalSeeds.size(); i++)
+        {
+            if (isClusterDone(goalSeeds, i))
+            {
+                continue;
+            }
+            int cluster = clusters.getCluster(goalSeeds.get(i));
+            searchFromSeeds(cluster, goalSeeds, goalSeedCosts, -1);
+            for (int n = clusters.clusterFirstNode[cluster]; n < clusters.clusterFirstNode[cluster + 1]; n++)
+            {
+                double d = search.getDistance(clusters.nodeCell[n]);
+                if (d != Double.POSITIVE_INFINITY)
+                {
+                    goalCostStamp[n] = generation;
+                    goalCost[n] = d;
+                }
+            }
+        }
+    }
+    
+    //puts the nodes of the start's clusters on the frontier, and the goal if it is in one of them
+    private void connectStart()
+    {
+        for (int i = 0; i < startSeeds.size(); i++)
+        {
+            if (isClusterDone(startSeeds, i))
+            {
+                continue;
+            }
+            int cluster = clusters.getCluster(startSeeds.get(i));
+            searchFromSeeds(cluster, startSeeds, startSeedCosts, -1);
+            for (int n = clusters.clusterFirstNode[cluster]; n < clusters.clusterFirstNode[cluster + 1]; n++)
+            {
+                relax(n, search.getDistance(clusters.nodeCell[n]), -1);
+            }
+            for (int j = 0; j < goalSeeds.size(); j++)
+            {
+                if (relax(goalIndex, search.getDistance(goalSeeds.get(j)) + goalSeedCosts.get(j), -1))
+                {
+                    directCluster = cluster;
+                }
+            }
+        }
+    }
+    
+    private boolean relax(int n, double newCost, int from)
+    {
+        if (newCost == Double.POSITIVE_INFINITY || (stamp[n] == generation && newCost >= cost[n]))
+        {
+            return false;
+        }
+        stamp[n] = generation;
+        cost[n] = newCost;
+        parent[n] = from;
+        frontier.decreaseKey(n, newCost + heuristic(n));
+        return true;
+    }
+    
+    //the straight line distance, which is never more than the cost of the cells and the last line to the goal
+    private double heuristic(int n)
+    {
+        if (n == goalIndex)
+        {
+            return 0;
+        }
+        int cell = clusters.nodeCell[n];
+        return MathUtil.dist((cell % map.width + .5) * map.scale, (cell / map.width + .5) * map.scale, goalX, goalY);
+    }
+    
+    //turns the abstract path into neighboring cells, followed by the goal
+    private List<Node> refine()
+    {
+        TIntArrayList cells = new TIntArrayList();
+        
+        TIntArrayList nodes = new TIntArrayList();
+        for (int n = parent[goalIndex]; n != -1; n = parent[n])
+        {
+            nodes.add(n);
+        }
+        nodes.reverse();
+        
+        if (nodes.isEmpty())
+        {
+            //the goal is in a cluster of the start, and the best path stays inside it
+            searchFromSeeds(directCluster, startSeeds, startSeedCosts, -1);
+            int best = -1;
+            double bestCost = Double.POSITIVE_INFINITY;
+            for (int j = 0; j < goalSeeds.size(); j++)
+            {
+                double d = search.getDistance(goalSeeds.get(j)) + goalSeedCosts.get(j);
+                if (d < bestCost)
+                {
+                    best = goalSeeds.get(j);
+                    bestCost = d;
+                }
+            }
+            traceBack(best, 0, true, cells);
+        }
+        else
+        {
+            int first = nodes.get(0);
+            searchFromSeeds(clusters.getCluster(clusters.nodeCell[first]), startSeeds, startSeedCosts, clusters.nodeCell[first]);
+            traceBack(clusters.nodeCell[first], 0, true, cells);
+            
+            for (int i = 1; i < nodes.size(); i++)
+            {
+                int a = clusters.nodeCell[nodes.get(i - 1)], b = clusters.nodeCell[nodes.get(i)];
+                int cluster = clusters.getCluster(b);
+                if (clusters.getCluster(a) != cluster)
+                {
+                    //neighbors across a border
+                    cells.add(b);
+                    continue;
+                }
+                search.start(cluster % clusters.clustersX, cluster / clusters.clustersX);
+                search.seed(a, 0);
+                search.run(b);
+                traceBack(b, 1, true, cells);
+            }
+            
+            int last = clusters.nodeCell[nodes.get(nodes.size() - 1)];
+            searchFromSeeds(clusters.getCluster(last), goalSeeds, goalSeedCosts, last);
+            traceBack(last, 1, false, cells);
+        }
+        
+        List<Node> chain = new ArrayList<>(cells.size() + 1);
+        for (int i = 0; i < cells.size(); i++)
+        {
+            int cell = cells.get(i);
+            chain.add(new Node((cell % map.width + .5) * map.scale, (cell / map.width + .5) * map.scale));
+        }
+        chain.add(new Node(goalX, goalY));
+        return chain;
+    }
+    
+    /**
+     * Follows the parents of the last search from a cell back to a seed.
+     * @param cell The cell to start at.
+     * @param skip The number of cells to leave out at the seed end (if reversed) or at the given cell (if not).
+     * @param reverse True to add the cells from the seed to the given cell, false for the other way around.
+     * @param cells The list to add the cells to.
+     */
+    private void traceBack(int cell, int skip, boolean reverse, TIntArrayList cells)
+    {
+        trace.resetQuick();
+        for (int c = cell; c != -1; c = search.getParent(c))
+        {
+            trace.add(c);
+        }
+        if (reverse)
+        {
+            trace.reverse();
+        }
+        for (int i = skip; i < trace.size(); i++)
+        {
+            cells.add(trace.get(i));
+        }
+    }
+    
+    private void nextGeneration()
+    {
+        generation++;
+        if (generation == 0)
+        {
+            //the counter has wrapped around, make sure no old stamps are mistaken for current ones
+            Arrays.fill(stamp, 0);
+            Arrays.fill(goalCostStamp, 0);
+            generation = 1;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.util.Arrays;
+import onlinegame.shared.IndexedDoubleHeap;
+
+/**
+ * Graph distances from a few landmark nodes to every node of a
+ * {@link Graph}, used for the ALT (A*, landmarks, triangle inequality)
+ * heuristic.
+ * <br />
+ * For any landmark L and nodes v, u the triangle inequality gives
+ * <code>d(v, u) &gt;= d(L, u) - d(L, v)</code> and
+ * <code>d(v, u) &gt;= d(L, v) - d(L, u)</code>. The goal of a search isn't a
+ * graph node, but every path to it ends with a straight line from some node
+ * u that can see it, so the remaining cost from v is at least the minimum
+ * over those nodes of <code>d(v, u) + |u - goal|</code>, see
+ * {@link #lowerBound}.
+ * <br />
+ * Landmarks are picked by farthest point selection, which tends to put them
+ * at the edges of the map, where they give the best bounds.
+ * Unreachable nodes have a distance of infinity, and a landmark is only used
+ * for nodes in its own connected component.
+ *
+ * @author Alfred
+ */
+public final class Landmarks
+{
+    public static final int DEFAULT_COUNT = 16;
+    
+    private final int count, numNodes;
+    private final int[] landmarks;
+    private final float[] dist; //dist[node * count + landmark]
+    private final double slack; //covers the rounding error of storing the distances as floats
+    
+    private Landmarks(int[] landmarks, float[] dist, int numNodes, double maxDist)
+    {
+        this.count = landmarks.length;
+        this.numNodes = numNodes;
+        this.landmarks = landmarks;
+        this.dist = dist;
+        slack = maxDist * 1e-6;
+    }
+    
+    /**
+     * Picks landmarks and computes their distances to all nodes.
+     * <br />
+     * Runtime: O(count * e log n)
+     * <br />
+     * Memory: O(count * n)
+     * @param g The graph.
+     * @param count The number of landmarks, capped at the number of nodes.
+     * @return The landmarks.
+     */
+    public static Landmarks generate(Graph g, int count)
+    {
+        int n = g.size();
+        count = Math.min(count, n);
+        
+        int[] landmarks = new int[count];
+        float[] dist = new float[n * count];
+        
+        double[] d = new double[n];
+        double[] minDist = new double[n];
+        double maxDist = 0;
+        Arrays.fill(minDist, Double.POSITIVE_INFINITY);
+        IndexedDoubleHeap heap = new IndexedDoubleHeap(n);
+        
+        //start from the node farthest away from an arbitrary one
+        int next = 0;
+        if (n > 0)
+        {
+            dijkstra(g, 0, d, heap);
+            next = farthest(d);
+        }
+        
+        for (int i = 0; i < count; i++)
+        {
+            landmarks[i] = next;
+            dijkstra(g, next, d, heap);
+            
+            for (int v = 0; v < n; v++)
+            {
+                dist[v * count + i] = (float)d[v];
+                minDist[v] = Math.min(minDist[v], d[v]);
+                if (d[v] != Double.POSITIVE_INFINITY)
+                {
+                    maxDist = Math.max(maxDist, d[v]);
+                }
+            }
+            
+            //the next landmark is the node farthest away from all previous ones
+            next = farthest(minDist);
+        }
+        
+        return new Landmarks(landmarks, dist, n, maxDist);
+    }
+    
+    //unreachable nodes count as the farthest ones, so that every component gets a landmark if possible
+    private static int farthest(double[] d)
+    {
+        int best = 0;
+        for (int v = 1; v < d.length; v++)
+        {
+            if (d[v] > d[best])
+            {
+                best = v;
+            }
+        }
+        return best;
+    }
+    
+    private static void dijkstra(Graph g, int source, double[] d, IndexedDoubleHeap heap)
+    {
+        Arrays.fill(d, Double.POSITIVE_INFINITY);
+        heap.clear();
+        
+        d[source] = 0;
+        heap.offer(source, 0);
+        
+        while (!heap.isEmpty())
+        {
+            int c = heap.poll();
+            double cd = d[c];
+            
+            for (int e = g.firstEdge[c]; e < g.firstEdge[c + 1]; e++)
+            {
+                int next = g.edgeTarget[e];
+                double nd = cd + g.edgeCost[e];
+                if (nd < d[next])
+                {
+                    d[next] = nd;
+                    heap.decreaseKey(next, nd);
+                }
+            }
+        }
+    }
+    
+    public int count()
+    {
+        return count;
+    }
+    
+    public int getLandmark(int i)
+    {
+        return landmarks[i];
+    }
+    
+    /**
+     * @param i The index of the landmark.
+     * @param node The node.
+     * @return The length of the shortest path between them, or infinity if there is none.
+     */
+    public float getDistance(int i, int node)
+    {
+        return dist[node * count + i];
+    }
+    
+    /**
+     * A consistent lower bound of the cost from a node to the goal.
+     * <br />
+     * For each landmark L, <code>goalBounds[2L]</code> must be at most
+     * <code>d(L, u) + |u - goal|</code> and <code>goalBounds[2L+1]</code> at
+     * most <code>|u - goal| - d(L, u)</code> for every node u that can see
+     * the goal and is reachable from L, i.e. their minimums over any set of
+     * nodes that includes all of those (infinity if the set is empty).
+     * @param node The node.
+     * @param goalBounds The per-goal bounds.
+     * @return The lower bound, or infinity if the goal can't be reached from the node.
+     */
+    public double lowerBound(int node, double[] goalBounds)
+    {
+        double h = 0;
+        int base = node * count;
+        for (int i = 0; i < count; i++)
+        {
+            double d = dist[base + i];
+            if (d == Double.POSITIVE_INFINITY)
+            {
+                continue;
+            }
+            
+            //no node in the landmark's component can see the goal
+            double toGoal = goalBounds[2 * i];
+            if (toGoal == Double.POSITIVE_INFINITY)
+            {
+                return Double.POSITIVE_INFINITY;
+            }
+            
+            h = Math.max(h, Math.max(toGoal - d, d + goalBounds[2 * i + 1]));
+        }
+        return Math.max(h - slack, 0);
+    }
+}
@@ -0,0 +1,70 @@
+package onlinegame.shared.game.pathfinder;
+
+import onlinegame.shared.game.CellBitmap;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * Finds the passable cells of a map, i.e. the cells whose center is a valid
+ * position for an actor with a given radius, which the {@link ClusterGraph}
+ * moves between.
+ *
+ * @author Alfred
+ */
+final class PassableCells
+{
+    private PassableCells() {}
+    
+    /**
+     * @param map The map.
+     * @param hitRadius The radius of the actors.
+     * @return A bitmap of the cells whose center is a valid position for an actor with the given radius.
+     */
+    static CellBitmap find(GameMap map, double hitRadius)
+    {
+        CellBitmap passable = new CellBitmap(map.width, map.height);
+        set(passable, map, hitRadius, 0, 0, map.width - 1, map.height - 1);
+        return passable;
+    }
+    
+    /**
+     * Brings the passable cells up to date after cells of the map have
+     * changed, by only testing the cells within {@link #range} of the changed
+     * ones again.
+     * @param passable The passable cells before the change, which are modified.
+     * @param map The map.
+     * @param hitRadius The radius of the actors.
+     * @param x1 The x coordinate of the first changed cell.
+     * @param y1 The y coordinate of the first changed cell.
+     * @param x2 The x coordinate of the last changed cell.
+     * @param y2 The y coordinate of the last changed cell.
+     */
+    static void update(CellBitmap passable, GameMap map, double hitRadius, int x1, int y1, int x2, int y2)
+    {
+        int r = range(map, hitRadius);
+        set(passable, map, hitRadius,
+                Math.max(x1 - r, 0), Math.max(y1 - r, 0), Math.min(x2 + r, map.width - 1), Math.min(y2 + r, map.height - 1));
+    }
+    
+    /**
+     * @param map The map.
+     * @param hitRadius The radius of the actors.
+     * @return How far (in cells) from a cell the cells whose passability depends on it can be.
+     */
+    static int range(GameMap map, double hitRadius)
+    {
+        return (int)Math.ceil(hitRadius * map.invscale) + 1;
+    }
+    
+    private static void set(CellBitmap passable, GameMap map, double hitRadius, int x1, int y1, int x2, int y2)
+    {
+        ClearanceMap clearance = ClearanceMap.of(map);
+        double rad = hitRadius - .00001;
+        for (int y = y1; y <= y2; y++)
+        {
+            for (int x = x1; x <= x2; x++)
+            {
+                passable.set(x, y, !clearance.collisionBox((x + .5) * map.scale, (y + .5) * map.scale, rad));
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * The most recently used paths of a map, shared by all {@link Pathfinder}s
+ * that use it (see {@link Pathfinder#setUseCache}), so that actors asking for
+ * nearly the same path over and over again, e.g. during a fight, don't need
+ * a search every time.
+ * <br />
+ * Paths are stored by the squares of {@link #CELL_SIZE} cells their start
+ * and goal are in, and the radius of the actors. A path is reused for
+ * another start and goal in the same squares by keeping its waypoints and
+ * replacing its ends, which is only done if the new start can see the first
+ * waypoint and the last waypoint can see the new goal. The result is at most twice the distances between the old
+ * and new ends longer than the shortest path.
+ * <br />
+ * The cache holds at most {@link #MAX_ENTRIES} paths with at most
+ * {@link #MAX_POINTS} waypoints in total, and drops paths that were found
+ * before the last change to the map (see {@link GameMap#getVersion}).
+ * <br />
+ * Thread safe.
+ *
+ * @author Alfred
+ */
+public final class PathCache
+{
+    /**
+     * The width and height of the squares of cells the starts and goals are grouped by.
+     */
+    public static final int CELL_SIZE = 4;
+    
+    public static final int MAX_ENTRIES = 1024;
+    public static final int MAX_POINTS = 16384;
+    
+    //the caches are only weakly reachable from here, the listeners of the maps keep them alive
+    private static final Map<GameMap, WeakReference<PathCache>> caches = new WeakHashMap<>();
+    
+    private final int width, height;
+    private final float invscale;
+    private int version;
+    
+    //in access order, the least recently used path comes first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, .75f, true);
+    private int numPoints = 0;
+    
+    private long hits = 0, misses = 0, rejections = 0, evictions = 0, invalidations = 0;
+    
+    private PathCache(GameMap map)
+    {
+        width = map.width;
+        height = map.height;
+        invscale = map.invscale;
+        version = map.getVersion();
+        
+        map.addChangeListener(new GameMap.ChangeListener()
+        {
+            @Override
+            public void cellsChanged(GameMap map, int x1, int y1, int x2, int y2)
+            {
+                setVersion(map.getVersion());
+            }
+        });
+    }
+    
+    /**
+     * Returns the path cache of the given map, creating it the first time it is requested.
+     * @param map The map.
+     * @return The path cache.
+     */
+    public static PathCache of(GameMap map)
+    {
+        synchronized (caches)
+        {
+            WeakReference<PathCache> ref = caches.get(map);
+            PathCache pc = ref == null ? null : ref.get();
+            if (pc == null)
+            {
+                pc = new PathCache(map);
+                caches.put(map, new WeakReference<>(pc));
+            }
+            return pc;
+        }
+    }
+    
+    /**
+     * Looks up the waypoints of a path between the squares of the given
+     * start and goal. Unless the result is null, the caller has to check whether it
+     * can be used and report that with {@link #recordReuse}.
+     * @param hitRadius The radius of the actor.
+     * @param startX The x coordinate of the start.
+     * @param startY The y coordinate of the start.
+     * @param goalX The x coordinate of the goal.
+     * @param goalY The y coordinate of the goal.
+     * @return The coordinates of the waypoints between the start and the goal (x0, y0, x1, y1, ...), which must not be modified, or null if there is no path.
+     */
+    synchronized float[] get(double hitRadius, double startX, double startY, double goalX, double goalY)
+    {
+        Key key = new Key(hitRadius, getCell(startX, startY), getCell(goalX, goalY));
+        Entry e = entries.get(key);
+        if (e != null && e.version != version)
+        {
+            remove(key, e);
+            invalidations++;
+            e = null;
+        }
+        
+        if (e == null)
+        {
+            misses++;
+            return null;
+        }
+        return e.points;
+    }
+    
+    /**
+     * @param valid True if the path returned by {@link #get} was used, false if its ends couldn't be replaced.
+     */
+    synchronized void recordReuse(boolean valid)
+    {
+        if (valid)
+        {
+            hits++;
+        }
+        else
+        {
+            rejections++;
+        }
+    }
+    
+    /**
+     * Stores a path, replacing the one between the same squares if there is
+     * one, and evicts the least recently used paths if the cache is full.
+     * Paths without waypoints aren't stored, since they don't need a search.
+     * @param hitRadius The radius of the actor.
+     * @param path The path, from the start to the goal.
+     * @param version The version of the map the path was found in.
+     */
+    synchronized void put(double hitRadius, Node[] path, int version)
+    {
+        int n = path.length - 2;
+        if (n <= 0 || n > MAX_POINTS || version != this.version)
+        {
+            return;
+        }
+        
+        float[] points = new float[2 * n];
+        for (int i = 0; i < n; i++)
+        {
+            points[2 * i] = (float)path[i + 1].x;
+            points[2 * i + 1] = (float)path[i + 1].y;
+        }
+        
+        Node start = path[0], goal = path[path.length - 1];
+        Key key = new Key(hitRadius, getCell(start.x, start.y), getCell(goal.x, goal.y));
+        Entry old = entries.put(key, new Entry(points, version));
+        if (old != null)
+        {
+            numPoints -= old.points.length / 2;
+        }
+        numPoints += n;
+        
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > MAX_ENTRIES || numPoints > MAX_POINTS)
+        {
+            Entry e = it.next().getValue();
+            numPoints -= e.points.length / 2;
+            it.remove();
+            evictions++;
+        }
+    }
+    
+    private synchronized void setVersion(int version)
+    {
+        this.version = version;
+    }
+    
+    private void remove(Key key, Entry e)
+    {
+        entries.remove(key);
+        numPoints -= e.points.length / 2;
+    }
+    
+    /**
+     * Removes all paths.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        numPoints = 0;
+    }
+    
+    //the index of the square of cells a point is in
+    private int getCell(double x, double y)
+    {
+        int cx = Math.min(Math.max((int)Math.floor(x * invscale), 0), width - 1) / CELL_SIZE;
+        int cy = Math.min(Math.max((int)Math.floor(y * invscale), 0), height - 1) / CELL_SIZE;
+        return cx + cy * width;
+    }
+    
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+    
+    /**
+     * @return The total number of waypoints of the stored paths.
+     */
+    public synchronized int numPoints()
+    {
+        return numPoints;
+    }
+    
+    /**
+     * @return The number of searches that were answered with a stored path.
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+    
+    /**
+     * @return The number of searches for which no path was stored.
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+    
+    /**
+     * @return The number of stored paths that were found but couldn't be used for the new start or goal.
+     */
+    public synchronized long getRejections()
+    {
+        return rejections;
+    }
+    
+    /**
+     * @return The number of paths that were removed to make room for new ones.
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+    
+    /**
+     * @return The number of paths that were removed because the map had changed since they were found.
+     */
+    public synchronized long getInvalidations()
+    {
+        return invalidations;
+    }
+    
+    @Override
+    public synchronized String toString()
+    {
+        return "PathCache: " + entries.size() + " paths, " + numPoints + " points, "
+                + hits + " hits, " + misses + " misses, " + rejections + " rejected, "
+                + evictions + " evicted, " + invalidations + " invalidated";
+    }
+    
+    private static final class Entry
+    {
+        private final float[] points;
+        private final int version;
+        
+        private Entry(float[] points, int version)
+        {
+            this.points = points;
+            this.version = version;
+        }
+    }
+    
+    private static final class Key
+    {
+        private final double hitRadius;
+        private final int startCell, goalCell;
+        
+        private Key(double hitRadius, int startCell, int goalCell)
+        {
+            this.hitRadius = hitRadius;
+            this.startCell = startCell;
+            this.goalCell = goalCell;
+        }
+        
+        @Override
+        public boolean equals(Object o)
+        {
+            if (o == this) return true;
+            if (!(o instanceof Key)) return false;
+            
+            Key k = (Key)o;
+            return startCell == k.startCell && goalCell == k.goalCell
+                    && Double.doubleToLongBits(hitRadius) == Double.doubleToLongBits(k.hitRadius);
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            int hash = 7;
+            hash = 59 * hash + startCell;
+            hash = 59 * hash + goalCell;
+            hash = 59 * hash + (int)(Double.doubleToLongBits(hitRadius) ^ (Double.doubleToLongBits(hitRadius) >>> 32));
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package onlinegame.shared.game.pathfinder;
+
+import org.joml.Vector2d;
+
+/**
+ * A path request for a {@link PathService}. The goal is first moved to the
+ * nearest free space (see {@link Pathfinder#nearestFreeSpace}), then a path
+ * is searched for from the start to it.
+ * <br />
+ * The search runs on a worker thread, but the listener is always called on
+ * the thread that calls {@link PathService#process}, and never for queries
+ * that were cancelled before that.
+ * <br />
+ * Searches of the flat {@link Pathfinder} run in slices of
+ * {@link #SLICE_EXPANSIONS} expanded nodes. Between slices they stop if the
+ * query has been cancelled, and keep the best partial path so far (see
+ * {@link Pathfinder#getPartialPath}), which the service hands to the listener
+ * if the query isn't done within the budget of its tick.
+ *
+ * @author Alfred
+ */
+public final class PathQuery
+{
+    /**
+     * The number of nodes a search expands between checks for cancellation.
+     */
+    public static final int SLICE_EXPANSIONS = 256;
+    
+    public interface Listener
+    {
+        /**
+         * Called when the query has been resolved.
+         * @param query The query, see {@link #hasGoal()} and {@link #getPath()}.
+         */
+        public void pathResolved(PathQuery query);
+        
+        /**
+         * Called at most once, before {@link #pathResolved}, if the search
+         * didn't finish within the budget of the tick it was started in.
+         * @param query The query, see {@link #getPartialPath()}.
+         */
+        public void pathPartial(PathQuery query);
+    }
+    
+    public final double startX, startY;
+    public final double goalX, goalY;
+    public final double maxGoalDist;
+    private final Listener listener;
+    
+    //set by the service on the game thread
+    int submitTick;
+    
+    private volatile boolean cancelled = false;
+    private volatile boolean done = false;
+    
+    //written by the worker between slices, read by the service
+    private volatile Node[] latestPartialPath = null;
+    private Node[] partialPath = null;
+    
+    //written by the worker before done is set
+    private boolean hasGoal;
+    private double freeGoalX, freeGoalY;
+    private Node[] path;
+    
+    /**
+     * @param startX The x coordinate of the start.
+     * @param startY The y coordinate of the start.
+     * @param goalX The x coordinate of the requested goal.
+     * @param goalY The y coordinate of the requested goal.
+     * @param maxGoalDist The maximum distance the goal may be moved to get it out of walls.
+     * @param listener The listener to call with the result.
+     */
+    public PathQuery(double startX, double startY, double goalX, double goalY, double maxGoalDist, Listener listener)
+    {
+        this.startX = startX;
+        this.startY = startY;
+        this.goalX = goalX;
+        this.goalY = goalY;
+        this.maxGoalDist = maxGoalDist;
+        this.listener = listener;
+    }
+    
+    //called on a worker thread
+    void run(PathSearch pf)
+    {
+        if (cancelled)
+        {
+            return;
+        }
+        
+        Vector2d v = new Vector2d();
+        hasGoal = pf.nearestFreeSpace(goalX, goalY, maxGoalDist, v);
+        if (hasGoal)
+        {
+            freeGoalX = v.x;
+            freeGoalY = v.y;
+            if (pf instanceof Pathfinder)
+            {
+                path = runSliced((Pathfinder)pf, v.x, v.y);
+            }
+            else
+            {
+                path = pf.findPath(startX, startY, v.x, v.y);
+            }
+        }
+    }
+    
+    private Node[] runSliced(Pathfinder pf, double goalX, double goalY)
+    {
+        if (pf.startSearch(startX, startY, goalX, goalY))
+        {
+            return pf.getResult();
+        }
+        while (!pf.resumeSearch(SLICE_EXPANSIONS))
+        {
+            if (cancelled)
+            {
+                pf.cancelSearch();
+                return null;
+            }
+            Node[] partial = pf.getPartialPath();
+            if (partial != null)
+            {
+                latestPartialPath = partial;
+            }
+        }
+        return pf.getResult();
+    }
+    
+    void setDone()
+    {
+        done = true;
+    }
+    
+    //called by the service for queries that aren't done yet
+    boolean deliverPartial()
+    {
+        if (cancelled || partialPath != null || latestPartialPath == null)
+        {
+            return false;
+        }
+        partialPath = latestPartialPath;
+        listener.pathPartial(this);
+        return true;
+    }
+    
+    boolean deliver()
+    {
+        if (cancelled)
+        {
+            return false;
+        }
+        listener.pathResolved(this);
+        return true;
+    }
+    
+    /**
+     * Prevents the listener from being called, if it hasn't been already.
+     * Must be called on the thread that calls {@link PathService#process}.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+    
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+    
+    public boolean isDone()
+    {
+        return done;
+    }
+    
+    /**
+     * @return False if there was no free space close enough to the goal, in which case nothing was searched for.
+     */
+    public boolean hasGoal()
+    {
+        return hasGoal;
+    }
+    
+    public double getFreeGoalX()
+    {
+        return freeGoalX;
+    }
+    
+    public double getFreeGoalY()
+    {
+        return freeGoalY;
+    }
+    
+    /**
+     * @return The path, or null if there is none.
+     */
+    public Node[] getPath()
+    {
+        return path;
+    }
+    
+    /**
+     * @return The partial path passed to {@link Listener#pathPartial}, from the start towards the goal, or null if there was none.
+     */
+    public Node[] getPartialPath()
+    {
+        return partialPath;
+    }
+}
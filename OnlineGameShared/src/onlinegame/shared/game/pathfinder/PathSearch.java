@@ -0,0 +1,49 @@
+package onlinegame.shared.game.pathfinder;
+
+import org.joml.Vector2d;
+
+/**
+ * A path search for actors of one radius on one map, i.e. the flat
+ * {@link Pathfinder} or the {@link HierarchicalPathfinder} for large maps.
+ * Implementations are not thread safe.
+ *
+ * @author Alfred
+ */
+public interface PathSearch
+{
+    /**
+     * Finds the closest point to the given position where an actor fits.
+     * @param x The x coordinate of the position.
+     * @param y The y coordinate of the position.
+     * @param maxDist The maximum distance from the position.
+     * @param dest The vector to store the result in.
+     * @return True if a point was found.
+     */
+    public boolean nearestFreeSpace(double x, double y, double maxDist, Vector2d dest);
+    
+    /**
+     * @param startX The x coordinate of the start.
+     * @param startY The y coordinate of the start.
+     * @param goalX The x coordinate of the goal.
+     * @param goalY The y coordinate of the goal.
+     * @return The path, or null if there is none.
+     */
+    public Node[] findPath(double startX, double startY, double goalX, double goalY);
+    
+    /**
+     * Adapts a path to a goal that has moved, without searching.
+     * @param path The current path.
+     * @param time The time to start the new path at.
+     * @param speed The speed of the actor.
+     * @param goalX The x coordinate of the new goal.
+     * @param goalY The y coordinate of the new goal.
+     * @return The nodes of the new path, or null if the path can't be repaired.
+     * @see Pathfinder#repairPath
+     */
+    public Node[] repairPath(ActorPath path, double time, double speed, double goalX, double goalY);
+    
+    /**
+     * @return The counters of the work done by this search.
+     */
+    public PathStats getStats();
+}
@@ -0,0 +1,408 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import onlinegame.shared.Logger;
+import onlinegame.shared.SharedUtil;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * Resolves {@link PathQuery}s in batches, in parallel on a pool shared by all
+ * services. Each thread keeps the {@link Pathfinder} of the last service that
+ * used it, and one for another map or radius replaces it, so that a thread
+ * never holds on to the search state of more than one service. The graph and
+ * everything else derived from the map is shared. Maps
+ * that are too large for the pathfinder's visibility graph can use the
+ * {@link HierarchicalPathfinder} instead.
+ * <br />
+ * Queries are submitted during a tick and started by {@link #process}, which
+ * waits until the ones started by that call are done or the time budget of
+ * the tick is used up. Queries that aren't done by then keep running and are
+ * delivered by a later call as soon as they are done, without waiting for
+ * them again, so a burst of long searches delays a few paths by a tick or two
+ * instead of the whole game. Meanwhile their listeners get the partial path
+ * of the search, if there is one (see {@link PathQuery.Listener#pathPartial}).
+ * <br />
+ * The flat pathfinders share the {@link PathCache} of the map, so actors that
+ * keep asking for nearly the same path only need a search now and then.
+ * <br />
+ * When cells of the map change (see {@link GameMap#setCells}), the flat
+ * pathfinders switch to the updated graph (see {@link GraphCache}), and the
+ * abstract graph of the hierarchical pathfinders is updated around the
+ * changed cells (see {@link ClusterGraph#update}). Queries on the pool hold
+ * the read lock of the map.
+ * <br />
+ * Apart from the pool, a service must only be used by one thread.
+ *
+ * @author Alfred
+ */
+public final class PathService
+{
+    /**
+     * How far a chased goal may move from where the last full search found a
+     * path to before the path has to be searched for again, see
+     * {@link #repairChase}.
+     */
+    public static final double MAX_CHASE_DRIFT = 1.0;
+    
+    //also used to generate graphs
+    static final ForkJoinPool pool = new ForkJoinPool();
+    
+    public final GameMap map;
+    public final double hitRadius;
+    public final boolean hierarchical;
+    
+    //the search state of each thread, for the service that used it last
+    private static final ThreadLocal<PathSearch> searches = new ThreadLocal<>();
+    
+    private volatile ClusterGraph clusterGraph = null;
+    
+    private final List<PathQuery> pending = new ArrayList<>();
+    private final List<PathQuery> running = new ArrayList<>();
+    private int tick = 0;
+    
+    private long submitted = 0, delivered = 0, deferred = 0, partial = 0, waitTime = 0;
+    private long chaseRepaired = 0, chaseSearched = 0;
+    
+    /**
+     * @param map The map to find paths in.
+     * @param hitRadius The radius of the actors using this service.
+     */
+    public PathService(GameMap map, double hitRadius)
+    {
+        this(map, hitRadius, false);
+    }
+    
+    /**
+     * @param map The map to find paths in.
+     * @param hitRadius The radius of the actors using this service.
+     * @param hierarchical True to use a {@link HierarchicalPathfinder}, whose paths are found faster on large maps but aren't always the shortest.
+     */
+    public PathService(GameMap map, double hitRadius, boolean hierarchical)
+    {
+        this.map = map;
+        this.hitRadius = hitRadius;
+        this.hierarchical = hierarchical;
+        
+        //the listener below uses the clearance, so its own listener has to be registered first
+        ClearanceMap.of(map);
+        map.addChangeListener(new GameMap.ChangeListener()
+        {
+            @Override
+            public void cellsChanged(GameMap map, int x1, int y1, int x2, int y2)
+            {
+                update(x1, y1, x2, y2);
+            }
+        });
+    }
+    
+    //called with the write lock held, after cells of the map have changed
+    private synchronized void update(int x1, int y1, int x2, int y2)
+    {
+        ClusterGraph g = clusterGraph;
+        if (g != null)
+        {
+            clusterGraph = g.update(x1, y1, x2, y2);
+        }
+    }
+    
+    /**
+     * @return The pathfinder of the calling thread, for queries that have to be answered immediately.
+     */
+    public PathSearch getPathfinder()
+    {
+        Lock lock = map.getLock().readLock();
+        lock.lock();
+        try
+        {
+            return getPathfinderLocked();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    //the pathfinder of the calling thread, replaced if it was made for another service or with an abstract graph of old cells
+    private PathSearch getPathfinderLocked()
+    {
+        PathSearch pf = searches.get();
+        if (hierarchical)
+        {
+            ClusterGraph g = getClusterGraph();
+            if (!(pf instanceof HierarchicalPathfinder) || ((HierarchicalPathfinder)pf).getClusterGraph() != g)
+            {
+                pf = new HierarchicalPathfinder(g);
+                searches.set(pf);
+            }
+        }
+        else if (!(pf instanceof Pathfinder) || ((Pathfinder)pf).map != map || ((Pathfinder)pf).getHitRadius() != hitRadius)
+        {
+            Pathfinder flat = new Pathfinder(map, hitRadius);
+            flat.setUseCache(true);
+            pf = flat;
+            searches.set(pf);
+        }
+        return pf;
+    }
+    
+    //called on the pool, where several pathfinders can be created at the same time, with the read lock held
+    private ClusterGraph getClusterGraph()
+    {
+        int version = map.getVersion();
+        ClusterGraph g = clusterGraph;
+        if (g == null || g.version != version)
+        {
+            synchronized (this)
+            {
+                g = clusterGraph;
+                if (g == null || g.version != version)
+                {
+                    g = new ClusterGraph(map, hitRadius, ClusterGraph.DEFAULT_CLUSTER_SIZE);
+                    clusterGraph = g;
+                }
+            }
+        }
+        return g;
+    }
+    
+    /**
+     * Queues a query, which is started by the next call to {@link #process}.
+     * @param query The query.
+     */
+    public void submit(PathQuery query)
+    {
+        query.submitTick = tick;
+        pending.add(query);
+        submitted++;
+    }
+    
+    /**
+     * Starts all queued queries, waits until they are done or the budget is
+     * used up, and calls the listeners of all running queries that are done,
+     * in the order they were submitted. Queries started by earlier calls are
+     * not waited for. Cancelled queries are dropped.
+     * @param budget The maximum time to wait, in seconds, or 0 to only deliver the queries that are done already.
+     * @return The number of queries delivered.
+     */
+    public int process(double budget)
+    {
+        tick++;
+        
+        int started = 0;
+        for (int i = 0; i < pending.size(); i++)
+        {
+            if (!pending.get(i).isCancelled())
+            {
+                started++;
+            }
+        }
+        final CountDownLatch batch = new CountDownLatch(started); //counts down the queries started by this call
+        
+        for (int i = 0; i < pending.size(); i++)
+        {
+            final PathQuery q = pending.get(i);
+            if (q.isCancelled())
+            {
+                continue;
+            }
+            
+            running.add(q);
+            pool.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Lock lock = map.getLock().readLock();
+                    lock.lock();
+                    try
+                    {
+                        q.run(getPathfinderLocked());
+                    }
+                    catch (RuntimeException | Error e)
+                    {
+                        Logger.logError("Path query failed", e);
+                    }
+                    finally
+                    {
+                        lock.unlock();
+                        q.setDone();
+                        batch.countDown();
+                    }
+                }
+            });
+        }
+        pending.clear();
+        
+        if (running.isEmpty())
+        {
+            return 0;
+        }
+        
+        //queries from earlier calls are only delivered if they are done already
+        if (started > 0 && budget > 0)
+        {
+            long startTime = System.nanoTime();
+            try
+            {
+                batch.await((long)(budget * 1_000_000_000), TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            waitTime += System.nanoTime() - startTime;
+        }
+        
+        //deliver the finished queries and keep the rest for later
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < running.size(); i++)
+        {
+            PathQuery q = running.get(i);
+            if (q.isDone())
+            {
+                if (q.deliver())
+                {
+                    if (q.submitTick != tick - 1)
+                    {
+                        deferred++;
+                    }
+                    count++;
+                }
+            }
+            else
+            {
+                if (q.deliverPartial())
+                {
+                    partial++;
+                }
+                running.set(j++, q);
+            }
+        }
+        running.subList(j, running.size()).clear();
+        
+        delivered += count;
+        return count;
+    }
+    
+    /**
+     * Re-plans the path of an actor chasing a moving goal on the calling
+     * thread, by repairing the current path if the goal hasn't moved too far
+     * (see {@link PathSearch#repairPath}). Since the error of a repaired path
+     * grows with the distance the goal has moved, this is only done while it
+     * is at most {@link #MAX_CHASE_DRIFT} from the goal of the last search.
+     * @param path The current path.
+     * @param time The time to start the new path at.
+     * @param speed The speed of the actor.
+     * @param goalX The x coordinate of the new goal.
+     * @param goalY The y coordinate of the new goal.
+     * @param drift The distance from the goal of the last full search to the new goal, or infinity if the current path wasn't made for the chase.
+     * @return The nodes of the new path, or null if a full search is needed.
+     */
+    public Node[] repairChase(ActorPath path, double time, double speed, double goalX, double goalY, double drift)
+    {
+        Node[] nodes = null;
+        if (drift <= MAX_CHASE_DRIFT)
+        {
+            //needs no search state, so the game thread doesn't replace the pathfinder it keeps for another game
+            nodes = Pathfinder.repairPath(map, ClearanceMap.of(map), hitRadius, path, time, speed, goalX, goalY);
+        }
+        
+        if (nodes == null)
+        {
+            chaseSearched++;
+        }
+        else
+        {
+            chaseRepaired++;
+        }
+        return nodes;
+    }
+    
+    /**
+     * Moves an actor that has been following a partial path (see
+     * {@link PathQuery#getPartialPath}) onto the finished path, by going
+     * straight from its current position to the last node of the path it
+     * can see. Called on the thread of the service.
+     * @param path The current path of the actor.
+     * @param time The time to start the new path at.
+     * @param speed The speed of the actor.
+     * @param nodes The finished path, from the start of the query.
+     * @return The nodes of the new path, or null if the actor can't see any node of the finished path.
+     */
+    public Node[] splicePath(ActorPath path, double time, double speed, Node[] nodes)
+    {
+        return Pathfinder.splicePath(map, hitRadius, path, time, speed, nodes);
+    }
+    
+    /**
+     * @return The number of queries that have been submitted but not delivered or skipped yet.
+     */
+    public int numOutstanding()
+    {
+        return pending.size() + running.size();
+    }
+    
+    public long getQueriesSubmitted()
+    {
+        return submitted;
+    }
+    
+    public long getQueriesDelivered()
+    {
+        return delivered;
+    }
+    
+    /**
+     * @return The number of delivered queries that didn't finish within the budget of the tick they were submitted in.
+     */
+    public long getQueriesDeferred()
+    {
+        return deferred;
+    }
+    
+    /**
+     * @return The number of queries whose partial path was passed to the listener because they weren't done within the budget.
+     */
+    public long getPartialPathsDelivered()
+    {
+        return partial;
+    }
+    
+    /**
+     * @return The number of chase re-plans that were served by repairing the previous path.
+     */
+    public long getChaseRepairs()
+    {
+        return chaseRepaired;
+    }
+    
+    /**
+     * @return The number of chase re-plans that needed a full search.
+     */
+    public long getChaseSearches()
+    {
+        return chaseSearched;
+    }
+    
+    /**
+     * @return The total time spent waiting for queries in {@link #process}, in nanoseconds.
+     */
+    public long getWaitTime()
+    {
+        return waitTime;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "PathService: " + submitted + " submitted, " + delivered + " delivered, " + deferred + " deferred, " + partial + " partial, waited " + SharedUtil.getTimeString(waitTime)
+                + ", chase re-plans: " + chaseRepaired + " repaired, " + chaseSearched + " searched"
+                + (hierarchical ? "" : ", " + PathCache.of(map));
+    }
+}
@@ -0,0 +1,114 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.util.ArrayList;
+import java.util.List;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * Turns a chain of waypoints between neighboring cells into an any-angle
+ * path by string pulling, i.e. by going straight to the farthest waypoint
+ * that can be seen from the current one.
+ *
+ * @author Alfred
+ */
+final class PathSmoother
+{
+    private final GameMap map;
+    private final double rad;
+    
+    private int raycasts = 0;
+    
+    /**
+     * @param map The map.
+     * @param hitRadius The radius of the actors following the paths.
+     */
+    PathSmoother(GameMap map, double hitRadius)
+    {
+        this.map = map;
+        rad = hitRadius - .00001;
+    }
+    
+    /**
+     * Removes the waypoints of a chain that can be skipped with a straight line.
+     * Each step jumps to the farthest visible waypoint, found by doubling and
+     * then bisecting the step.
+     * @param startX The x coordinate of the start, which must be able to see the first waypoint.
+     * @param startY The y coordinate of the start.
+     * @param chain The waypoints, ending with the goal. Each one must be able to see the next one.
+     * @return The path, starting at the start and ending at the goal.
+     */
+    Node[] smooth(double startX, double startY, List<Node> chain)
+    {
+        Node goal = chain.get(chain.size() - 1);
+        
+        List<Node> result = new ArrayList<>();
+        Node anchor = new Node(startX, startY);
+        result.add(anchor);
+        int i = 0; //the anchor can see chain[i]
+        int last = chain.size() - 1;
+        while (true)
+        {
+            if (i == last || !collisionLine(anchor, goal))
+            {
+                break;
+            }
+            
+            int lo = i, hi = last; //lo is visible, hi is not
+            for (int step = 1; lo + step < hi; step *= 2)
+            {
+                if (collisionLine(anchor, chain.get(lo + step)))
+                {
+                    hi = lo + step;
+                    break;
+                }
+                lo += step;
+            }
+            while (hi - lo > 1)
+            {
+                int mid = (lo + hi) >>> 1;
+                if (collisionLine(anchor, chain.get(mid)))
+                {
+                    hi = mid;
+                }
+                else
+                {
+                    lo = mid;
+                }
+            }
+            
+            if (lo == i && anchor == chain.get(i))
+            {
+                //consecutive waypoints can always see each other
+                lo = i + 1;
+            }
+            
+            anchor = chain.get(lo);
+            result.add(anchor);
+            i = lo;
+            if (i == last)
+            {
+                break;
+            }
+        }
+        if (anchor.x != goal.x || anchor.y != goal.y)
+        {
+            result.add(goal);
+        }
+        
+        return result.toArray(new Node[result.size()]);
+    }
+    
+    private boolean collisionLine(Node a, Node b)
+    {
+        raycasts++;
+        return CellTraversal.collisionLine(map, a.x, a.y, b.x, b.y, rad);
+    }
+    
+    /**
+     * @return The number of line tests done so far.
+     */
+    int getRaycasts()
+    {
+        return raycasts;
+    }
+}
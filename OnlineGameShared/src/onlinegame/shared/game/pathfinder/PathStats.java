@@ -0,0 +1,109 @@
+package onlinegame.shared.game.pathfinder;
+
+import onlinegame.shared.SharedUtil;
+
+/**
+ * Counters of the work done by a {@link Pathfinder}, used to measure the
+ * effect of the heuristic and other search changes. Like the pathfinder
+ * itself it is not thread safe.
+ *
+ * @author Alfred
+ */
+public final class PathStats
+{
+    private long queries, pathsFound, expandedNodes, raycasts, time;
+    private int lastExpandedNodes, lastRaycasts;
+    
+    void record(boolean found, int expanded, int rays, long nanos)
+    {
+        queries++;
+        if (found)
+        {
+            pathsFound++;
+        }
+        expandedNodes += expanded;
+        raycasts += rays;
+        time += nanos;
+        lastExpandedNodes = expanded;
+        lastRaycasts = rays;
+    }
+    
+    /**
+     * Adds the totals of another instance to this one.
+     * @param other The counters to add.
+     */
+    public void add(PathStats other)
+    {
+        queries += other.queries;
+        pathsFound += other.pathsFound;
+        expandedNodes += other.expandedNodes;
+        raycasts += other.raycasts;
+        time += other.time;
+        lastExpandedNodes = other.lastExpandedNodes;
+        lastRaycasts = other.lastRaycasts;
+    }
+    
+    public void reset()
+    {
+        queries = 0;
+        pathsFound = 0;
+        expandedNodes = 0;
+        raycasts = 0;
+        time = 0;
+        lastExpandedNodes = 0;
+        lastRaycasts = 0;
+    }
+    
+    public long getQueries()
+    {
+        return queries;
+    }
+    
+    public long getPathsFound()
+    {
+        return pathsFound;
+    }
+    
+    /**
+     * @return The total number of graph nodes taken from the frontier and expanded.
+     */
+    public long getExpandedNodes()
+    {
+        return expandedNodes;
+    }
+    
+    /**
+     * @return The total number of line collision tests.
+     */
+    public long getRaycasts()
+    {
+        return raycasts;
+    }
+    
+    /**
+     * @return The total time spent in findPath, in nanoseconds.
+     */
+    public long getTime()
+    {
+        return time;
+    }
+    
+    public int getLastExpandedNodes()
+    {
+        return lastExpandedNodes;
+    }
+    
+    public int getLastRaycasts()
+    {
+        return lastRaycasts;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return queries + " queries (" + pathsFound + " found), "
+                + expandedNodes + " expanded nodes, "
+                + raycasts + " raycasts, "
+                + SharedUtil.getTimeString(time);
+    }
+}
@@ -1,9 +1,8 @@
 package onlinegame.shared.game.pathfinder;
 
-import gnu.trove.map.TIntObjectMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
-import gnu.trove.set.hash.THashSet;
-import java.util.PriorityQueue;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import onlinegame.shared.IndexedDoubleHeap;
 import onlinegame.shared.Logger;
 import onlinegame.shared.MathUtil;
 import onlinegame.shared.SharedUtil;
@@ -11,38 +10,212 @@ import onlinegame.shared.game.GameMap;
 import org.joml.Vector2d;
 
 /**
+ * A* search on the visibility graph of a map (see {@link GraphCache}).
+ * <br />
+ * The searches hold the read lock of the map, and switch to the updated graph
+ * of the map when its cells have changed since the last search (see
+ * {@link GameMap#setCells}).
  *
  * @author Alfred
  */
-public final class Pathfinder
+public final class Pathfinder implements PathSearch
 {
     public final GameMap map;
     
     private final double hitRadius;
-    private final Graph graph;
-    private final TIntObjectMap<Node> posNodeMap;
-    //private final FloydWarshall floydWarshall;
+    private final ClearanceMap clearance;
+    private Graph fullGraph;
+    private Graph graph;
+    private int graphVersion;
+    private boolean useTautGraph = false;
+    private Landmarks landmarks;
+    private boolean useLandmarks = true;
+    private final PathCache cache;
+    private boolean useCache = false;
+    private final PathStats stats = new PathStats();
     
+    //search state, indexed by node (the start and goal use the two indices after the last graph node)
+    //an entry is only valid if its stamp equals the current generation, so nothing has to be reset between searches
+    private int startIndex, goalIndex;
+    private int[] stamp;
+    private int generation = 0;
+    private double[] cost, estCost;
+    private int[] parent;
+    private int[] pathNodes;
+    private boolean[] visited;
+    private IndexedDoubleHeap frontier;
+    private double startX, startY, goalX, goalY;
+    
+    //state of the running search between calls to resumeSearch
+    private boolean searching = false;
+    private int searchVersion;
+    private int expanded;
+    private long searchTime;
+    private int closestNode;
+    private double closestDist;
+    private Node[] result = null;
+    
+    private int raycasts;
+    
+    //the nodes the start (or the goal while the heuristic is set up) can see
+    private final VisibilitySweep sweep;
+    private int[] visibleNodes;
+    private int numVisibleFromStart;
+    
+    //line tests from graph nodes to the goal, valid if the stamp equals the current generation
+    private int[] goalVisibleStamp;
+    private boolean[] goalVisible;
+    
+    //per-search state of the landmark heuristic
+    private double[] goalBounds;
+    
+    /**
+     * Creates a pathfinder using the shared graph for the given map and radius,
+     * which is generated (or loaded from the disk cache) the first time it is needed.
+     * @param map The map to find paths in.
+     * @param hitRadius The radius of the actors using this pathfinder.
+     */
     public Pathfinder(GameMap map, double hitRadius)
     {
         this.map = map;
         this.hitRadius = hitRadius;
-        graph = genGraph();
-        //floydWarshall = FloydWarshall.generate(graph);
+        clearance = ClearanceMap.of(map);
+        cache = PathCache.of(map);
+        sweep = new VisibilitySweep(map, hitRadius);
         
-        posNodeMap = new TIntObjectHashMap<>(graph.size() * 2 + 5, .5f, -1);
-        for (int i = 0; i < graph.size(); i++)
+        Lock lock = map.getLock().readLock();
+        lock.lock();
+        try
+        {
+            updateGraph();
+        }
+        finally
         {
-            Node n = graph.get(i);
-            int x = (int)(n.x / map.scale);
-            int y = (int)(n.y / map.scale);
-            posNodeMap.put(x + y * map.width, n);
+            lock.unlock();
         }
     }
     
-    private Graph genGraph()
+    //switches to the graph of the current cells, and makes room for its nodes in the search state
+    private void updateGraph()
+    {
+        graphVersion = map.getVersion();
+        fullGraph = GraphCache.get(map, hitRadius);
+        graph = useTautGraph ? fullGraph.getTautGraph() : fullGraph;
+        landmarks = graph.getLandmarks();
+        
+        startIndex = graph.size();
+        goalIndex = graph.size() + 1;
+        
+        int size = graph.size() + 2;
+        if (stamp == null || stamp.length < size)
+        {
+            //with some room to spare, so that a few new nodes don't need new arrays every time
+            int capacity = stamp == null ? size : size + size / 8;
+            stamp = new int[capacity];
+            cost = new double[capacity];
+            estCost = new double[capacity];
+            parent = new int[capacity];
+            pathNodes = new int[capacity];
+            visited = new boolean[capacity];
+            frontier = new IndexedDoubleHeap(capacity);
+            goalVisibleStamp = new int[capacity];
+            goalVisible = new boolean[capacity];
+            visibleNodes = new int[capacity];
+        }
+        if (goalBounds == null || goalBounds.length != 2 * landmarks.count())
+        {
+            goalBounds = new double[2 * landmarks.count()];
+        }
+    }
+    
+    /**
+     * Enables or disables the landmark (ALT) heuristic. It is enabled by default.
+     * <br />
+     * Without landmarks the heuristic is the straight line distance to the
+     * goal. With them every search starts by testing which graph nodes can see
+     * the goal, which tightens the heuristic (see {@link Landmarks#lowerBound})
+     * so that far fewer nodes are expanded on long paths, and rejects goals
+     * that can't be reached from any node right away. The goal test of
+     * expanded nodes is then free, but short searches that expand only a few
+     * nodes end up doing more line tests than without landmarks.
+     * @param useLandmarks True to use the landmark heuristic.
+     */
+    public void setUseLandmarks(boolean useLandmarks)
+    {
+        this.useLandmarks = useLandmarks;
+    }
+    
+    public boolean isUsingLandmarks()
+    {
+        return useLandmarks;
+    }
+    
+    /**
+     * Switches between the full visibility graph and the taut one (see
+     * {@link Graph#getTautGraph}), which is disabled by default. The paths
+     * are equally long either way.
+     * <br />
+     * The taut graph has far fewer edges to relax, and a search with it
+     * also skips the line tests from the start and to the goal at nodes
+     * where the lines aren't tangent, since no shortest path can use them.
+     * @param useTautGraph True to search the taut graph.
+     */
+    public void setUseTautGraph(boolean useTautGraph)
     {
-        Graph g = new Graph();
+        this.useTautGraph = useTautGraph;
+        
+        Lock lock = map.getLock().readLock();
+        lock.lock();
+        try
+        {
+            updateGraph();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    public boolean isUsingTautGraph()
+    {
+        return useTautGraph;
+    }
+    
+    /**
+     * Enables or disables the {@link PathCache} of the map, which is disabled
+     * by default. With the cache, a search between the same squares of cells
+     * as a recent one returns that path with new ends if they can be
+     * connected to it, so the paths aren't always the shortest ones.
+     * @param useCache True to use the path cache.
+     */
+    public void setUseCache(boolean useCache)
+    {
+        this.useCache = useCache;
+    }
+    
+    public boolean isUsingCache()
+    {
+        return useCache;
+    }
+    
+    public double getHitRadius()
+    {
+        return hitRadius;
+    }
+    
+    /**
+     * @return The counters of the work done by this pathfinder.
+     */
+    @Override
+    public PathStats getStats()
+    {
+        return stats;
+    }
+    
+    static Graph genGraph(GameMap map, double hitRadius)
+    {
+        long startTime = System.nanoTime();
+        GraphBuilder g = new GraphBuilder();
         
         double fixedRad = hitRadius - .00001;
         
@@ -51,878 +224,563 @@ public final class Pathfinder
         {
             for (int x = 0; x < map.width; x++)
             {
-                if (map.isWalkable(x, y)) continue;
+                int corners = getCorners(map, x, y, hitRadius);
                 
-                double x1 = (double)x * map.scale - hitRadius;
-                double y1 = (double)y * map.scale - hitRadius;
-                double x2 = (double)(x+1) * map.scale + hitRadius;
-                double y2 = (double)(y+1) * map.scale + hitRadius;
-                
-                boolean cnw = map.isWalkable(x-1, y-1); //north-west
-                boolean cw  = map.isWalkable(x-1, y  ); //west
-                boolean csw = map.isWalkable(x-1, y+1); //south-west
-                
-                boolean cn  = map.isWalkable(x,   y-1); //north
-              //boolean cc  = false;                    //center
-                boolean cs  = map.isWalkable(x,   y+1); //south
-                
-                boolean cne = map.isWalkable(x+1, y-1); //north-east
-                boolean ce  = map.isWalkable(x+1, y  ); //east
-                boolean cse = map.isWalkable(x+1, y+1); //south-east
-                
-                //north-west
-                if (cnw && cn && cw && !collisionBox(x1 - fixedRad, y1 - fixedRad, x1 + fixedRad, y1 + fixedRad))
+                //north-west, north-east, south-west, south-east
+                for (int c = 3; c >= 0; c--)
                 {
-                    g.add(new Node(x1, y1));
-                }
-                //north-east
-                if (cne && cn && ce && !collisionBox(x2 - fixedRad, y1 - fixedRad, x2 + fixedRad, y1 + fixedRad))
-                {
-                    g.add(new Node(x2, y1));
-                }
-                //south-west
-                if (csw && cs && cw && !collisionBox(x1 - fixedRad, y2 - fixedRad, x1 + fixedRad, y2 + fixedRad))
-                {
-                    g.add(new Node(x1, y2));
-                }
-                //south-east
-                if (cse && cs && ce && !collisionBox(x2 - fixedRad, y2 - fixedRad, x2 + fixedRad, y2 + fixedRad))
-                {
-                    g.add(new Node(x2, y2));
+                    if ((corners & (1 << c)) != 0)
+                    {
+                        g.addNode(getCornerX(map, x, c, hitRadius), getCornerY(map, y, c, hitRadius), c);
+                    }
                 }
             }
         }
         
-        int numEdges = 0;
+        Logger.log("Generating graph for " + map.name + ": " + g.size() + " nodes");
         
         //connect nodes
+        double[] x = new double[g.size()];
+        double[] y = new double[g.size()];
+        int[] corner = new int[g.size()];
         for (int i = 0; i < g.size(); i++)
         {
-            Node n1 = g.get(i);
-            for (int j = 0; j < i; j++)
-            {
-                Node n2 = g.get(j);
-                if (!collisionLine(n1.x, n1.y, n2.x, n2.y, fixedRad))
-                {
-                    n1.connect(n2);
-                    numEdges++;
-                }
-            }
+            x[i] = g.getX(i);
+            y[i] = g.getY(i);
+            corner[i] = g.getCorner(i);
         }
+        GraphConnector connector = new GraphConnector(map, fixedRad, x, y, corner);
+        int[][] lower = connector.connect();
         
-        //check for unconnected nodes
-        int op = 0;
-        for (int i = 0; i < g.size(); i++)
+        int numEdges = 0;
+        for (int i = 0; i < lower.length; i++)
         {
-            Node n = g.get(i);
-            if (n.numNeighbors() == 0)
+            for (int j : lower[i])
             {
-                g.remove(i);
-                i--;
+                g.connect(i, j);
+                numEdges++;
             }
         }
         
-        Logger.log("Generated graph for " + map.name + ": " + g.size() + " nodes, " + numEdges + " edges.");
+        //unconnected nodes are left out
+        Graph graph = g.build();
+        
+        Logger.log("Generated graph for " + map.name + ": " + graph.size() + " nodes, " + numEdges + " edges in "
+                + SharedUtil.getTimeString(System.nanoTime() - startTime) + " (" + connector.getRaycasts() + " of " + connector.getTotalPairs() + " pairs tested).");
         
-        return g;
+        return graph;
     }
     
-    private final Vector2d tempVec2 = new Vector2d();
-    public boolean nearestFreeSpace(double x, double y, double maxDist, Vector2d dest)
+    /**
+     * Finds the graph nodes of a cell. A blocked cell has a node diagonally
+     * off each corner where the three cells around the corner are walkable
+     * and an actor fits.
+     * @param map The map.
+     * @param x The x coordinate of the cell.
+     * @param y The y coordinate of the cell.
+     * @param hitRadius The radius of the actors.
+     * @return The corners of the cell that have a node, with bit <code>1 &lt;&lt; c</code> set for the node whose corner (see {@link Graph#getCorner}) is c.
+     */
+    static int getCorners(GameMap map, int x, int y, double hitRadius)
     {
-        if (hitRadius > 1)
+        if (map.isWalkable(x, y))
         {
-            throw new IllegalStateException("Find a better way to do this..... set the booleans in clampInsideCell based on surrounding walls");
+            return 0;
         }
         
-        double invscale = 1. / map.scale;
-        x *= invscale;
-        y *= invscale;
-        int ix = MathUtil.floor(x);
-        int iy = MathUtil.floor(y);
-        
-        double rad = hitRadius * invscale;
-        double safeRad = rad - 0.00001;
-        
-        /*if (!collisionBoxUnscaled(x - safeRad, y - safeRad, x + safeRad, y + safeRad))
-        {
-            dest.x = x;
-            dest.y = y;
-            return true;
-        }*/
-        
-        //System.out.println("----searching----");
-        
-        
-        
-        double fx = MathUtil.frac(x);
-        double fy = MathUtil.frac(y);
-        
-        double bestX = 0, bestY = 0, bestDistSqr = Double.POSITIVE_INFINITY;
-        double stopDist = Double.POSITIVE_INFINITY;
-        
-        int max = RadialOrder.count();
-        for (int i = 0; i < max; i++)
+        double fixedRad = hitRadius - .00001;
+        int corners = 0;
+        for (int c = 0; c < 4; c++)
         {
-            int xx = RadialOrder.getX(i);
-            int yy = RadialOrder.getY(i);
-            double cd = RadialOrder.getDist(i);
-            
-            //System.out.println("(" + xx + ", " + yy + ")");
-            if (cd >= stopDist)
+            //the node is on the opposite side of the cell
+            int dx = (c & Graph.CORNER_POSITIVE_X) != 0 ? -1 : 1;
+            int dy = (c & Graph.CORNER_POSITIVE_Y) != 0 ? -1 : 1;
+            if (map.isWalkable(x + dx, y + dy) && map.isWalkable(x + dx, y) && map.isWalkable(x, y + dy))
             {
-                //System.out.println("stopDist exceeded!");
-                break;
-            }
-            int testx = xx + ix;
-            int testy = yy + iy;
-            if (map.isWalkable(testx, testy))
-            {
-                int dir = RadialOrder.getDir(i);
-                double ucx = RadialOrder.getClosestX(fx, dir);
-                double ucy = RadialOrder.getClosestY(fy, dir);
-                //System.out.println("p: (" + ucx + ", " + ucy + ")");
-                if (!clampInsideCell(ucx, ucy, testx, testy, rad, safeRad, tempVec2))
-                {
-                    //System.out.println("collision detected in clamp");
-                    continue;
-                }
-                //System.out.println("f: (" + tempVec2.x + ", " + tempVec2.y + ")");
-                double dx = xx + tempVec2.x - fx;
-                double dy = yy + tempVec2.y - fy;
-                double px = x + dx;
-                double py = y + dy;
-                if (collisionBoxUnscaled(px - safeRad, py - safeRad, px + safeRad, py + safeRad))
-                {
-                    //System.out.println("collision test failed!");
-                    continue;
-                }
-                
-                double dsqr = dx * dx + dy * dy;
-                //System.out.println("dx: " + dx + ", dy: " + dy + ", dsqr: " + dsqr);
-                if (dsqr < bestDistSqr)
+                double nx = getCornerX(map, x, c, hitRadius);
+                double ny = getCornerY(map, y, c, hitRadius);
+                if (!collisionBox(map, nx - fixedRad, ny - fixedRad, nx + fixedRad, ny + fixedRad))
                 {
-                    if (stopDist == Double.POSITIVE_INFINITY)
-                    {
-                        stopDist = cd + 1;
-                        stopDist *= stopDist;
-                    }
-                    bestDistSqr = dsqr;
-                    bestX = px;
-                    bestY = py;
-                    //System.out.println("New best!");
+                    corners |= 1 << c;
                 }
             }
         }
-        
-        if (bestDistSqr >= maxDist * maxDist)
-        {
-            //System.out.println("false");
-            return false;
-        }
-        
-        dest.x = bestX * map.scale;
-        dest.y = bestY * map.scale;
-        //System.out.println("Given: (" + x*map.scale + ", " + y*map.scale + ")");
-        //System.out.println("Found: (" + dest.x + ", " + dest.y + ")");
-        return true;
+        return corners;
     }
     
-    private boolean clampInsideCell(double fx, double fy, int ix, int iy, double srad, double trad, Vector2d dest)
+    static double getCornerX(GameMap map, int x, int corner, double hitRadius)
     {
-        double mrad = 1.0 - srad;
-        double mtrad = 1.0 - trad;
-        
-        boolean cnw = !map.isWalkable(ix-1, iy-1); //north-west
-        boolean cw  = !map.isWalkable(ix-1, iy  ); //west
-        boolean csw = !map.isWalkable(ix-1, iy+1); //south-west
-        
-        boolean cn  = !map.isWalkable(ix,   iy-1); //north
-      //boolean cc  = false;                       //center
-        boolean cs  = !map.isWalkable(ix,   iy+1); //south
-        
-        boolean cne = !map.isWalkable(ix+1, iy-1); //north-east
-        boolean ce  = !map.isWalkable(ix+1, iy  ); //east
-        boolean cse = !map.isWalkable(ix+1, iy+1); //south-east
-        
-        double tx, ty;
-        
-        tx = fx;
-        ty = fy;
-        if ((tx >= trad  || (!cw && (!cnw || ty >= trad) && (!csw || ty <= mtrad))) &&
-            (tx <= mtrad || (!ce && (!cne || ty >= trad) && (!cse || ty <= mtrad))) &&
-            (ty >= trad  || (!cn && (!cnw || tx >= trad) && (!cne || tx <= mtrad))) &&
-            (ty <= mtrad || (!cs && (!csw || tx >= trad) && (!cse || tx <= mtrad))))
+        return (corner & Graph.CORNER_POSITIVE_X) != 0 ? (double)x * map.scale - hitRadius : (double)(x+1) * map.scale + hitRadius;
+    }
+    
+    static double getCornerY(GameMap map, int y, int corner, double hitRadius)
+    {
+        return (corner & Graph.CORNER_POSITIVE_Y) != 0 ? (double)y * map.scale - hitRadius : (double)(y+1) * map.scale + hitRadius;
+    }
+    
+    /**
+     * Finds the closest point to the given position where an actor using this pathfinder fits.
+     * @param x The x coordinate of the position.
+     * @param y The y coordinate of the position.
+     * @param maxDist The maximum distance from the position.
+     * @param dest The vector to store the result in.
+     * @return True if a point was found.
+     * @see ClearanceMap#nearestFreeSpace
+     */
+    @Override
+    public boolean nearestFreeSpace(double x, double y, double maxDist, Vector2d dest)
+    {
+        Lock lock = map.getLock().readLock();
+        lock.lock();
+        try
         {
-            dest.set(tx, ty);
-            return true;
+            return clearance.nearestFreeSpace(x, y, hitRadius, maxDist, dest);
         }
-        
-        if (fx < srad)
+        finally
         {
-            tx = srad;
-            ty = fy;
-            if ((tx >= trad  || (!cw && (!cnw || ty >= trad) && (!csw || ty <= mtrad))) &&
-                (tx <= mtrad || (!ce && (!cne || ty >= trad) && (!cse || ty <= mtrad))) &&
-                (ty >= trad  || (!cn && (!cnw || tx >= trad) && (!cne || tx <= mtrad))) &&
-                (ty <= mtrad || (!cs && (!csw || tx >= trad) && (!cse || tx <= mtrad))))
-            {
-                dest.set(tx, ty);
-                return true;
-            }
-            if (fy < srad)
-            {
-                tx = fx;
-                ty = srad;
-                if ((tx >= trad  || (!cw && (!cnw || ty >= trad) && (!csw || ty <= mtrad))) &&
-                    (tx <= mtrad || (!ce && (!cne || ty >= trad) && (!cse || ty <= mtrad))) &&
-                    (ty >= trad  || (!cn && (!cnw || tx >= trad) && (!cne || tx <= mtrad))) &&
-                    (ty <= mtrad || (!cs && (!csw || tx >= trad) && (!cse || tx <= mtrad))))
-                {
-                    dest.set(tx, ty);
-                    return true;
-                }
-                
-                tx = srad;
-                ty = srad;
-                if ((tx >= trad  || (!cw && (!cnw || ty >= trad) && (!csw || ty <= mtrad))) &&
-                    (tx <= mtrad || (!ce && (!cne || ty >= trad) && (!cse || ty <= mtrad))) &&
-                    (ty >= trad  || (!cn && (!cnw || tx >= trad) && (!cne || tx <= mtrad))) &&
-                    (ty <= mtrad || (!cs && (!csw || tx >= trad) && (!cse || tx <= mtrad))))
-                {
-                    dest.set(tx, ty);
-                    return true;
-                }
-            }
-            if (fy > mrad)
-            {
-                tx = fx;
-                ty = mrad;
-                if ((tx >= trad  || (!cw && (!cnw || ty >= trad) && (!csw || ty <= mtrad))) &&
-                    (tx <= mtrad || (!ce && (!cne || ty >= trad) && (!cse || ty <= mtrad))) &&
-                    (ty >= trad  || (!cn && (!cnw || tx >= trad) && (!cne || tx <= mtrad))) &&
-                    (ty <= mtrad || (!cs && (!csw || tx >= trad) && (!cse || tx <= mtrad))))
-                {
-                    dest.set(tx, ty);
-                    return true;
-                }
-                
-                tx = srad;
-                ty = mrad;
-                if ((tx >= trad  || (!cw && (!cnw || ty >= trad) && (!csw || ty <= mtrad))) &&
-                    (tx <= mtrad || (!ce && (!cne || ty >= trad) && (!cse || ty <= mtrad))) &&
-                    (ty >= trad  || (!cn && (!cnw || tx >= trad) && (!cne || tx <= mtrad))) &&
-                    (ty <= mtrad || (!cs && (!csw || tx >= trad) && (!cse || tx <= mtrad))))
-                {
-                    dest.set(tx, ty);
-                    return true;
-                }
-            }
+            lock.unlock();
         }
-        if (fx > mrad)
+    }
+    
+    public boolean collisionBox(double x1, double y1, double x2, double y2)
+    {
+        return collisionBox(map, x1, y1, x2, y2);
+    }
+    
+    static boolean collisionBox(GameMap map, double x1, double y1, double x2, double y2)
+    {
+        double invscale = 1. / map.scale;
+        int ix1 = MathUtil.floor(x1 * invscale);
+        int iy1 = MathUtil.floor(y1 * invscale);
+        int ix2 = MathUtil.floor(x2 * invscale);
+        int iy2 = MathUtil.floor(y2 * invscale);
+        
+        if (ix1 < 0 || iy1 < 0 || ix2 >= map.width || iy2 >= map.height)
         {
-            tx = mrad;
-            ty = fy;
-            if ((tx >= trad  || (!cw && (!cnw || ty >= trad) && (!csw || ty <= mtrad))) &&
-                (tx <= mtrad || (!ce && (!cne || ty >= trad) && (!cse || ty <= mtrad))) &&
-                (ty >= trad  || (!cn && (!cnw || tx >= trad) && (!cne || tx <= mtrad))) &&
-                (ty <= mtrad || (!cs && (!csw || tx >= trad) && (!cse || tx <= mtrad))))
-            {
-                dest.set(tx, ty);
-                return true;
-            }
-            if (fy < srad)
-            {
-                tx = fx;
-                ty = srad;
-                if ((tx >= trad  || (!cw && (!cnw || ty >= trad) && (!csw || ty <= mtrad))) &&
-                    (tx <= mtrad || (!ce && (!cne || ty >= trad) && (!cse || ty <= mtrad))) &&
-                    (ty >= trad  || (!cn && (!cnw || tx >= trad) && (!cne || tx <= mtrad))) &&
-                    (ty <= mtrad || (!cs && (!csw || tx >= trad) && (!cse || tx <= mtrad))))
-                {
-                    dest.set(tx, ty);
-                    return true;
-                }
-                
-                tx = mrad;
-                ty = srad;
-                if ((tx >= trad  || (!cw && (!cnw || ty >= trad) && (!csw || ty <= mtrad))) &&
-                    (tx <= mtrad || (!ce && (!cne || ty >= trad) && (!cse || ty <= mtrad))) &&
-                    (ty >= trad  || (!cn && (!cnw || tx >= trad) && (!cne || tx <= mtrad))) &&
-                    (ty <= mtrad || (!cs && (!csw || tx >= trad) && (!cse || tx <= mtrad))))
-                {
-                    dest.set(tx, ty);
-                    return true;
-                }
-            }
-            if (fy > mrad)
-            {
-                tx = fx;
-                ty = mrad;
-                if ((tx >= trad  || (!cw && (!cnw || ty >= trad) && (!csw || ty <= mtrad))) &&
-                    (tx <= mtrad || (!ce && (!cne || ty >= trad) && (!cse || ty <= mtrad))) &&
-                    (ty >= trad  || (!cn && (!cnw || tx >= trad) && (!cne || tx <= mtrad))) &&
-                    (ty <= mtrad || (!cs && (!csw || tx >= trad) && (!cse || tx <= mtrad))))
-                {
-                    dest.set(tx, ty);
-                    return true;
-                }
-                
-                tx = mrad;
-                ty = mrad;
-                if ((tx >= trad  || (!cw && (!cnw || ty >= trad) && (!csw || ty <= mtrad))) &&
-                    (tx <= mtrad || (!ce && (!cne || ty >= trad) && (!cse || ty <= mtrad))) &&
-                    (ty >= trad  || (!cn && (!cnw || tx >= trad) && (!cne || tx <= mtrad))) &&
-                    (ty <= mtrad || (!cs && (!csw || tx >= trad) && (!cse || tx <= mtrad))))
-                {
-                    dest.set(tx, ty);
-                    return true;
-                }
-            }
+            return true;
         }
-        
-        
-        
-        /*if (testOff(fx, fy, dix, diy, trad, dest)) return true; //test input pos
-        
-        if (testOff(fx, srad, dix, diy, trad, dest)) return true; //test input x and min/max y
-        if (testOff(fx, mrad, dix, diy, trad, dest)) return true;
-        
-        if (testOff(srad, fy, dix, diy, trad, dest)) return true;
-        if (testOff(mrad, fy, dix, diy, trad, dest)) return true;
-        
-        if (testOff(srad, srad, dix, diy, trad, dest)) return true;
-        if (testOff(srad, mrad, dix, diy, trad, dest)) return true;
-        if (testOff(mrad, srad, dix, diy, trad, dest)) return true;
-        if (testOff(mrad, mrad, dix, diy, trad, dest)) return true;*/
-        
-        return false;
+        return map.getBlockedBitmap().anyInBox(ix1, iy1, ix2, iy2);
     }
-    private boolean testOff(double fx, double fy, double ix, double iy, double rad, Vector2d dest)
+    
+    public boolean collisionLine(double x1, double y1, double x2, double y2, double radius)
     {
-        double x = ix + fx;
-        double y = iy + fy;
-        if (collisionBoxUnscaled(x - rad, y - rad, x + rad, y + rad))
+        return CellTraversal.collisionLine(map, x1, y1, x2, y2, radius);
+    }
+    
+    public boolean collisionLine(double x1, double y1, double x2, double y2)
+    {
+        return CellTraversal.collisionLine(map, x1, y1, x2, y2);
+    }
+    
+    /**
+     * Adapts a path to a goal that has moved, without searching. The actor
+     * keeps following the remaining waypoints of the path, and only the last
+     * leg is replaced, unless the new goal can be reached in a straight line
+     * from the actor's position.
+     * <br />
+     * If the path was the shortest one to a goal that has since moved by d,
+     * the result is at most 2d longer than the shortest path to the new goal.
+     * @param path The current path.
+     * @param time The time to start the new path at.
+     * @param speed The speed of the actor.
+     * @param goalX The x coordinate of the new goal.
+     * @param goalY The y coordinate of the new goal.
+     * @return The nodes of the new path, starting at the actor's position at the given time, or null if the path can't be repaired.
+     */
+    @Override
+    public Node[] repairPath(ActorPath path, double time, double speed, double goalX, double goalY)
+    {
+        return repairPath(map, clearance, hitRadius, path, time, speed, goalX, goalY);
+    }
+    
+    static Node[] repairPath(GameMap map, ClearanceMap clearance, double hitRadius, ActorPath path, double time, double speed, double goalX, double goalY)
+    {
+        Lock lock = map.getLock().readLock();
+        lock.lock();
+        try
         {
-            return false;
+            return repairPathLocked(map, clearance, hitRadius, path, time, speed, goalX, goalY);
         }
-        else
+        finally
         {
-            dest.x = fx;
-            dest.y = fy;
-            return true;
+            lock.unlock();
         }
     }
-    /*private boolean clampInsideCell(double fx, double fy, int ix, int iy, double setrad, double testrad, Vector2d dest)
+    
+    private static Node[] repairPathLocked(GameMap map, ClearanceMap clearance, double hitRadius, ActorPath path, double time, double speed, double goalX, double goalY)
     {
-        double oneminusrad = 1.0 - setrad;
-        double oneminustestrad = 1.0 - testrad;
-        
-        boolean cnw = !map.isWalkable(ix-1, iy-1); //north-west
-        boolean cw  = !map.isWalkable(ix-1, iy  ); //west
-        boolean csw = !map.isWalkable(ix-1, iy+1); //south-west
-        
-        boolean cn  = !map.isWalkable(ix,   iy-1); //north
-      //boolean cc  = false;                       //center
-        boolean cs  = !map.isWalkable(ix,   iy+1); //south
-        
-        boolean cne = !map.isWalkable(ix+1, iy-1); //north-east
-        boolean ce  = !map.isWalkable(ix+1, iy  ); //east
-        boolean cse = !map.isWalkable(ix+1, iy+1); //south-east
-        
-        int xmove = 0, ymove = 0;
-        
-        //clamp from west
-        if (fx < testrad && (cw || (cnw && fy < testrad) || (csw && fy > oneminustestrad)))
-        {
-            //fx = setrad;
-            xmove = 1;
-        }
-        //clamp from east
-        else if (fx > oneminustestrad && (ce || (cne && fy < testrad) || (cse && fy > oneminustestrad)))
+        double fixedrad = hitRadius - .00001;
+        if (clearance.collisionBox(goalX, goalY, fixedrad))
         {
-            //fx = oneminusrad;
-            if (xmove != 0)
-                xmove = 2;
-            else
-                xmove = -1;
+            return null;
         }
         
-        //clamp from north
-        if (fy < testrad && (cn || (cnw && fx < testrad) || (cne && fx > oneminustestrad)))
+        double x = path.getPathXPos(time, speed);
+        double y = path.getPathYPos(time, speed);
+        if (!CellTraversal.collisionLine(map, x, y, goalX, goalY, fixedrad))
         {
-            //fy = setrad;
-            ymove = 1;
+            return new Node[] {new Node(x, y), new Node(goalX, goalY)};
         }
-        //clamp from south
-        if (fy > oneminustestrad && (cs || (csw && fx < testrad) || (cse && fx > oneminustestrad)))
+        
+        //keep the waypoints after the current segment, except for the old goal
+        int first = path.getPathPrevPoint(time, speed) + 1;
+        int last = path.numPoints() - 2;
+        if (first > last || CellTraversal.collisionLine(map, path.getXPoint(last), path.getYPoint(last), goalX, goalY, fixedrad))
         {
-            //fy = oneminusrad;
-            if (ymove != 0)
-                ymove = 2;
-            else
-                ymove = -1;
+            return null;
         }
         
-        if (xmove == 2 && ymove == 2)
+        Node[] result = new Node[last - first + 3];
+        result[0] = new Node(x, y);
+        for (int i = first; i <= last; i++)
         {
-            return false;
+            result[i - first + 1] = new Node(path.getXPoint(i), path.getYPoint(i));
         }
-        else if (xmove == 2)
+        result[result.length - 1] = new Node(goalX, goalY);
+        return result;
+    }
+    
+    /**
+     * Joins the path an actor is following with a new path from an earlier
+     * position, see {@link PathService#splicePath}.
+     * @param map The map.
+     * @param hitRadius The radius of the actor.
+     * @param path The current path of the actor.
+     * @param time The time to start the new path at.
+     * @param speed The speed of the actor.
+     * @param nodes The new path.
+     * @return The nodes of the joined path, or null if the actor can't see any node of the new path.
+     */
+    static Node[] splicePath(GameMap map, double hitRadius, ActorPath path, double time, double speed, Node[] nodes)
+    {
+        Lock lock = map.getLock().readLock();
+        lock.lock();
+        try
         {
-            if (ymove == 1)
-            {
-                fy = setrad;
-            }
-            else if (ymove == -1)
-            {
-                fy = oneminusrad;
-            }
-            if (ymove != 0)
+            double fixedrad = hitRadius - .00001;
+            double x = path.getPathXPos(time, speed);
+            double y = path.getPathYPos(time, speed);
+            for (int i = nodes.length - 1; i > 0; i--)
             {
-                //clamp from west
-                if (fx < testrad && (cw || (cnw && fy < testrad) || (csw && fy > oneminustestrad)))
+                if (!CellTraversal.collisionLine(map, x, y, nodes[i].x, nodes[i].y, fixedrad))
                 {
-                    //fx = setrad;
-                    xmove = 1;
-                }
-                //clamp from east
-                else if (fx > oneminustestrad && (ce || (cne && fy < testrad) || (cse && fy > oneminustestrad)))
-                {
-                    //fx = oneminusrad;
-                    if (xmove != 0)
-                        xmove = 2;
-                    else
-                        xmove = -1;
-                }
-                if (xmove == 2)
-                {
-                    return false;
-                }
-                else if (xmove == 1)
-                {
-                    fx = setrad;
-                }
-                else if (xmove == -1)
-                {
-                    fx = oneminusrad;
-                }
-            }
-        }
-        else if (ymove == 2)
-        {
-            if (xmove == 1)
-            {
-                fx = setrad;
-            }
-            else if (xmove == -1)
-            {
-                fx = oneminusrad;
-            }
-            if (xmove != 0)
-            {
-                //clamp from north
-                if (fy < testrad && (cn || (cnw && fx < testrad) || (cne && fx > oneminustestrad)))
-                {
-                    //fy = setrad;
-                    ymove = 1;
-                }
-                //clamp from south
-                if (fy > oneminustestrad && (cs || (csw && fx < testrad) || (cse && fx > oneminustestrad)))
-                {
-                    //fy = oneminusrad;
-                    if (ymove != 0)
-                        ymove = 2;
-                    else
-                        ymove = -1;
-                }
-                if (ymove == 2)
-                {
-                    return false;
-                }
-                else if (ymove == 1)
-                {
-                    fy = setrad;
-                }
-                else if (ymove == -1)
-                {
-                    fy = oneminusrad;
+                    Node[] result = new Node[nodes.length - i + 1];
+                    result[0] = new Node(x, y);
+                    System.arraycopy(nodes, i, result, 1, nodes.length - i);
+                    return result;
                 }
             }
+            return null;
         }
-        else
+        finally
         {
-            if (xmove == 1)
-            {
-                fx = setrad;
-            }
-            else if (xmove == -1)
-            {
-                fx = oneminusrad;
-            }
-            if (ymove == 1)
-            {
-                fy = setrad;
-            }
-            else
-            {
-                fy = oneminusrad;
-            }
+            lock.unlock();
         }
-        
-        dest.x = fx;
-        dest.y = fy;
-        
-        return true;
-    }*/
+    }
     
-    private boolean collisionBoxUnscaled(double x1, double y1, double x2, double y2)
+    @Override
+    public Node[] findPath(double startX, double startY, double goalX, double goalY)
     {
-        int ix1 = MathUtil.floor(x1);
-        int iy1 = MathUtil.floor(y1);
-        int ix2 = MathUtil.floor(x2);
-        int iy2 = MathUtil.floor(y2);
-        
-        if (ix1 < 0 || iy1 < 0 || ix2 >= map.width || iy2 >= map.height)
+        Lock lock = map.getLock().readLock();
+        lock.lock();
+        try
         {
-            return true;
-        }
-        
-        for (int x = ix1; x <= ix2; x++)
-        {
-            for (int y = iy1; y <= iy2; y++)
+            if (!startSearchLocked(startX, startY, goalX, goalY))
             {
-                if (!map.isWalkableFast(x, y)) return true;
+                resumeSearchLocked(Integer.MAX_VALUE);
             }
+            return result;
+        }
+        finally
+        {
+            lock.unlock();
         }
-        return false;
     }
     
-    public boolean collisionBox(double x1, double y1, double x2, double y2)
+    /**
+     * Starts a search that is continued by {@link #resumeSearch}, so that a
+     * long search can be spread over several ticks. Any search that is still
+     * running is abandoned. The search is finished right away if the start
+     * or the goal is blocked, or no graph search is needed.
+     * @param startX The x coordinate of the start.
+     * @param startY The y coordinate of the start.
+     * @param goalX The x coordinate of the goal.
+     * @param goalY The y coordinate of the goal.
+     * @return True if the search is already finished, see {@link #getResult}.
+     */
+    public boolean startSearch(double startX, double startY, double goalX, double goalY)
     {
-        double invscale = 1. / map.scale;
-        int ix1 = MathUtil.floor(x1 * invscale);
-        int iy1 = MathUtil.floor(y1 * invscale);
-        int ix2 = MathUtil.floor(x2 * invscale);
-        int iy2 = MathUtil.floor(y2 * invscale);
-        
-        if (ix1 < 0 || iy1 < 0 || ix2 >= map.width || iy2 >= map.height)
+        Lock lock = map.getLock().readLock();
+        lock.lock();
+        try
         {
-            return true;
+            return startSearchLocked(startX, startY, goalX, goalY);
         }
-        
-        for (int x = ix1; x <= ix2; x++)
+        finally
         {
-            for (int y = iy1; y <= iy2; y++)
-            {
-                if (!map.isWalkableFast(x, y)) return true;
-            }
+            lock.unlock();
         }
-        return false;
     }
     
-    public boolean collisionLine(double x1, double y1, double x2, double y2, double radius)
+    /**
+     * Continues the search started by {@link #startSearch}. If cells of the
+     * map have changed since the search was started, it starts over.
+     * @param maxExpanded The maximum number of nodes to expand before returning.
+     * @return True if the search is finished, see {@link #getResult}.
+     */
+    public boolean resumeSearch(int maxExpanded)
     {
-        ///can probably be optimized using quadtrees
-        
-        if (radius == 0)
-        {
-            return collisionLine(x1, y1, x2, y1);
-        }
-        
-        double scw = map.getScaledWidth(), sch = map.getScaledHeight();
-        if (x1 < 0 || y1 < 0 || x1 >= scw || y1 >= sch
-         || x2 < 0 || y2 < 0 || x2 >= scw || y2 >= sch)
-        {
-            return true;
-        }
-        
-        radius = Math.abs(radius);
-        
-        double dx = x2 - x1;
-        double dy = y2 - y1;
-        
-        double l1x1, l1y1, l1x2, l1y2; //first line
-        double l2x1, l2y1, l2x2, l2y2; //middle line
-        double l3x1, l3y1, l3x2, l3y2; //last line
-        
-        //if slope is negative (towards top right)
-        if (dx * dy < 0)
+        Lock lock = map.getLock().readLock();
+        lock.lock();
+        try
         {
-            //top left points
-            l1x1 = x1 - radius;
-            l1y1 = y1 - radius;
-            l1x2 = x2 - radius;
-            l1y2 = y2 - radius;
-            
-            //bottom right points
-            l3x1 = x1 + radius;
-            l3y1 = y1 + radius;
-            l3x2 = x2 + radius;
-            l3y2 = y2 + radius;
-            
-            if (dx > 0) //left to right
-            {
-                //bottom left start, top right end
-                l2x1 = x1 - radius;
-                l2y1 = y1 + radius;
-                l2x2 = x2 + radius;
-                l2y2 = y2 - radius;
-            }
-            else //right to left
-            {
-                //top right start, bottom left end
-                l2x1 = x1 + radius;
-                l2y1 = y1 - radius;
-                l2x2 = x2 - radius;
-                l2y2 = y2 + radius;
-            }
-        }
-        else //slope is positive (towards bottom right)
-        {
-            //top right points
-            l1x1 = x1 + radius;
-            l1y1 = y1 - radius;
-            l1x2 = x2 + radius;
-            l1y2 = y2 - radius;
-            
-            //bottom left points
-            l3x1 = x1 - radius;
-            l3y1 = y1 + radius;
-            l3x2 = x2 - radius;
-            l3y2 = y2 + radius;
-            
-            if (dx > 0) //left to right
+            if (!searching)
             {
-                //top left start, bottom right end
-                l2x1 = x1 - radius;
-                l2y1 = y1 - radius;
-                l2x2 = x2 + radius;
-                l2y2 = y2 + radius;
+                return true;
             }
-            else //right to left
+            if (graphVersion != map.getVersion() && startSearchLocked(startX, startY, goalX, goalY))
             {
-                //bottom right start, top left end
-                l2x1 = x1 + radius;
-                l2y1 = y1 + radius;
-                l2x2 = x2 - radius;
-                l2y2 = y2 - radius;
+                return true;
             }
+            return resumeSearchLocked(maxExpanded);
         }
-        
-        int numLines = Math.max((int)Math.ceil(2 * radius / map.scale) + 1, 3);
-        if (numLines % 2 == 0)
+        finally
         {
-            //force numLines to be odd
-            numLines++;
+            lock.unlock();
         }
-        
-        double df = 1. / (numLines-1);
-        for (int i = 0; i < numLines; i++)
+    }
+    
+    /**
+     * @return True if a search has been started and hasn't finished or been cancelled yet.
+     */
+    public boolean isSearching()
+    {
+        return searching;
+    }
+    
+    /**
+     * Abandons the running search, if there is one.
+     */
+    public void cancelSearch()
+    {
+        if (searching)
         {
-            double f = df * i;
-            double lx1 = MathUtil.lerp3(l1x1, l2x1, l3x1, f);
-            double ly1 = MathUtil.lerp3(l1y1, l2y1, l3y1, f);
-            double lx2 = MathUtil.lerp3(l1x2, l2x2, l3x2, f);
-            double ly2 = MathUtil.lerp3(l1y2, l2y2, l3y2, f);
-            
-            if (collisionLine(lx1, ly1, lx2, ly2)) return true;
+            searching = false;
+            frontier.clear();
         }
-        
-        return false;
     }
     
-    public boolean collisionLine(double x1, double y1, double x2, double y2)
+    /**
+     * @return The path found by the last finished search, or null if there is none.
+     */
+    public Node[] getResult()
     {
-        return CellTraversal.collisionLine(map, x1, y1, x2, y2);
+        return result;
     }
     
-    private final PriorityQueue<Node> frontier = new PriorityQueue<>();
-    private final THashSet<Node> frontierSet = new THashSet<>();
+    /**
+     * Returns the path to the node closest to the goal (in a straight line)
+     * among the nodes the running search has expanded so far, which an actor
+     * can start to follow until the search is finished. It is always part of
+     * a path the search could still return, but not necessarily of the one it
+     * finally returns.
+     * @return The path from the start, or null if no node other than the start has been expanded yet.
+     */
+    public Node[] getPartialPath()
+    {
+        if (!searching || closestNode == startIndex)
+        {
+            return null;
+        }
+        return tracePath(closestNode, new Node[pathNodes[closestNode]]);
+    }
     
-    public Node[] findPath(double startX, double startY, double goalX, double goalY)
+    private boolean startSearchLocked(double startX, double startY, double goalX, double goalY)
     {
-        int raycasts = 1;
         long startTime = System.nanoTime();
+        if (graphVersion != map.getVersion())
+        {
+            updateGraph();
+        }
+        
+        searching = false;
+        result = null;
         
         double fixedrad = hitRadius - .00001;
-        if (
-                collisionBox(startX - fixedrad, startY - fixedrad, startX + fixedrad, startY + fixedrad) ||
-                collisionBox(goalX - fixedrad, goalY - fixedrad, goalX + fixedrad, goalY + fixedrad))
+        if (clearance.collisionBox(startX, startY, fixedrad) || clearance.collisionBox(goalX, goalY, fixedrad))
         {
             //start or goal is blocked
-            return null;
+            stats.record(false, 0, 0, System.nanoTime() - startTime);
+            return true;
         }
         
-        Graph g = graph;
-        Node start = new Node(startX, startY, g.size());
-        Node goal = new Node(goalX, goalY, 0);
-        
+        raycasts = 1;
         if (!collisionLine(startX, startY, goalX, goalY, fixedrad))
         {
             //goal can be directly reached from start
-            return new Node[] {start, goal};
+            result = new Node[] {new Node(startX, startY), new Node(goalX, goalY)};
+            stats.record(true, 0, raycasts, System.nanoTime() - startTime);
+            return true;
         }
         
-        for (int i = 0; i < g.size(); i++)
+        searchVersion = map.getVersion();
+        if (useCache)
         {
-            Node n = g.get(i);
-            
-            start.addNeighbor(n, MathUtil.dist(startX, startY, n.x, n.y));
-            
-            //init node
-            n.visited = false;
-            n.cost = Double.POSITIVE_INFINITY;
-            n.costIfStartBlocked = Double.POSITIVE_INFINITY;
-            n.estCostIfStartBlocked = Double.POSITIVE_INFINITY;
-            n.checkedVisibilityFromStart = false;
-            n.parentIfStartBlocked = null;
+            result = findCachedPath(startX, startY, goalX, goalY);
+            if (result != null)
+            {
+                stats.record(true, 0, raycasts, System.nanoTime() - startTime);
+                return true;
+            }
+        }
+        
+        int s = startIndex, t = goalIndex;
+        this.startX = startX;
+        this.startY = startY;
+        this.goalX = goalX;
+        this.goalY = goalY;
+        
+        //invalidate the state of all nodes from the previous search
+        nextGeneration();
+        
+        if (useLandmarks && !computeGoalBounds())
+        {
+            //the last node of any path has to see the goal
+            stats.record(false, 0, raycasts, System.nanoTime() - startTime);
+            return true;
+        }
+        
+        //the start is only connected to the nodes it can see
+        numVisibleFromStart = findVisible(startX, startY);
+        if (numVisibleFromStart == 0)
+        {
+            stats.record(false, 0, raycasts, System.nanoTime() - startTime);
+            return true;
         }
         
         //init start and goal nodes
-        //start.cost = 0;
-        start.pathNodes = 1;
-        goal.cost = Double.POSITIVE_INFINITY;
-        goal.costIfStartBlocked = Double.POSITIVE_INFINITY;
-        goal.estCostIfStartBlocked = Double.POSITIVE_INFINITY;
+        touch(s);
+        cost[s] = 0;
+        estCost[s] = 0;
+        pathNodes[s] = 1;
+        touch(t);
         
         //init open set
         frontier.clear();
-        frontier.add(start);
-        frontierSet.clear();
-        frontierSet.add(start);
+        frontier.offer(s, 0);
+        
+        searching = true;
+        expanded = 0;
+        closestNode = s;
+        closestDist = Double.POSITIVE_INFINITY;
+        searchTime = System.nanoTime() - startTime;
+        return false;
+    }
+    
+    private boolean resumeSearchLocked(int maxExpanded)
+    {
+        long startTime = System.nanoTime();
+        Graph g = graph;
+        int s = startIndex, t = goalIndex;
+        int limit = expanded + maxExpanded < 0 ? Integer.MAX_VALUE : expanded + maxExpanded;
         
         //return value, null if no path was found
-        Node[] result = null;
+        Node[] path = null;
         
         while (!frontier.isEmpty())
         {
-            Node current = frontier.poll();
-            frontierSet.remove(current);
+            if (frontier.peekKey() == Double.POSITIVE_INFINITY)
+            {
+                //the heuristic has proven that the goal can't be reached from any remaining node
+                break;
+            }
+            if (expanded >= limit && frontier.peek() != t)
+            {
+                //out of expansions for now
+                searchTime += System.nanoTime() - startTime;
+                return false;
+            }
+            int c = frontier.poll();
             
-            if (current.visited)
+            if (visited[c])
             {
                 continue;
             }
             
-            if (current == goal)
+            double cx = getX(c), cy = getY(c);
+            
+            if (c == t)
             {
                 //goal found, construct the path
-                result = new Node[goal.pathNodes];
-                
-                Node n = goal;
-                int i = result.length - 1;
-                result[i] = goal;
-                
-                while ((n = n.parent) != null)
-                {
-                    i--;
-                    result[i] = n;
-                }
-                if (i != 0) throw new Error("Pathfinder error, path nodes != goal.pathNodes (goal.pathNodes=" + goal.pathNodes + ", i=" + i + ")");
+                path = tracePath(t, new Node[pathNodes[t]]);
                 break;
             }
-            else if (current.parent == start && !current.checkedVisibilityFromStart)
+            
+            visited[c] = true;
+            expanded++;
+            
+            //calculate goal cost and stuff, the start is already known not to see the goal
+            if (c != s)
             {
-                current.checkedVisibilityFromStart = true;
+                double goalDist = MathUtil.dist(cx, cy, goalX, goalY);
+                if (goalDist < closestDist)
+                {
+                    closestNode = c;
+                    closestDist = goalDist;
+                }
                 
-                raycasts++;
-                if (collisionLine(start.x, start.y, current.x, current.y, fixedrad))
+                if (canSeeGoal(c))
                 {
-                    if (current.parentIfStartBlocked == null)
+                    double goalCost = cost[c] + goalDist;
+                    if (goalCost < cost[t])
                     {
-                        current.cost = Double.POSITIVE_INFINITY;
-                        current.estCost = Double.POSITIVE_INFINITY;
+                        cost[t] = goalCost;
+                        estCost[t] = goalCost;
+                        parent[t] = c;
+                        pathNodes[t] = pathNodes[c] + 1;
+                        frontier.offer(t, goalCost);
                     }
-                    else
-                    {
-                        current.cost = current.costIfStartBlocked;
-                        current.costIfStartBlocked = Double.POSITIVE_INFINITY;
-                        current.estCost = current.estCostIfStartBlocked;
-                        current.estCostIfStartBlocked = Double.POSITIVE_INFINITY;
-                        current.parent = current.parentIfStartBlocked;
-                        current.pathNodes = current.pathNodesIfStartBlocked;
-                        frontier.add(current);
-                        frontierSet.add(current);
-                    }
-                    continue;
                 }
             }
             
-            current.visited = true;
-            
-            //calculate goal cost and stuff
-            raycasts++;
-            if (!collisionLine(current.x, current.y, goal.x, goal.y, fixedrad))
+            int firstEdge, endEdge;
+            if (c == s)
             {
-                double goalCost = current.cost + MathUtil.dist(current.x, current.y, goal.x, goal.y);
-                if (goalCost < goal.cost)
-                {
-                    goal.cost = goalCost;
-                    goal.estCost = goalCost;
-                    goal.parent = current;
-                    goal.pathNodes = current.pathNodes + 1;
-                    if (!frontierSet.add(goal))
-                    {
-                        frontier.remove(goal);
-                    }
-                    frontier.add(goal);
-                    /*if (!frontier.contains(goal))
-                    {
-                        frontier.add(goal);
-                    }*/
-                }
+                firstEdge = 0;
+                endEdge = numVisibleFromStart;
+            }
+            else
+            {
+                firstEdge = g.firstEdge[c];
+                endEdge = g.firstEdge[c + 1];
             }
             
-            int numNeigbors = current.numNeighbors();
-            for (int i = 0; i < numNeigbors; i++)
+            for (int e = firstEdge; e < endEdge; e++)
             {
-                Node next = current.getNeighbor(i);
+                int next;
+                double edgeCost;
+                if (c == s)
+                {
+                    next = visibleNodes[e];
+                    edgeCost = MathUtil.dist(startX, startY, g.x[next], g.y[next]);
+                }
+                else
+                {
+                    next = g.edgeTarget[e];
+                    edgeCost = g.edgeCost[e];
+                }
+                touch(next);
                 
-                if (!next.visited)
+                if (!visited[next])
                 {
-                    double newCost = current.cost + current.getNeighborCost(i);
-                    
-                    if (next.parent == start && !next.checkedVisibilityFromStart)
+                    double newCost = cost[c] + edgeCost;
+                    if (newCost < cost[next])
                     {
-                        if (newCost < next.costIfStartBlocked)
-                        {
-                            next.costIfStartBlocked = newCost;
-                            next.estCostIfStartBlocked = newCost + heuristic(next, goal);
-                            next.parentIfStartBlocked = current;
-                            next.pathNodesIfStartBlocked = current.pathNodes + 1;
-                            if (!frontierSet.add(next))
-                            {
-                                frontier.remove(next);
-                            }
-                            frontier.add(next);
-                            /*if (!frontier.contains(next))
-                            {
-                                frontier.add(next);
-                            }*/
-                        }
-                        /*next.checkedVisibilityFromStart = true;
-                        if (collisionLine(start.x, start.y, next.x, next.y, fixedrad))
-                        {
-                            next.cost = Double.POSITIVE_INFINITY;
-                            next.parent = null;
-                        }*/
-                    }
-                    else if (newCost < next.cost)
-                    {
-                        next.cost = newCost;
-                        next.estCost = newCost + heuristic(next, goal);
-                        next.parent = current;
-                        next.pathNodes = current.pathNodes + 1;
-                        if (!frontierSet.add(next))
-                        {
-                            frontier.remove(next);
-                        }
-                        frontier.add(next);
-                        /*if (!frontier.contains(next))
-                        {
-                            frontier.add(next);
-                        }*/
+                        cost[next] = newCost;
+                        estCost[next] = newCost + heuristic(next);
+                        parent[next] = c;
+                        pathNodes[next] = pathNodes[c] + 1;
+                        frontier.offer(next, estCost[next]);
                     }
                 }
             }
@@ -930,32 +788,184 @@ public final class Pathfinder
         
         //cleanup
         frontier.clear();
-        frontierSet.clear();
+        searching = false;
+        result = path;
+        
+        if (useCache && path != null)
+        {
+            cache.put(hitRadius, path, searchVersion);
+        }
+        
+        searchTime += System.nanoTime() - startTime;
+        stats.record(path != null, expanded, raycasts, searchTime);
+        Logger.log("Pathfinding time: " + SharedUtil.getTimeString(searchTime) + ", expanded nodes: " + expanded + ", raycasts: " + raycasts);
+        
+        return true;
+    }
+    
+    //fills the array with the path from the start to the node, which must have exactly as many nodes
+    private Node[] tracePath(int node, Node[] path)
+    {
+        int n = node;
+        int i = path.length - 1;
+        path[i] = new Node(getX(n), getY(n));
+        
+        while ((n = parent[n]) != -1)
+        {
+            i--;
+            path[i] = new Node(getX(n), getY(n));
+        }
+        if (i != 0) throw new Error("Pathfinder error, path nodes != pathNodes (pathNodes=" + pathNodes[node] + ", i=" + i + ")");
+        return path;
+    }
+    
+    //a cached path between the same squares of cells with new ends, or null if there is none or the ends can't be connected to it
+    private Node[] findCachedPath(double startX, double startY, double goalX, double goalY)
+    {
+        float[] points = cache.get(hitRadius, startX, startY, goalX, goalY);
+        if (points == null)
+        {
+            return null;
+        }
         
-        long delta = System.nanoTime() - startTime;
-        Logger.log("Pathfinding time: " + SharedUtil.getTimeString(delta) + ", raycasts: " + raycasts);
+        double fixedrad = hitRadius - .00001;
+        int n = points.length / 2;
+        raycasts++;
+        boolean valid = !collisionLine(startX, startY, points[0], points[1], fixedrad);
+        if (valid)
+        {
+            raycasts++;
+            valid = !collisionLine(points[2 * n - 2], points[2 * n - 1], goalX, goalY, fixedrad);
+        }
+        cache.recordReuse(valid);
+        if (!valid)
+        {
+            return null;
+        }
         
+        Node[] result = new Node[n + 2];
+        result[0] = new Node(startX, startY);
+        for (int i = 0; i < n; i++)
+        {
+            result[i + 1] = new Node(points[2 * i], points[2 * i + 1]);
+        }
+        result[n + 1] = new Node(goalX, goalY);
         return result;
     }
     
-    private double heuristic(Node first, Node second)
+    //memoized line test from a graph node to the goal, false without a test if the line isn't tangent in the taut graph
+    private boolean canSeeGoal(int n)
     {
-        return MathUtil.dist(first.x, first.y, second.x, second.y);
+        if (goalVisibleStamp[n] != generation)
+        {
+            goalVisibleStamp[n] = generation;
+            if (graph.isTaut() && !graph.isTangent(n, goalX, goalY))
+            {
+                //no shortest path can bend at the node going to the goal
+                goalVisible[n] = false;
+            }
+            else
+            {
+                raycasts++;
+                goalVisible[n] = !collisionLine(graph.x[n], graph.y[n], goalX, goalY, hitRadius - .00001);
+            }
+        }
+        return goalVisible[n];
     }
     
-    /*private double floydWarshallHeuristic(Node first, Node goal, Node closestToGoal, double minGoalDist)
+    /*
+     * Finds the per-goal bounds of the landmark heuristic, see
+     * Landmarks.lowerBound. Only nodes that can see the goal can be the last
+     * node of a path, and with any larger set of nodes the bounds are no
+     * tighter than the straight line distance, so all of them are found.
+     * This also decides the goal test of every node that is expanded later.
+     * Returns false if no node can see the goal.
+     */
+    private boolean computeGoalBounds()
     {
-        double floyd = floydWarshall.getDistance(first, closestToGoal) - minGoalDist;
-        double floydSqr = floyd * floyd;
+        Graph g = graph;
+        int size = g.size();
+        Landmarks lm = landmarks;
+        int count = lm.count();
+        double[] bounds = goalBounds;
+        Arrays.fill(bounds, Double.POSITIVE_INFINITY);
         
-        double distSqr = MathUtil.distSqr(first.x, first.y, goal.x, goal.y);
-        if (distSqr > floydSqr)
+        int visible = findVisible(goalX, goalY);
+        for (int n = 0; n < size; n++)
+        {
+            goalVisibleStamp[n] = generation;
+            goalVisible[n] = false;
+        }
+        for (int k = 0; k < visible; k++)
+        {
+            int n = visibleNodes[k];
+            goalVisible[n] = true;
+            
+            double goalDist = MathUtil.dist(g.x[n], g.y[n], goalX, goalY);
+            for (int i = 0; i < count; i++)
+            {
+                double d = lm.getDistance(i, n);
+                if (d != Double.POSITIVE_INFINITY)
+                {
+                    bounds[2 * i] = Math.min(bounds[2 * i], d + goalDist);
+                    bounds[2 * i + 1] = Math.min(bounds[2 * i + 1], goalDist - d);
+                }
+            }
+        }
+        return visible > 0;
+    }
+    
+    //finds the nodes that can see a point with the sweep, and counts its line tests
+    private int findVisible(double x, double y)
+    {
+        int before = sweep.getRaycasts();
+        int count = sweep.findVisible(graph, x, y, visibleNodes);
+        raycasts += sweep.getRaycasts() - before;
+        return count;
+    }
+    
+    private void nextGeneration()
+    {
+        generation++;
+        if (generation == 0)
         {
-            return Math.sqrt(distSqr);
+            //the counter has wrapped around, make sure no old stamps are mistaken for current ones
+            Arrays.fill(stamp, 0);
+            Arrays.fill(goalVisibleStamp, 0);
+            generation = 1;
         }
-        else
+    }
+    
+    //resets the search state of a node if it hasn't been used yet in the current search
+    private void touch(int n)
+    {
+        if (stamp[n] != generation)
         {
-            return floyd;
+            stamp[n] = generation;
+            visited[n] = false;
+            cost[n] = Double.POSITIVE_INFINITY;
+            estCost[n] = Double.POSITIVE_INFINITY;
+            parent[n] = -1;
         }
-    }*/
+    }
+    
+    private double getX(int n)
+    {
+        return n < startIndex ? graph.x[n] : (n == startIndex ? startX : goalX);
+    }
+    
+    private double getY(int n)
+    {
+        return n < startIndex ? graph.y[n] : (n == startIndex ? startY : goalY);
+    }
+    
+    private double heuristic(int n)
+    {
+        double h = MathUtil.dist(graph.x[n], graph.y[n], goalX, goalY);
+        if (useLandmarks)
+        {
+            h = Math.max(h, landmarks.lowerBound(n, goalBounds));
+        }
+        return h;
+    }
 }
@@ -0,0 +1,320 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.util.Arrays;
+import onlinegame.shared.game.CellBitmap;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * Finds the graph nodes that can be seen from an arbitrary point, e.g. the
+ * start or the goal of a search.
+ * <br />
+ * The blocked cells around the point are swept into a table of shadows by
+ * direction: for each narrow range of directions, the distance beyond which
+ * every line from the point in that range has gone through a blocked cell.
+ * Nodes in a shadow, nodes whose own blocked cell is clearly in the way (see
+ * {@link Graph#inBlockedQuadrant}) and, in a taut graph, nodes where the line
+ * isn't tangent are rejected without a line test. Only the remaining nodes
+ * are tested, so the result is the same as if every node had been tested.
+ * <br />
+ * The nodes are kept in square buckets of {@link #BUCKET_SIZE} cells, and a
+ * bucket whose whole range of directions is in shadow closer than its
+ * nearest node is skipped without looking at its nodes, so nodes behind the
+ * walls around the point cost nothing.
+ * <br />
+ * Not thread safe, each {@link Pathfinder} has its own.
+ *
+ * @author Alfred
+ */
+final class VisibilitySweep
+{
+    //number of direction ranges, the directions are measured with a pseudo-angle from 0 to 4
+    private static final int BINS = 512;
+    
+    //distance in cells around the point where the blocked cells cast shadows
+    private static final int RANGE = 16;
+    
+    //width and height of the node buckets, in cells
+    private static final int BUCKET_SIZE = 16;
+    
+    //each entry of the coarse shadow table the buckets are tested against covers 2^GROUP_BITS direction ranges
+    private static final int GROUP_BITS = 3;
+    
+    //the cells are shrunk by this much, so that a shadow never covers a line that the line test would let through
+    private static final double MARGIN = .0001;
+    
+    private final GameMap map;
+    private final CellBitmap blocked;
+    private final double rad;
+    
+    //squared distance from the point to the start of the shadow, for each direction range
+    private final double[] shadow = new double[BINS];
+    //the farthest shadow of each group of direction ranges
+    private final double[] groupShadow = new double[BINS >> GROUP_BITS];
+    
+    //the node coordinates of the graph the buckets were made for, which the taut graph shares with the full one
+    private float[] bucketedX = null, bucketedY = null;
+    //non-empty buckets, the nodes of bucket b are bucketNodes[bucketFirst[b]] until bucketNodes[bucketFirst[b+1]]
+    private int[] bucketFirst, bucketNodes;
+    //the bounding box of the nodes of each bucket
+    private float[] bucketX1, bucketY1, bucketX2, bucketY2;
+    
+    private int raycasts = 0;
+    
+    /**
+     * @param map The map.
+     * @param hitRadius The radius of the actors.
+     */
+    VisibilitySweep(GameMap map, double hitRadius)
+    {
+        this.map = map;
+        blocked = map.getBlockedBitmap();
+        rad = hitRadius - .00001;
+    }
+    
+    /**
+     * Finds the nodes that can be reached in a straight line from a point.
+     * The point itself must not be blocked.
+     * @param g The graph.
+     * @param px The x coordinate of the point.
+     * @param py The y coordinate of the point.
+     * @param result The array to store the visible nodes in, at least as long as the number of nodes.
+     * @return The number of visible nodes.
+     */
+    int findVisible(Graph g, double px, double py, int[] result)
+    {
+        castShadows(px, py);
+        if (g.x != bucketedX || g.y != bucketedY)
+        {
+            makeBuckets(g);
+        }
+        
+        boolean taut = g.isTaut();
+        int count = 0;
+        for (int b = 0; b < bucketFirst.length - 1; b++)
+        {
+            if (isInShadow(b, px, py))
+            {
+                continue;
+            }
+            
+            for (int k = bucketFirst[b]; k < bucketFirst[b + 1]; k++)
+            {
+                int n = bucketNodes[k];
+                double dx = g.x[n] - px, dy = g.y[n] - py;
+                if (isBehindCell(g.corner[n], -dx, -dy)
+                        || (taut && !Graph.isTangentLine(g.corner[n], dx, dy))
+                        || dx * dx + dy * dy > shadow[bin(dx, dy)])
+                {
+                    continue;
+                }
+                
+                raycasts++;
+                if (!CellTraversal.collisionLine(map, px, py, g.x[n], g.y[n], rad))
+                {
+                    result[count++] = n;
+                }
+            }
+        }
+        
+        //in order of the nodes, like a loop over all of them would find them
+        Arrays.sort(result, 0, count);
+        return count;
+    }
+    
+    private void makeBuckets(Graph g)
+    {
+        int size = g.size();
+        double bucketWidth = BUCKET_SIZE * map.scale;
+        int bucketsX = (map.width + BUCKET_SIZE - 1) / BUCKET_SIZE;
+        int bucketsY = (map.height + BUCKET_SIZE - 1) / BUCKET_SIZE;
+        
+        //counting sort of the nodes by bucket
+        int[] bucketOf = new int[size];
+        int[] first = new int[bucketsX * bucketsY + 1];
+        for (int n = 0; n < size; n++)
+        {
+            int bx = Math.min(Math.max((int)Math.floor(g.x[n] / bucketWidth), 0), bucketsX - 1);
+            int by = Math.min(Math.max((int)Math.floor(g.y[n] / bucketWidth), 0), bucketsY - 1);
+            bucketOf[n] = bx + by * bucketsX;
+            first[bucketOf[n] + 1]++;
+        }
+        
+        //leave out the empty buckets
+        int numBuckets = 0;
+        int[] index = new int[bucketsX * bucketsY];
+        for (int b = 0; b < bucketsX * bucketsY; b++)
+        {
+            if (first[b + 1] > 0)
+            {
+                index[b] = numBuckets++;
+            }
+        }
+        bucketFirst = new int[numBuckets + 1];
+        for (int b = 0; b < bucketsX * bucketsY; b++)
+        {
+            if (first[b + 1] > 0)
+            {
+                bucketFirst[index[b] + 1] = first[b + 1];
+            }
+        }
+        for (int b = 0; b < numBuckets; b++)
+        {
+            bucketFirst[b + 1] += bucketFirst[b];
+        }
+        
+        bucketNodes = new int[size];
+        bucketX1 = new float[numBuckets];
+        bucketY1 = new float[numBuckets];
+        bucketX2 = new float[numBuckets];
+        bucketY2 = new float[numBuckets];
+        Arrays.fill(bucketX1, Float.POSITIVE_INFINITY);
+        Arrays.fill(bucketY1, Float.POSITIVE_INFINITY);
+        Arrays.fill(bucketX2, Float.NEGATIVE_INFINITY);
+        Arrays.fill(bucketY2, Float.NEGATIVE_INFINITY);
+        int[] next = Arrays.copyOf(bucketFirst, numBuckets);
+        for (int n = 0; n < size; n++)
+        {
+            int b = index[bucketOf[n]];
+            bucketNodes[next[b]++] = n;
+            bucketX1[b] = Math.min(bucketX1[b], g.x[n]);
+            bucketY1[b] = Math.min(bucketY1[b], g.y[n]);
+            bucketX2[b] = Math.max(bucketX2[b], g.x[n]);
+            bucketY2[b] = Math.max(bucketY2[b], g.y[n]);
+        }
+        
+        bucketedX = g.x;
+        bucketedY = g.y;
+    }
+    
+    //true if every node of the bucket is farther away than the shadow in its direction
+    private boolean isInShadow(int b, double px, double py)
+    {
+        double x1 = bucketX1[b] - px, y1 = bucketY1[b] - py;
+        double x2 = bucketX2[b] - px, y2 = bucketY2[b] - py;
+        if (x1 <= 0 && x2 >= 0 && y1 <= 0 && y2 >= 0)
+        {
+            //the point is inside the bucket, which can be seen in every direction
+            return false;
+        }
+        
+        double nx = Math.max(Math.max(x1, -x2), 0), ny = Math.max(Math.max(y1, -y2), 0);
+        double near = nx * nx + ny * ny;
+        
+        //the directions of the corners relative to the one of the center, which are less than half a turn apart
+        double center = pseudoAngle((x1 + x2) / 2, (y1 + y2) / 2);
+        double lo = 0, hi = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            double a = pseudoAngle((i & 1) == 0 ? x1 : x2, (i & 2) == 0 ? y1 : y2) - center;
+            if (a > 2) a -= 4;
+            else if (a < -2) a += 4;
+            lo = Math.min(lo, a);
+            hi = Math.max(hi, a);
+        }
+        
+        //one more range on each side, so that rounding errors can't leave out the range of a node
+        int first = ((int)Math.floor((center + lo) * (BINS / 4)) - 1) >> GROUP_BITS;
+        int last = ((int)Math.floor((center + hi) * (BINS / 4)) + 1) >> GROUP_BITS;
+        for (int r = first; r <= last; r++)
+        {
+            if (groupShadow[r & (groupShadow.length - 1)] >= near)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return The number of line tests done so far.
+     */
+    int getRaycasts()
+    {
+        return raycasts;
+    }
+    
+    //like Graph.inBlockedQuadrant, but points almost in line with an edge of the cell can see past it within the margin of the line test
+    private static boolean isBehindCell(int corner, double dx, double dy)
+    {
+        double ax = Math.abs(dx), ay = Math.abs(dy);
+        return Math.min(ax, ay) > .01 * Math.max(ax, ay) + .001 && Graph.inBlockedQuadrant(corner, dx, dy);
+    }
+    
+    private void castShadows(double px, double py)
+    {
+        Arrays.fill(shadow, Double.POSITIVE_INFINITY);
+        
+        double s = map.scale;
+        double m = rad - MARGIN;
+        int pcx = (int)Math.floor(px / s), pcy = (int)Math.floor(py / s);
+        int x1 = Math.max(pcx - RANGE, 0), x2 = Math.min(pcx + RANGE, map.width - 1);
+        int y1 = Math.max(pcy - RANGE, 0), y2 = Math.min(pcy + RANGE, map.height - 1);
+        for (int y = y1; y <= y2; y++)
+        {
+            for (int x = x1; x <= x2; x++)
+            {
+                //the cells inside a wall are hidden behind the ones on its edge
+                if (blocked.get(x, y) && (isFree(x - 1, y) || isFree(x + 1, y) || isFree(x, y - 1) || isFree(x, y + 1)))
+                {
+                    castShadow(px, py, x * s - m, y * s - m, (x + 1) * s + m, (y + 1) * s + m);
+                }
+            }
+        }
+        
+        for (int i = 0; i < groupShadow.length; i++)
+        {
+            double d = 0;
+            for (int j = i << GROUP_BITS; j < (i + 1) << GROUP_BITS; j++)
+            {
+                d = Math.max(d, shadow[j]);
+            }
+            groupShadow[i] = d;
+        }
+    }
+    
+    private boolean isFree(int x, int y)
+    {
+        return x >= 0 && y >= 0 && x < map.width && y < map.height && !blocked.get(x, y);
+    }
+    
+    //a line in a direction strictly between the outermost corners of the box goes through the box before it gets farther than its farthest corner
+    private void castShadow(double px, double py, double x1, double y1, double x2, double y2)
+    {
+        double center = pseudoAngle((x1 + x2) / 2 - px, (y1 + y2) / 2 - py);
+        double lo = 0, hi = 0, far = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            double dx = ((i & 1) == 0 ? x1 : x2) - px;
+            double dy = ((i & 2) == 0 ? y1 : y2) - py;
+            
+            //relative to the center, which is less than half a turn away from every corner
+            double a = pseudoAngle(dx, dy) - center;
+            if (a > 2) a -= 4;
+            else if (a < -2) a += 4;
+            lo = Math.min(lo, a);
+            hi = Math.max(hi, a);
+            far = Math.max(far, dx * dx + dy * dy);
+        }
+        
+        //only the ranges that lie entirely inside the span of the box
+        int first = (int)Math.floor((center + lo) * (BINS / 4)) + 1;
+        int last = (int)Math.ceil((center + hi) * (BINS / 4)) - 2;
+        for (int b = first; b <= last; b++)
+        {
+            int i = b & (BINS - 1);
+            shadow[i] = Math.min(shadow[i], far);
+        }
+    }
+    
+    private static int bin(double dx, double dy)
+    {
+        return Math.min((int)(pseudoAngle(dx, dy) * (BINS / 4)), BINS - 1);
+    }
+    
+    //increases monotonically with the angle like atan2, from 0 to 4, but is much cheaper
+    private static double pseudoAngle(double dx, double dy)
+    {
+        double p = dx / (Math.abs(dx) + Math.abs(dy));
+        return dy >= 0 ? 1 - p : 3 + p;
+    }
+}
@@ -0,0 +1,165 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.util.Random;
+import onlinegame.shared.GameUtil;
+import onlinegame.shared.Logger;
+import onlinegame.shared.MathUtil;
+import onlinegame.shared.SharedUtil;
+
+/**
+ * Compares the position lookups of {@link ActorPath} to walking the segments
+ * from the start of the path, on paths with many points: once at increasing
+ * times like the server ticks, and once at random times. Also checks that
+ * both give the same positions.
+ * <br />
+ * Usage: ActorPathBenchmark [lookups] [rounds]
+ *
+ * @author Alfred
+ */
+public final class ActorPathBenchmark
+{
+    private ActorPathBenchmark() {}
+    
+    private static final double SPEED = 3;
+    
+    public static void main(String[] args)
+    {
+        int numLookups = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        
+        Random r = new Random(12345);
+        for (int numPoints : new int[] {2, 8, 64, 1024, 16384})
+        {
+            benchmark(numPoints, numLookups, rounds, r);
+        }
+    }
+    
+    private static void benchmark(int numPoints, int numLookups, int rounds, Random r)
+    {
+        //a random walk, with a few points repeated like the ends of a spliced path
+        float[] xs = new float[numPoints], ys = new float[numPoints];
+        for (int i = 1; i < numPoints; i++)
+        {
+            boolean repeat = r.nextInt(16) == 0;
+            xs[i] = xs[i - 1] + (repeat ? 0 : (float)(r.nextDouble() * 4 - 2));
+            ys[i] = ys[i - 1] + (repeat ? 0 : (float)(r.nextDouble() * 4 - 2));
+        }
+        ActorPath path = new ActorPath(xs, ys, 0);
+        
+        //one lookup per tick from start to end, and random ones a bit beyond both ends
+        double tickPos = Math.max(path.length / numLookups, GameUtil.SERVER_TICK_DELTA * SPEED);
+        double[] randomPos = new double[numLookups];
+        for (int i = 0; i < numLookups; i++)
+        {
+            randomPos[i] = (r.nextDouble() * 1.1 - .05) * path.length;
+        }
+        
+        double[] ref = new double[3];
+        for (int i = 0; i < numLookups; i++)
+        {
+            check(path, xs, ys, i * tickPos, ref);
+        }
+        for (int i = 0; i < numLookups; i++)
+        {
+            check(path, xs, ys, randomPos[i], ref);
+        }
+        
+        long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+        double sum = 0;
+        for (int round = 0; round < rounds; round++)
+        {
+            long t = System.nanoTime();
+            for (int i = 0; i < numLookups; i++)
+            {
+                linearPos(xs, ys, path.length, i * tickPos, ref);
+                sum += ref[0] + ref[1];
+            }
+            best[0] = Math.min(best[0], System.nanoTime() - t);
+            
+            t = System.nanoTime();
+            for (int i = 0; i < numLookups; i++)
+            {
+                double pos = i * tickPos;
+                sum += path.getPathXPos(pos) + path.getPathYPos(pos);
+            }
+            best[1] = Math.min(best[1], System.nanoTime() - t);
+            
+            t = System.nanoTime();
+            for (int i = 0; i < numLookups; i++)
+            {
+                linearPos(xs, ys, path.length, randomPos[i], ref);
+                sum += ref[0] + ref[1];
+            }
+            best[2] = Math.min(best[2], System.nanoTime() - t);
+            
+            t = System.nanoTime();
+            for (int i = 0; i < numLookups; i++)
+            {
+                sum += path.getPathXPos(randomPos[i]) + path.getPathYPos(randomPos[i]);
+            }
+            best[3] = Math.min(best[3], System.nanoTime() - t);
+        }
+        
+        Logger.log(numPoints + " points, " + numLookups + " lookups, best of " + rounds + " (" + (float)sum + "):"
+                + "\n  increasing, linear: " + SharedUtil.getTimeString(best[0])
+                + "\n  increasing, cursor: " + SharedUtil.getTimeString(best[1])
+                + "\n  random, linear:     " + SharedUtil.getTimeString(best[2])
+                + "\n  random, binary:     " + SharedUtil.getTimeString(best[3]));
+    }
+    
+    private static void check(ActorPath path, float[] xs, float[] ys, double pos, double[] ref)
+    {
+        linearPos(xs, ys, path.length, pos, ref);
+        if (path.getPathXPos(pos) != (float)ref[0] || path.getPathYPos(pos) != (float)ref[1] || path.getPathPrevPoint(pos) != (int)ref[2])
+        {
+            throw new IllegalStateException("Position mismatch at " + pos + ": " + path.getPathXPos(pos) + ", " + path.getPathYPos(pos) + " (" + path.getPathPrevPoint(pos) + ") != "
+                    + (float)ref[0] + ", " + (float)ref[1] + " (" + (int)ref[2] + ")");
+        }
+    }
+    
+    //the position by walking the segments from the start, stored as x, y and the index of the previous point
+    private static void linearPos(float[] xs, float[] ys, double length, double pos, double[] dest)
+    {
+        int len = xs.length;
+        if (len == 1 || pos <= 0)
+        {
+            dest[0] = xs[0];
+            dest[1] = ys[0];
+            dest[2] = 0;
+            return;
+        }
+        else if (pos >= length)
+        {
+            dest[0] = xs[len - 1];
+            dest[1] = ys[len - 1];
+            dest[2] = len - 1;
+            return;
+        }
+        
+        double dist = 0;
+        double x1 = xs[0], y1 = ys[0];
+        for (int i = 1; i < len; i++)
+        {
+            double x2 = xs[i], y2 = ys[i];
+            double segmentLength = MathUtil.dist(x1, y1, x2, y2);
+            double newDist = dist + segmentLength;
+            
+            if (pos <= newDist)
+            {
+                double f = (pos - dist) / segmentLength;
+                dest[0] = MathUtil.lerp(x1, x2, f);
+                dest[1] = MathUtil.lerp(y1, y2, f);
+                dest[2] = i - 1;
+                return;
+            }
+            
+            dist = newDist;
+            x1 = x2;
+            y1 = y2;
+        }
+        
+        dest[0] = x1;
+        dest[1] = y1;
+        dest[2] = len - 1;
+    }
+}
@@ -0,0 +1,74 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.io.IOException;
+import java.util.Random;
+import onlinegame.shared.MathUtil;
+import onlinegame.shared.game.GameMap;
+import org.joml.Vector2d;
+
+/**
+ * The maps, random queries and path lengths used by the pathfinder
+ * benchmarks.
+ *
+ * @author Alfred
+ */
+final class BenchmarkUtil
+{
+    private BenchmarkUtil() {}
+    
+    static final double HIT_RADIUS = .3;
+    
+    //the maps in resources/maps
+    static GameMap[] loadMaps() throws IOException
+    {
+        return new GameMap[]
+        {
+            GameMap.TEST,
+            GameMap.load(100, "main", "/maps/main.png", .4f),
+            GameMap.load(101, "oldtest", "/maps/oldtest.png", .4f),
+            GameMap.load(102, "test", "/maps/test.png", .4f)
+        };
+    }
+    
+    //random positions on the map, like actors ordered to move somewhere, stored as start x, start y, goal x and goal y
+    static double[] randomQueries(GameMap map, Pathfinder pf, int numQueries, Random r)
+    {
+        double[] queries = new double[numQueries * 4];
+        for (int i = 0; i < queries.length; i += 2)
+        {
+            queries[i] = r.nextDouble() * map.getScaledWidth();
+            queries[i + 1] = r.nextDouble() * map.getScaledHeight();
+        }
+        Vector2d v = new Vector2d();
+        for (int i = 0; i < queries.length; i += 2)
+        {
+            if (pf.nearestFreeSpace(queries[i], queries[i + 1], map.scale * 64, v))
+            {
+                queries[i] = v.x;
+                queries[i + 1] = v.y;
+            }
+        }
+        return queries;
+    }
+    
+    static PathStats copy(PathStats stats)
+    {
+        PathStats c = new PathStats();
+        c.add(stats);
+        return c;
+    }
+    
+    static double pathLength(Node[] path)
+    {
+        if (path == null)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+        double len = 0;
+        for (int i = 1; i < path.length; i++)
+        {
+            len += MathUtil.dist(path[i - 1].x, path[i - 1].y, path[i].x, path[i].y);
+        }
+        return len;
+    }
+}
@@ -0,0 +1,249 @@
+package onlinegame.shared.game.pathfinder;
+
+import gnu.trove.set.hash.THashSet;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import onlinegame.shared.IndexedDoubleHeap;
+import onlinegame.shared.Logger;
+import onlinegame.shared.MathUtil;
+import onlinegame.shared.SharedUtil;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * Compares the A* frontier implementations on the navigation graphs of the
+ * maps in resources/maps, and measures the total time of Pathfinder.findPath.
+ * <br />
+ * Usage: FrontierBenchmark [queries] [rounds]
+ *
+ * @author Alfred
+ */
+public final class FrontierBenchmark
+{
+    private FrontierBenchmark() {}
+    
+    public static void main(String[] args) throws IOException
+    {
+        int numQueries = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        
+        for (GameMap map : BenchmarkUtil.loadMaps())
+        {
+            benchmark(map, numQueries, rounds);
+        }
+    }
+    
+    private static void benchmark(GameMap map, int numQueries, int rounds)
+    {
+        Pathfinder pf = new Pathfinder(map, BenchmarkUtil.HIT_RADIUS);
+        Graph g = GraphCache.get(map, BenchmarkUtil.HIT_RADIUS);
+        if (g.size() < 2)
+        {
+            Logger.log(map.name + ": graph too small, skipped.");
+            return;
+        }
+        
+        Random r = new Random(12345);
+        int[] from = new int[numQueries];
+        int[] to = new int[numQueries];
+        for (int i = 0; i < numQueries; i++)
+        {
+            from[i] = r.nextInt(g.size());
+            to[i] = r.nextInt(g.size());
+        }
+        
+        //check that both frontiers find paths of the same length
+        PriorityQueueSearch oldSearch = new PriorityQueueSearch(g);
+        HeapSearch newSearch = new HeapSearch(g);
+        for (int i = 0; i < numQueries; i++)
+        {
+            double a = oldSearch.search(from[i], to[i]);
+            double b = newSearch.search(from[i], to[i]);
+            if (Math.abs(a - b) > 1e-6 * Math.max(1, Math.abs(a)))
+            {
+                throw new IllegalStateException("Path length mismatch (" + from[i] + " -> " + to[i] + "): " + a + " != " + b);
+            }
+        }
+        
+        long oldTime = Long.MAX_VALUE, newTime = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++)
+        {
+            long t = System.nanoTime();
+            for (int i = 0; i < numQueries; i++)
+            {
+                oldSearch.search(from[i], to[i]);
+            }
+            oldTime = Math.min(oldTime, System.nanoTime() - t);
+            
+            t = System.nanoTime();
+            for (int i = 0; i < numQueries; i++)
+            {
+                newSearch.search(from[i], to[i]);
+            }
+            newTime = Math.min(newTime, System.nanoTime() - t);
+        }
+        
+        double[] queries = BenchmarkUtil.randomQueries(map, pf, numQueries, r);
+        
+        long findPathTime = Long.MAX_VALUE;
+        int found = 0;
+        for (int round = 0; round < rounds; round++)
+        {
+            found = 0;
+            long t = System.nanoTime();
+            for (int i = 0; i < queries.length; i += 4)
+            {
+                if (pf.findPath(queries[i], queries[i + 1], queries[i + 2], queries[i + 3]) != null)
+                {
+                    found++;
+                }
+            }
+            findPathTime = Math.min(findPathTime, System.nanoTime() - t);
+        }
+        
+        Logger.log(map.name + " (" + g.size() + " nodes, " + g.numEdges() / 2 + " edges), " + numQueries + " queries, best of " + rounds + ":"
+                + "\n  PriorityQueue + THashSet: " + SharedUtil.getTimeString(oldTime)
+                + "\n  IndexedDoubleHeap:        " + SharedUtil.getTimeString(newTime)
+                + "\n  findPath:                 " + SharedUtil.getTimeString(findPathTime) + " (" + found + " paths found)");
+        
+    }
+    
+    //plain A* between two graph nodes, returns the path length
+    private abstract static class Search
+    {
+        protected final Graph g;
+        protected final double[] cost;
+        protected final double[] estCost;
+        protected final boolean[] visited;
+        
+        private Search(Graph g)
+        {
+            this.g = g;
+            cost = new double[g.size()];
+            estCost = new double[g.size()];
+            visited = new boolean[g.size()];
+        }
+        
+        protected final double heuristic(int n, int goal)
+        {
+            return MathUtil.dist(g.x[n], g.y[n], g.x[goal], g.y[goal]);
+        }
+        
+        protected final void reset()
+        {
+            Arrays.fill(cost, Double.POSITIVE_INFINITY);
+            Arrays.fill(estCost, Double.POSITIVE_INFINITY);
+            Arrays.fill(visited, false);
+        }
+        
+        abstract double search(int start, int goal);
+    }
+    
+    //the frontier Pathfinder used before the indexed heap
+    private static final class PriorityQueueSearch extends Search
+    {
+        private final PriorityQueue<Integer> frontier;
+        private final THashSet<Integer> frontierSet = new THashSet<>();
+        
+        private PriorityQueueSearch(Graph g)
+        {
+            super(g);
+            frontier = new PriorityQueue<>(11, new Comparator<Integer>()
+            {
+                @Override
+                public int compare(Integer n1, Integer n2)
+                {
+                    return Double.compare(estCost[n1], estCost[n2]);
+                }
+            });
+        }
+        
+        @Override
+        double search(int start, int goal)
+        {
+            reset();
+            frontier.clear();
+            frontierSet.clear();
+            
+            cost[start] = 0;
+            estCost[start] = heuristic(start, goal);
+            frontier.add(start);
+            frontierSet.add(start);
+            
+            while (!frontier.isEmpty())
+            {
+                int c = frontier.poll();
+                frontierSet.remove(c);
+                if (c == goal)
+                {
+                    return cost[c];
+                }
+                visited[c] = true;
+                
+                for (int e = g.firstEdge[c]; e < g.firstEdge[c + 1]; e++)
+                {
+                    int next = g.edgeTarget[e];
+                    double newCost = cost[c] + g.edgeCost[e];
+                    if (!visited[next] && newCost < cost[next])
+                    {
+                        cost[next] = newCost;
+                        estCost[next] = newCost + heuristic(next, goal);
+                        if (!frontierSet.add(next))
+                        {
+                            frontier.remove(next);
+                        }
+                        frontier.add(next);
+                    }
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+    
+    private static final class HeapSearch extends Search
+    {
+        private final IndexedDoubleHeap frontier;
+        
+        private HeapSearch(Graph g)
+        {
+            super(g);
+            frontier = new IndexedDoubleHeap(g.size());
+        }
+        
+        @Override
+        double search(int start, int goal)
+        {
+            reset();
+            frontier.clear();
+            
+            cost[start] = 0;
+            estCost[start] = heuristic(start, goal);
+            frontier.offer(start, estCost[start]);
+            
+            while (!frontier.isEmpty())
+            {
+                int c = frontier.poll();
+                if (c == goal)
+                {
+                    return cost[c];
+                }
+                visited[c] = true;
+                
+                for (int e = g.firstEdge[c]; e < g.firstEdge[c + 1]; e++)
+                {
+                    int next = g.edgeTarget[e];
+                    double newCost = cost[c] + g.edgeCost[e];
+                    if (!visited[next] && newCost < cost[next])
+                    {
+                        cost[next] = newCost;
+                        estCost[next] = newCost + heuristic(next, goal);
+                        frontier.decreaseKey(next, estCost[next]);
+                    }
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+}
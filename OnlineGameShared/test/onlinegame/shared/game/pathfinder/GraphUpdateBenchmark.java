@@ -0,0 +1,137 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import onlinegame.shared.Logger;
+import onlinegame.shared.SharedUtil;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * Checks that updating the graph after cells are changed gives the same
+ * graph as generating it again, and measures both, on the maps in
+ * resources/maps.
+ * <br />
+ * Usage: GraphUpdateBenchmark [queries]
+ *
+ * @author Alfred
+ */
+public final class GraphUpdateBenchmark
+{
+    private GraphUpdateBenchmark() {}
+    
+    public static void main(String[] args) throws IOException
+    {
+        int numQueries = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        
+        for (GameMap map : BenchmarkUtil.loadMaps())
+        {
+            Pathfinder pf = new Pathfinder(map, BenchmarkUtil.HIT_RADIUS);
+            Random r = new Random(12345);
+            double[] queries = BenchmarkUtil.randomQueries(map, pf, numQueries, r);
+            compareUpdates(map, pf, queries, r);
+        }
+    }
+    
+    //small walls are placed and removed at random, and then everything is put back
+    private static void compareUpdates(GameMap map, Pathfinder pf, double[] queries, Random r)
+    {
+        int numChanges = 20;
+        int[] rects = new int[numChanges * 4];
+        byte[][] oldCells = new byte[numChanges][];
+        long updateTime = 0, genTime = 0;
+        for (int k = 0; k < numChanges; k++)
+        {
+            int w = 1 + r.nextInt(3), h = 1 + r.nextInt(3);
+            int x1 = r.nextInt(map.width - w + 1), y1 = r.nextInt(map.height - h + 1);
+            int x2 = x1 + w - 1, y2 = y1 + h - 1;
+            rects[4 * k] = x1;
+            rects[4 * k + 1] = y1;
+            rects[4 * k + 2] = x2;
+            rects[4 * k + 3] = y2;
+            
+            oldCells[k] = new byte[w * h];
+            boolean walkable = true;
+            for (int y = y1; y <= y2; y++)
+            {
+                for (int x = x1; x <= x2; x++)
+                {
+                    oldCells[k][(x - x1) + (y - y1) * w] = map.getCell(x, y);
+                    walkable &= map.isWalkable(x, y);
+                }
+            }
+            
+            long t = System.nanoTime();
+            map.setCells(x1, y1, x2, y2, walkable ? GameMap.C_WALL : GameMap.C_EMPTY);
+            updateTime += System.nanoTime() - t;
+            
+            t = System.nanoTime();
+            Graph full = Pathfinder.genGraph(map, BenchmarkUtil.HIT_RADIUS);
+            genTime += System.nanoTime() - t;
+            
+            compareEdges(GraphCache.get(map, BenchmarkUtil.HIT_RADIUS), full, "after change " + k);
+        }
+        
+        //the pathfinder switches to the updated graph
+        int found = 0;
+        for (int i = 0; i < queries.length; i += 4)
+        {
+            if (pf.findPath(queries[i], queries[i + 1], queries[i + 2], queries[i + 3]) != null)
+            {
+                found++;
+            }
+        }
+        
+        for (int k = numChanges - 1; k >= 0; k--)
+        {
+            int x1 = rects[4 * k], y1 = rects[4 * k + 1], x2 = rects[4 * k + 2], y2 = rects[4 * k + 3];
+            for (int y = y1; y <= y2; y++)
+            {
+                for (int x = x1; x <= x2; x++)
+                {
+                    map.setCell(x, y, oldCells[k][(x - x1) + (y - y1) * (x2 - x1 + 1)]);
+                }
+            }
+        }
+        compareEdges(GraphCache.get(map, BenchmarkUtil.HIT_RADIUS), Pathfinder.genGraph(map, BenchmarkUtil.HIT_RADIUS), "after restoring the cells");
+        
+        Logger.log(map.name + ", " + numChanges + " changes of up to 3x3 cells:"
+                + "\n  update: " + SharedUtil.getTimeString(updateTime / numChanges) + " on average"
+                + "\n  genGraph: " + SharedUtil.getTimeString(genTime / numChanges) + " on average"
+                + "\n  " + found + " of " + queries.length / 4 + " paths found on the changed map");
+    }
+    
+    //the graphs have to have the same edges, the node order can differ
+    private static void compareEdges(Graph a, Graph b, String when)
+    {
+        HashSet<String> edges = new HashSet<>();
+        for (int i = 0; i < a.size(); i++)
+        {
+            for (int e = a.getFirstEdge(i); e < a.getEndEdge(i); e++)
+            {
+                edges.add(edgeKey(a, i, a.getEdgeTarget(e)));
+            }
+        }
+        
+        int missing = 0;
+        for (int i = 0; i < b.size(); i++)
+        {
+            for (int e = b.getFirstEdge(i); e < b.getEndEdge(i); e++)
+            {
+                if (!edges.contains(edgeKey(b, i, b.getEdgeTarget(e))))
+                {
+                    missing++;
+                }
+            }
+        }
+        if (a.numEdges() != b.numEdges() || missing != 0)
+        {
+            throw new IllegalStateException("Updated graph differs " + when + ": " + a.numEdges() / 2 + " edges instead of " + b.numEdges() / 2 + ", " + missing / 2 + " missing");
+        }
+    }
+    
+    private static String edgeKey(Graph g, int i, int j)
+    {
+        return g.getX(i) + "," + g.getY(i) + "-" + g.getX(j) + "," + g.getY(j);
+    }
+}
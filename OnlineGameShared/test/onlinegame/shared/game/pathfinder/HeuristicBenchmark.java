@@ -0,0 +1,85 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.io.IOException;
+import java.util.Random;
+import onlinegame.shared.Logger;
+import onlinegame.shared.MathUtil;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * Compares the straight line and landmark heuristics on long queries on the
+ * maps in resources/maps.
+ * <br />
+ * Usage: HeuristicBenchmark [queries] [rounds]
+ *
+ * @author Alfred
+ */
+public final class HeuristicBenchmark
+{
+    private HeuristicBenchmark() {}
+    
+    public static void main(String[] args) throws IOException
+    {
+        int numQueries = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        
+        for (GameMap map : BenchmarkUtil.loadMaps())
+        {
+            Pathfinder pf = new Pathfinder(map, BenchmarkUtil.HIT_RADIUS);
+            double[] queries = BenchmarkUtil.randomQueries(map, pf, numQueries, new Random(12345));
+            compareHeuristics(map, pf, queries, rounds);
+        }
+    }
+    
+    //long cross-map clicks, where the heuristic matters the most
+    private static void compareHeuristics(GameMap map, Pathfinder pf, double[] queries, int rounds)
+    {
+        double minDist = .5 * Math.min(map.getScaledWidth(), map.getScaledHeight());
+        double[] longQueries = new double[queries.length];
+        int len = 0;
+        for (int i = 0; i < queries.length; i += 4)
+        {
+            if (MathUtil.dist(queries[i], queries[i + 1], queries[i + 2], queries[i + 3]) >= minDist)
+            {
+                System.arraycopy(queries, i, longQueries, len, 4);
+                len += 4;
+            }
+        }
+        
+        PathStats[] stats = new PathStats[2];
+        for (int mode = 0; mode < 2; mode++)
+        {
+            pf.setUseLandmarks(mode == 1);
+            for (int round = 0; round < rounds; round++)
+            {
+                pf.getStats().reset();
+                for (int i = 0; i < len; i += 4)
+                {
+                    pf.findPath(longQueries[i], longQueries[i + 1], longQueries[i + 2], longQueries[i + 3]);
+                }
+                if (stats[mode] == null || pf.getStats().getTime() < stats[mode].getTime())
+                {
+                    stats[mode] = BenchmarkUtil.copy(pf.getStats());
+                }
+            }
+        }
+        pf.setUseLandmarks(true);
+        
+        //both heuristics are admissible, so the paths have to be equally long
+        for (int i = 0; i < len; i += 4)
+        {
+            pf.setUseLandmarks(false);
+            double a = BenchmarkUtil.pathLength(pf.findPath(longQueries[i], longQueries[i + 1], longQueries[i + 2], longQueries[i + 3]));
+            pf.setUseLandmarks(true);
+            double b = BenchmarkUtil.pathLength(pf.findPath(longQueries[i], longQueries[i + 1], longQueries[i + 2], longQueries[i + 3]));
+            if (Math.abs(a - b) > 1e-4 * Math.max(1, Math.abs(a)))
+            {
+                throw new IllegalStateException("Path length mismatch with landmarks (query " + i / 4 + "): " + a + " != " + b);
+            }
+        }
+        
+        Logger.log(map.name + ", " + len / 4 + " queries longer than " + (float)minDist + ", best of " + rounds + ":"
+                + "\n  straight line: " + stats[0]
+                + "\n  landmarks:     " + stats[1]);
+    }
+}
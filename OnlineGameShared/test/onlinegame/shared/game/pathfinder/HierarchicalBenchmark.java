@@ -0,0 +1,85 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.io.IOException;
+import java.util.Random;
+import onlinegame.shared.Logger;
+import onlinegame.shared.SharedUtil;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * Compares the paths of the hierarchical pathfinder to the shortest ones on
+ * the maps in resources/maps.
+ * <br />
+ * Usage: HierarchicalBenchmark [queries] [rounds]
+ *
+ * @author Alfred
+ */
+public final class HierarchicalBenchmark
+{
+    private HierarchicalBenchmark() {}
+    
+    public static void main(String[] args) throws IOException
+    {
+        int numQueries = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        
+        for (GameMap map : BenchmarkUtil.loadMaps())
+        {
+            Pathfinder pf = new Pathfinder(map, BenchmarkUtil.HIT_RADIUS);
+            double[] queries = BenchmarkUtil.randomQueries(map, pf, numQueries, new Random(12345));
+            compareHierarchical(map, pf, queries, rounds);
+        }
+    }
+    
+    private static void compareHierarchical(GameMap map, Pathfinder pf, double[] queries, int rounds)
+    {
+        long t = System.nanoTime();
+        ClusterGraph clusters = new ClusterGraph(map, BenchmarkUtil.HIT_RADIUS, ClusterGraph.DEFAULT_CLUSTER_SIZE);
+        long buildTime = System.nanoTime() - t;
+        HierarchicalPathfinder hpf = new HierarchicalPathfinder(clusters);
+        
+        PathStats[] stats = new PathStats[2];
+        for (int mode = 0; mode < 2; mode++)
+        {
+            PathSearch search = mode == 0 ? pf : hpf;
+            for (int round = 0; round < rounds; round++)
+            {
+                search.getStats().reset();
+                for (int i = 0; i < queries.length; i += 4)
+                {
+                    search.findPath(queries[i], queries[i + 1], queries[i + 2], queries[i + 3]);
+                }
+                if (stats[mode] == null || search.getStats().getTime() < stats[mode].getTime())
+                {
+                    stats[mode] = BenchmarkUtil.copy(search.getStats());
+                }
+            }
+        }
+        
+        //the hierarchical paths can't be shorter, and shouldn't be much longer
+        double sumRatio = 0, maxRatio = 1;
+        int both = 0;
+        for (int i = 0; i < queries.length; i += 4)
+        {
+            double a = BenchmarkUtil.pathLength(pf.findPath(queries[i], queries[i + 1], queries[i + 2], queries[i + 3]));
+            double b = BenchmarkUtil.pathLength(hpf.findPath(queries[i], queries[i + 1], queries[i + 2], queries[i + 3]));
+            if (a == Double.POSITIVE_INFINITY || b == Double.POSITIVE_INFINITY || a == 0)
+            {
+                continue;
+            }
+            if (b < a * (1 - 1e-4))
+            {
+                throw new IllegalStateException("Hierarchical path shorter than the shortest path (query " + i / 4 + "): " + b + " < " + a);
+            }
+            sumRatio += b / a;
+            maxRatio = Math.max(maxRatio, b / a);
+            both++;
+        }
+        
+        Logger.log(map.name + ", " + queries.length / 4 + " queries, best of " + rounds + ":"
+                + "\n  flat:         " + stats[0]
+                + "\n  hierarchical: " + stats[1]
+                + "\n  cluster graph: " + clusters.size() + " nodes, " + clusters.numEdges() / 2 + " edges, built in " + SharedUtil.getTimeString(buildTime)
+                + "\n  path length: " + (float)(both == 0 ? 1 : sumRatio / both) + "x on average, " + (float)maxRatio + "x at most (" + both + " paths found by both)");
+    }
+}
@@ -0,0 +1,86 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.io.IOException;
+import java.util.Random;
+import onlinegame.shared.Logger;
+import onlinegame.shared.game.GameMap;
+import org.joml.Vector2d;
+
+/**
+ * Measures the path cache on queries that are repeated with small changes,
+ * on the maps in resources/maps.
+ * <br />
+ * Usage: PathCacheBenchmark [queries]
+ *
+ * @author Alfred
+ */
+public final class PathCacheBenchmark
+{
+    private PathCacheBenchmark() {}
+    
+    public static void main(String[] args) throws IOException
+    {
+        int numQueries = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        
+        for (GameMap map : BenchmarkUtil.loadMaps())
+        {
+            Pathfinder pf = new Pathfinder(map, BenchmarkUtil.HIT_RADIUS);
+            Random r = new Random(12345);
+            double[] queries = BenchmarkUtil.randomQueries(map, pf, numQueries, r);
+            compareCache(map, pf, queries, r);
+        }
+    }
+    
+    //every query is repeated a few times with the start and goal moved a little, like an actor re-planning during a fight
+    private static void compareCache(GameMap map, Pathfinder pf, double[] queries, Random r)
+    {
+        int repeats = 8;
+        double jitter = map.scale;
+        double[] repeated = new double[queries.length * repeats];
+        Vector2d v = new Vector2d();
+        for (int i = 0; i < repeated.length; i += 2)
+        {
+            int j = (i / 4 / repeats) * 4 + i % 4;
+            double x = queries[j] + (r.nextDouble() * 2 - 1) * jitter;
+            double y = queries[j + 1] + (r.nextDouble() * 2 - 1) * jitter;
+            boolean free = pf.nearestFreeSpace(x, y, jitter, v);
+            repeated[i] = free ? v.x : queries[j];
+            repeated[i + 1] = free ? v.y : queries[j + 1];
+        }
+        
+        PathCache cache = PathCache.of(map);
+        cache.clear();
+        PathStats[] stats = new PathStats[2];
+        double[] lengths = new double[repeated.length / 4];
+        double sumRatio = 0, maxRatio = 1;
+        int both = 0;
+        for (int mode = 0; mode < 2; mode++)
+        {
+            pf.setUseCache(mode == 1);
+            pf.getStats().reset();
+            for (int i = 0; i < repeated.length; i += 4)
+            {
+                double len = BenchmarkUtil.pathLength(pf.findPath(repeated[i], repeated[i + 1], repeated[i + 2], repeated[i + 3]));
+                if (mode == 0)
+                {
+                    lengths[i / 4] = len;
+                }
+                else if (len != Double.POSITIVE_INFINITY && lengths[i / 4] != Double.POSITIVE_INFINITY && lengths[i / 4] > 0)
+                {
+                    sumRatio += len / lengths[i / 4];
+                    maxRatio = Math.max(maxRatio, len / lengths[i / 4]);
+                    both++;
+                }
+            }
+            stats[mode] = BenchmarkUtil.copy(pf.getStats());
+        }
+        pf.setUseCache(false);
+        
+        Logger.log(map.name + ", " + repeated.length / 4 + " queries (" + repeats + " variations of each):"
+                + "\n  without cache: " + stats[0]
+                + "\n  with cache:    " + stats[1]
+                + "\n  " + cache
+                + "\n  path length: " + (float)(both == 0 ? 1 : sumRatio / both) + "x on average, " + (float)maxRatio + "x at most");
+        cache.clear();
+    }
+}
@@ -0,0 +1,67 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.io.IOException;
+import java.util.Random;
+import onlinegame.shared.Logger;
+import onlinegame.shared.SharedUtil;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * Checks that searches that are resumed in slices find the same paths, and
+ * measures how long the game thread would be blocked, on the maps in
+ * resources/maps.
+ * <br />
+ * Usage: SlicedSearchBenchmark [queries]
+ *
+ * @author Alfred
+ */
+public final class SlicedSearchBenchmark
+{
+    private SlicedSearchBenchmark() {}
+    
+    public static void main(String[] args) throws IOException
+    {
+        int numQueries = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        
+        for (GameMap map : BenchmarkUtil.loadMaps())
+        {
+            Pathfinder pf = new Pathfinder(map, BenchmarkUtil.HIT_RADIUS);
+            double[] queries = BenchmarkUtil.randomQueries(map, pf, numQueries, new Random(12345));
+            compareSliced(map, pf, queries);
+        }
+    }
+    
+    //the longest time the game thread would be blocked, searching at once or a slice at a time
+    private static void compareSliced(GameMap map, Pathfinder pf, double[] queries)
+    {
+        long maxSearch = 0, maxStart = 0, maxSlice = 0;
+        int slices = 0;
+        for (int i = 0; i < queries.length; i += 4)
+        {
+            long t = System.nanoTime();
+            double a = BenchmarkUtil.pathLength(pf.findPath(queries[i], queries[i + 1], queries[i + 2], queries[i + 3]));
+            maxSearch = Math.max(maxSearch, System.nanoTime() - t);
+            
+            t = System.nanoTime();
+            boolean done = pf.startSearch(queries[i], queries[i + 1], queries[i + 2], queries[i + 3]);
+            maxStart = Math.max(maxStart, System.nanoTime() - t);
+            while (!done)
+            {
+                t = System.nanoTime();
+                done = pf.resumeSearch(PathQuery.SLICE_EXPANSIONS);
+                maxSlice = Math.max(maxSlice, System.nanoTime() - t);
+                slices++;
+            }
+            double b = BenchmarkUtil.pathLength(pf.getResult());
+            if (a != b && Math.abs(a - b) > 1e-4 * Math.max(1, Math.abs(a)))
+            {
+                throw new IllegalStateException("Path length mismatch with a sliced search (query " + i / 4 + "): " + a + " != " + b);
+            }
+        }
+        
+        Logger.log(map.name + ", " + queries.length / 4 + " queries, " + PathQuery.SLICE_EXPANSIONS + " expanded nodes per slice:"
+                + "\n  longest search: " + SharedUtil.getTimeString(maxSearch)
+                + "\n  longest start:  " + SharedUtil.getTimeString(maxStart) + " (line tests from the start and to the goal)"
+                + "\n  longest slice:  " + SharedUtil.getTimeString(maxSlice) + " (" + slices + " slices)");
+    }
+}
@@ -0,0 +1,65 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.io.IOException;
+import java.util.Random;
+import onlinegame.shared.Logger;
+import onlinegame.shared.SharedUtil;
+import onlinegame.shared.game.GameMap;
+
+/**
+ * Compares searching the taut graph to searching the full one on the maps in
+ * resources/maps.
+ * <br />
+ * Usage: TautGraphBenchmark [queries] [rounds]
+ *
+ * @author Alfred
+ */
+public final class TautGraphBenchmark
+{
+    private TautGraphBenchmark() {}
+    
+    public static void main(String[] args) throws IOException
+    {
+        int numQueries = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        
+        for (GameMap map : BenchmarkUtil.loadMaps())
+        {
+            Pathfinder pf = new Pathfinder(map, BenchmarkUtil.HIT_RADIUS);
+            double[] queries = BenchmarkUtil.randomQueries(map, pf, numQueries, new Random(12345));
+            compareTautGraph(map, pf, queries, rounds);
+        }
+    }
+    
+    private static void compareTautGraph(GameMap map, Pathfinder pf, double[] queries, int rounds)
+    {
+        Graph full = GraphCache.get(map, BenchmarkUtil.HIT_RADIUS);
+        long t = System.nanoTime();
+        Graph taut = full.getTautGraph();
+        long pruneTime = System.nanoTime() - t;
+        
+        PathStats[] stats = new PathStats[2];
+        for (int mode = 0; mode < 2; mode++)
+        {
+            pf.setUseTautGraph(mode == 1);
+            for (int round = 0; round < rounds; round++)
+            {
+                pf.getStats().reset();
+                for (int i = 0; i < queries.length; i += 4)
+                {
+                    pf.findPath(queries[i], queries[i + 1], queries[i + 2], queries[i + 3]);
+                }
+                if (stats[mode] == null || pf.getStats().getTime() < stats[mode].getTime())
+                {
+                    stats[mode] = BenchmarkUtil.copy(pf.getStats());
+                }
+            }
+        }
+        pf.setUseTautGraph(false);
+        
+        Logger.log(map.name + ", " + queries.length / 4 + " queries, best of " + rounds + ":"
+                + "\n  full graph: " + stats[0]
+                + "\n  taut graph: " + stats[1]
+                + "\n  edges: " + full.numEdges() / 2 + " -> " + taut.numEdges() / 2 + ", pruned in " + SharedUtil.getTimeString(pruneTime));
+    }
+}
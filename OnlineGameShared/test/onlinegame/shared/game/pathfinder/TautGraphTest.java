@@ -0,0 +1,95 @@
+package onlinegame.shared.game.pathfinder;
+
+import java.io.IOException;
+import java.util.Random;
+import onlinegame.shared.MathUtil;
+import onlinegame.shared.game.GameMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.joml.Vector2d;
+import org.junit.Test;
+
+/**
+ *
+ * @author Alfred
+ */
+public class TautGraphTest
+{
+    private static final double HIT_RADIUS = .3;
+    private static final int QUERIES = 500;
+    
+    @Test
+    public void testTestMap()
+    {
+        checkPathLengths(GameMap.TEST);
+    }
+    
+    @Test
+    public void testLoadedMaps() throws IOException
+    {
+        checkPathLengths(GameMap.load(100, "main", "/maps/main.png", .4f));
+        checkPathLengths(GameMap.load(101, "oldtest", "/maps/oldtest.png", .4f));
+        checkPathLengths(GameMap.load(102, "test", "/maps/test.png", .4f));
+    }
+    
+    @Test
+    public void testFewerEdges()
+    {
+        Graph full = GraphCache.get(GameMap.TEST, HIT_RADIUS);
+        Graph taut = full.getTautGraph();
+        assertTrue("The taut graph has " + taut.numEdges() + " edges, the full one " + full.numEdges() + ".", taut.numEdges() < full.numEdges());
+    }
+    
+    /**
+     * The pruned edges can't be part of any shortest path, so random paths
+     * have to be equally long with and without the taut graph.
+     */
+    private static void checkPathLengths(GameMap map)
+    {
+        Pathfinder pf = new Pathfinder(map, HIT_RADIUS);
+        double[] queries = randomQueries(map, pf, new Random(12345));
+        for (int i = 0; i < queries.length; i += 4)
+        {
+            pf.setUseTautGraph(false);
+            double a = pathLength(pf.findPath(queries[i], queries[i + 1], queries[i + 2], queries[i + 3]));
+            pf.setUseTautGraph(true);
+            double b = pathLength(pf.findPath(queries[i], queries[i + 1], queries[i + 2], queries[i + 3]));
+            if (a != b)
+            {
+                assertEquals(map.name + ", query " + i / 4 + ":", a, b, 1e-4 * Math.max(1, a));
+            }
+        }
+    }
+    
+    //random positions on the map, moved out of the walls
+    private static double[] randomQueries(GameMap map, Pathfinder pf, Random r)
+    {
+        double[] queries = new double[QUERIES * 4];
+        Vector2d v = new Vector2d();
+        for (int i = 0; i < queries.length; i += 2)
+        {
+            queries[i] = r.nextDouble() * map.getScaledWidth();
+            queries[i + 1] = r.nextDouble() * map.getScaledHeight();
+            if (pf.nearestFreeSpace(queries[i], queries[i + 1], map.scale * 64, v))
+            {
+                queries[i] = v.x;
+                queries[i + 1] = v.y;
+            }
+        }
+        return queries;
+    }
+    
+    private static double pathLength(Node[] path)
+    {
+        if (path == null)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+        double len = 0;
+        for (int i = 1; i < path.length; i++)
+        {
+            len += MathUtil.dist(path[i - 1].x, path[i - 1].y, path[i].x, path[i].y);
+        }
+        return len;
+    }
+}